@@ -0,0 +1,43 @@
+#!/bin/sh
+#
+# Build and run a benchmark on a desktop JVM: the topic tree benchmark, or with "statements" first, the
+# hot statement benchmark.
+#
+#   ANDROID_JAR      platforms/android-15/android.jar from the SDK. Compile only; nothing from it runs.
+#   JACKSON_JAR      jackson-core 2.1.x, as in pom.xml.
+#   SQLITE_JDBC_JAR  optional, an SQLite JDBC driver, needed for -jdbc and for statements.
+#
+# Arguments are passed through, for example:
+#
+#   gunzip -c res/raw/db.gz > /tmp/bench.db
+#   etc/benchmark/run.sh -scale 5 -jdbc jdbc:sqlite:/tmp/bench.db fixtures/subtree.json fixtures/topictree.json
+#   etc/benchmark/run.sh statements -calls 10000 jdbc:sqlite:/tmp/bench.db
+#
+set -e
+
+ROOT=$(cd "$(dirname "$0")/../.." && pwd)
+OUT=${TMPDIR:-/tmp}/ka-benchmark
+REMOTE=src/com/concentricsky/android/khanacademy/data/remote
+MAIN=com.concentricsky.android.khanacademy.data.remote.TopicTreeBenchmark
+if [ "$1" = statements ]; then
+	shift
+	MAIN=com.concentricsky.android.khanacademy.data.db.StatementBenchmark
+fi
+
+: "${ANDROID_JAR:?set ANDROID_JAR to the SDK's android.jar}"
+: "${JACKSON_JAR:?set JACKSON_JAR to a jackson-core jar}"
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+cd "$ROOT"
+javac -nowarn -implicit:none -d "$OUT" -cp "$ANDROID_JAR:$JACKSON_JAR" \
+	$REMOTE/TopicTreeParser.java \
+	$REMOTE/TopicTreeIngester.java \
+	$REMOTE/TopicTreePipeline.java \
+	$REMOTE/LibraryUpdateMetrics.java \
+	src/com/concentricsky/android/khanacademy/util/Log.java \
+	etc/benchmark/$REMOTE/TopicTreeBenchmark.java \
+	etc/benchmark/src/com/concentricsky/android/khanacademy/data/db/StatementBenchmark.java
+
+exec java -cp "$OUT:$JACKSON_JAR${SQLITE_JDBC_JAR:+:$SQLITE_JDBC_JAR}" \
+	$MAIN "$@"
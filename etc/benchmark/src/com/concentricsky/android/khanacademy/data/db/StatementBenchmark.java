@@ -0,0 +1,275 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what {@link StatementRegistry} saves per call on the data layer's hot statements, against a
+ * desktop SQLite copy of the app's db.
+ *
+ * Each statement runs two ways: rebuilt, as before the registry (SQL assembled, compiled, run and closed on
+ * every call, with the download poller reading its ids through a result set), and cached (compiled once and
+ * rebound, as the registry does). The ORMLite builders some of these replaced cost more again, so the
+ * difference is a lower bound. Writes run in a transaction that is rolled back, leaving the db as it was.
+ *
+ * Reports ns/call for each, and the difference.
+ *
+ * Usage: StatementBenchmark [-warmup n] [-calls n] jdbc-url
+ *
+ * See etc/benchmark/run.sh.
+ *
+ * @author austinlally
+ *
+ */
+public class StatementBenchmark {
+
+	// As in DatabaseHelper and OfflineVideoManager.
+	private static final String SQL_DOWNLOAD_MANAGER_IDS = "select group_concat(dlm_id) from video where dlm_id > 0";
+	private static final String SQL_DOWNLOADED_VIDEO_COUNT = "select downloaded_video_count from topic where _id = ?";
+	private static final String SQL_UPDATE_DOWNLOAD_STATUS = "update video set download_status = ? where youtube_id = ?";
+	private static final String SQL_RESET_DOWNLOAD = "update video set download_status = 0, dlm_id = 0 where dlm_id = ?";
+	private static final String SQL_DOWNLOAD_COUNT = "select count(video._id) from topic_closure, topicvideo, video " +
+			"where topic_closure.ancestor = ? and topic_closure.depth < ? and topicvideo.topic_id = topic_closure.descendant " +
+			"and topicvideo.video_id = video.readable_id and video.download_status = 2";
+
+	private int warmup = 1000;
+	private int calls = 10000;
+
+	private Connection conn;
+	private List<String> topicIds;
+	private List<String> youtubeIds;
+
+	public static void main(String[] args) throws Exception {
+		StatementBenchmark benchmark = new StatementBenchmark();
+		String url = null;
+		for (int i = 0; i < args.length; ++i) {
+			if ("-warmup".equals(args[i])) {
+				benchmark.warmup = Integer.parseInt(args[++i]);
+			} else if ("-calls".equals(args[i])) {
+				benchmark.calls = Integer.parseInt(args[++i]);
+			} else {
+				url = args[i];
+			}
+		}
+		if (url == null) {
+			System.err.println("usage: StatementBenchmark [-warmup n] [-calls n] jdbc-url");
+			System.exit(1);
+		}
+
+		benchmark.conn = DriverManager.getConnection(url);
+		try {
+			benchmark.run();
+		} finally {
+			benchmark.conn.close();
+		}
+	}
+
+	private void run() throws SQLException {
+		conn.setAutoCommit(false);
+		topicIds = column("select _id from topic order by _id limit 100");
+		youtubeIds = column("select youtube_id from video where youtube_id is not null order by youtube_id limit 100");
+		// Give the poller some downloads to find.
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate("update video set dlm_id = rowid where rowid % 50 = 0");
+		} finally {
+			s.close();
+		}
+
+		try {
+			compare("poller ids", new Call() {
+				@Override
+				public long rebuilt(int i) throws SQLException {
+					PreparedStatement p = conn.prepareStatement(new StringBuilder("select dlm_id from video where dlm_id > ").append(0).toString());
+					try {
+						ResultSet r = p.executeQuery();
+						List<Long> ids = new ArrayList<Long>();
+						while (r.next()) {
+							ids.add(r.getLong(1));
+						}
+						r.close();
+						return ids.size();
+					} finally {
+						p.close();
+					}
+				}
+
+				@Override
+				public long cached(PreparedStatement p, int i) throws SQLException {
+					ResultSet r = p.executeQuery();
+					try {
+						String list = r.next() ? r.getString(1) : null;
+						return list == null ? 0 : list.split(",").length;
+					} finally {
+						r.close();
+					}
+				}
+			}, SQL_DOWNLOAD_MANAGER_IDS);
+
+			compare("downloaded video count", new Call() {
+				@Override
+				public long rebuilt(int i) throws SQLException {
+					PreparedStatement p = conn.prepareStatement(SQL_DOWNLOADED_VIDEO_COUNT);
+					try {
+						return cached(p, i);
+					} finally {
+						p.close();
+					}
+				}
+
+				@Override
+				public long cached(PreparedStatement p, int i) throws SQLException {
+					p.setString(1, topicIds.get(i % topicIds.size()));
+					return first(p);
+				}
+			}, SQL_DOWNLOADED_VIDEO_COUNT);
+
+			compare("download count for topic", new Call() {
+				@Override
+				public long rebuilt(int i) throws SQLException {
+					PreparedStatement p = conn.prepareStatement(SQL_DOWNLOAD_COUNT);
+					try {
+						return cached(p, i);
+					} finally {
+						p.close();
+					}
+				}
+
+				@Override
+				public long cached(PreparedStatement p, int i) throws SQLException {
+					p.setString(1, topicIds.get(i % topicIds.size()));
+					p.setLong(2, 2);
+					return first(p);
+				}
+			}, SQL_DOWNLOAD_COUNT);
+
+			compare("update download status", new Call() {
+				@Override
+				public long rebuilt(int i) throws SQLException {
+					PreparedStatement p = conn.prepareStatement(new StringBuilder("UPDATE `video` SET `download_status` = ? WHERE `youtube_id` = ?").toString());
+					try {
+						return cached(p, i);
+					} finally {
+						p.close();
+					}
+				}
+
+				@Override
+				public long cached(PreparedStatement p, int i) throws SQLException {
+					p.setLong(1, i % 3);
+					p.setString(2, youtubeIds.get(i % youtubeIds.size()));
+					return p.executeUpdate();
+				}
+			}, SQL_UPDATE_DOWNLOAD_STATUS);
+
+			compare("reset download", new Call() {
+				@Override
+				public long rebuilt(int i) throws SQLException {
+					PreparedStatement p = conn.prepareStatement(new StringBuilder("UPDATE `video` SET `dlm_id` = ?, `download_status` = ? WHERE `dlm_id` = ?").toString());
+					try {
+						p.setLong(1, 0);
+						p.setLong(2, 0);
+						p.setLong(3, i);
+						return p.executeUpdate();
+					} finally {
+						p.close();
+					}
+				}
+
+				@Override
+				public long cached(PreparedStatement p, int i) throws SQLException {
+					p.setLong(1, i);
+					return p.executeUpdate();
+				}
+			}, SQL_RESET_DOWNLOAD);
+		} finally {
+			conn.rollback();
+		}
+	}
+
+	private interface Call {
+		/** One call the old way: compile, run, close. */
+		long rebuilt(int i) throws SQLException;
+		/** One call through an already compiled statement. */
+		long cached(PreparedStatement p, int i) throws SQLException;
+	}
+
+	private void compare(String label, Call call, String sql) throws SQLException {
+		long check = 0;
+		for (int i = 0; i < warmup; ++i) {
+			check += call.rebuilt(i);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; ++i) {
+			check += call.rebuilt(i);
+		}
+		long rebuilt = (System.nanoTime() - start) / calls;
+
+		PreparedStatement p = conn.prepareStatement(sql);
+		try {
+			for (int i = 0; i < warmup; ++i) {
+				check += call.cached(p, i);
+				p.clearParameters();
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < calls; ++i) {
+				check += call.cached(p, i);
+				p.clearParameters();
+			}
+		} finally {
+			p.close();
+		}
+		long cached = (System.nanoTime() - start) / calls;
+
+		System.out.println(String.format("%-26s rebuilt %6d ns/call, cached %6d ns/call, saves %6d ns/call (%.0f%%)  [%d]",
+				label, rebuilt, cached, rebuilt - cached, 100.0 * (rebuilt - cached) / rebuilt, check));
+	}
+
+	private List<String> column(String sql) throws SQLException {
+		List<String> values = new ArrayList<String>();
+		Statement s = conn.createStatement();
+		try {
+			ResultSet r = s.executeQuery(sql);
+			while (r.next()) {
+				values.add(r.getString(1));
+			}
+			r.close();
+		} finally {
+			s.close();
+		}
+		return values;
+	}
+
+	private static long first(PreparedStatement p) throws SQLException {
+		ResultSet r = p.executeQuery();
+		try {
+			return r.next() ? r.getLong(1) : 0;
+		} finally {
+			r.close();
+		}
+	}
+
+}
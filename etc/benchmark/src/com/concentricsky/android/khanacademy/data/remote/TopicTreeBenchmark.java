@@ -0,0 +1,468 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.concentricsky.android.khanacademy.data.remote.TopicTreeParser.Node;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Replays recorded topictree responses through {@link TopicTreeParser} on a desktop JVM, so changes to the
+ * parse and insert path can be measured without a device.
+ *
+ * Each fixture is read into memory once and then parsed repeatedly, into an in-memory sink that only counts
+ * (the parser's own cost), and, given a JDBC url, into a desktop SQLite copy of the app's db through the
+ * same statements {@link TopicTreeIngester} uses. A synthetic tree, the fixture's top level topics repeated
+ * with fresh ids, can be added to see how the cost scales.
+ *
+ * Reports ns/node, allocated bytes/node (on JVMs that count per thread allocation) and rows/sec.
+ *
+ * Usage: TopicTreeBenchmark [-warmup n] [-iterations n] [-scale n] [-jdbc url] fixture.json...
+ *
+ * See etc/benchmark/run.sh.
+ *
+ * @author austinlally
+ *
+ */
+public class TopicTreeBenchmark {
+
+	private static final String[] ID_FIELDS = {"id", "readable_id", "youtube_id", "ka_url"};
+
+	private static final JsonFactory factory = new JsonFactory();
+
+	private int warmup = 3;
+	private int iterations = 10;
+	private int scale = 0;
+	private String jdbcUrl;
+
+	public static void main(String[] args) throws Exception {
+		TopicTreeBenchmark benchmark = new TopicTreeBenchmark();
+		List<String> fixtures = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			if ("-warmup".equals(args[i])) {
+				benchmark.warmup = Integer.parseInt(args[++i]);
+			} else if ("-iterations".equals(args[i])) {
+				benchmark.iterations = Integer.parseInt(args[++i]);
+			} else if ("-scale".equals(args[i])) {
+				benchmark.scale = Integer.parseInt(args[++i]);
+			} else if ("-jdbc".equals(args[i])) {
+				benchmark.jdbcUrl = args[++i];
+			} else {
+				fixtures.add(args[i]);
+			}
+		}
+		if (fixtures.isEmpty()) {
+			System.err.println("usage: TopicTreeBenchmark [-warmup n] [-iterations n] [-scale n] [-jdbc url] fixture.json...");
+			System.exit(1);
+		}
+
+		for (String fixture : fixtures) {
+			File file = new File(fixture);
+			byte[] json = readFile(file);
+			benchmark.run(file.getName(), json);
+			if (benchmark.scale > 1) {
+				benchmark.run(file.getName() + " x" + benchmark.scale, scaleTree(json, benchmark.scale));
+			}
+		}
+	}
+
+	private void run(String name, byte[] json) throws Exception {
+		System.out.println(String.format("%s (%d bytes)", name, json.length));
+
+		report("  memory", measure(json, null));
+
+		if (jdbcUrl != null) {
+			Connection conn = DriverManager.getConnection(jdbcUrl);
+			try {
+				report("  sqlite", measure(json, conn));
+			} finally {
+				conn.close();
+			}
+		}
+	}
+
+	private Result measure(byte[] json, Connection conn) throws Exception {
+		for (int i = 0; i < warmup; ++i) {
+			once(json, conn);
+		}
+		Result total = new Result();
+		for (int i = 0; i < iterations; ++i) {
+			Result r = once(json, conn);
+			total.nanos += r.nanos;
+			total.allocated += r.allocated;
+			total.nodes = r.nodes;
+			total.rows = r.rows;
+			total.check ^= r.check;
+		}
+		total.nanos /= iterations;
+		total.allocated = total.allocated < 0 ? -1 : total.allocated / iterations;
+		return total;
+	}
+
+	private Result once(byte[] json, Connection conn) throws Exception {
+		Result r = new Result();
+		CountingSink counter = new CountingSink();
+		JdbcSink jdbc = conn == null ? null : new JdbcSink(conn);
+		TopicTreeParser.Sink sink = jdbc == null ? counter : new TeeSink(counter, jdbc);
+
+		if (jdbc != null) {
+			jdbc.clear();
+		}
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		JsonParser parser = factory.createJsonParser(json);
+		new TopicTreeParser(sink).parse(parser);
+		parser.close();
+		if (jdbc != null) {
+			jdbc.finish();
+		}
+		r.nanos = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+
+		r.allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+		r.nodes = counter.nodes;
+		r.rows = jdbc == null ? counter.nodes + counter.closureRows : jdbc.rows;
+		r.check = counter.check;
+		return r;
+	}
+
+	private static void report(String label, Result r) {
+		System.out.println(String.format("%s: %d nodes, %.1fms, %.0f ns/node, %s bytes/node, %.0f rows/sec",
+				label, r.nodes, r.nanos / 1e6, (double) r.nanos / r.nodes,
+				r.allocated < 0 ? "?" : String.format("%.0f", (double) r.allocated / r.nodes),
+				r.rows * 1e9 / r.nanos));
+	}
+
+	/**
+	 * @return Bytes allocated so far by this thread, or -1 if the JVM doesn't say.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[32 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Build a tree with the root's children repeated factor times. Every copy after the first gets its ids
+	 * suffixed, so the rows don't collide and the tree looks like a bigger library rather than a repeated one.
+	 */
+	static byte[] scaleTree(byte[] json, int factor) throws IOException {
+		JsonParser parser = factory.createJsonParser(json);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(json.length * factor);
+		JsonGenerator gen = factory.createJsonGenerator(out);
+
+		parser.nextToken();
+		gen.writeStartObject();
+		while (parser.nextToken() != JsonToken.END_OBJECT) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			gen.writeFieldName(name);
+			if (!"children".equals(name) || parser.getCurrentToken() != JsonToken.START_ARRAY) {
+				gen.copyCurrentStructure(parser);
+				continue;
+			}
+
+			List<byte[]> children = new ArrayList<byte[]>();
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				ByteArrayOutputStream child = new ByteArrayOutputStream();
+				JsonGenerator childGen = factory.createJsonGenerator(child);
+				childGen.copyCurrentStructure(parser);
+				childGen.close();
+				children.add(child.toByteArray());
+			}
+
+			gen.writeStartArray();
+			for (int copy = 0; copy < factor; ++copy) {
+				String suffix = copy == 0 ? "" : "-" + copy;
+				for (byte[] child : children) {
+					JsonParser childParser = factory.createJsonParser(child);
+					copyWithSuffix(childParser, gen, suffix);
+					childParser.close();
+				}
+			}
+			gen.writeEndArray();
+		}
+		gen.writeEndObject();
+		gen.close();
+		parser.close();
+		return out.toByteArray();
+	}
+
+	private static void copyWithSuffix(JsonParser parser, JsonGenerator gen, String suffix) throws IOException {
+		List<String> idFields = Arrays.asList(ID_FIELDS);
+		JsonToken token;
+		while ((token = parser.nextToken()) != null) {
+			if (token == JsonToken.VALUE_STRING && suffix.length() > 0 && idFields.contains(parser.getCurrentName())) {
+				gen.writeString(parser.getText() + suffix);
+			} else {
+				gen.copyCurrentEvent(parser);
+			}
+		}
+	}
+
+	private static class Result {
+		long nanos;
+		long allocated;
+		long nodes;
+		long rows;
+		long check;
+	}
+
+	/**
+	 * Counts what the parser hands over, and folds the hashes together so none of the work can be optimized away.
+	 */
+	private static class CountingSink implements TopicTreeParser.Sink {
+		long nodes;
+		long closureRows;
+		long check;
+
+		@Override
+		public void topic(Node node) {
+			nodes++;
+			closureRows += node.ancestorIds.size() + 1;
+			check ^= node.hash;
+		}
+
+		@Override
+		public void video(Node node) {
+			nodes++;
+			check ^= node.hash;
+		}
+
+		@Override
+		public void reparent(Node node) {
+			check ^= node.childIds.size();
+		}
+	}
+
+	private static class TeeSink implements TopicTreeParser.Sink {
+		private final TopicTreeParser.Sink first;
+		private final TopicTreeParser.Sink second;
+
+		TeeSink(TopicTreeParser.Sink first, TopicTreeParser.Sink second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void topic(Node node) {
+			first.topic(node);
+			second.topic(node);
+		}
+
+		@Override
+		public void video(Node node) {
+			first.video(node);
+			second.video(node);
+		}
+
+		@Override
+		public void reparent(Node node) {
+			first.reparent(node);
+			second.reparent(node);
+		}
+	}
+
+	/**
+	 * {@link TopicTreeIngester} over JDBC: the same statements and bind order, committing every
+	 * {@link TopicTreePipeline#COMMIT_INTERVAL} nodes as the pipeline does.
+	 */
+	private static class JdbcSink implements TopicTreeParser.Sink {
+		private final Connection conn;
+		private final PreparedStatement insertTopic;
+		private final PreparedStatement insertVideo;
+		private final PreparedStatement insertTopicVideo;
+		private final PreparedStatement insertClosure;
+		private final PreparedStatement reparentTopic;
+		private final PreparedStatement reparentVideo;
+
+		long rows;
+		private int sinceCommit;
+
+		JdbcSink(Connection conn) throws SQLException {
+			this.conn = conn;
+			conn.setAutoCommit(false);
+			insertTopic = conn.prepareStatement(String.format(TopicTreeIngester.SQL_INSERT_TOPIC, "main"));
+			insertVideo = conn.prepareStatement(String.format(TopicTreeIngester.SQL_INSERT_VIDEO, "main"));
+			insertTopicVideo = conn.prepareStatement(String.format(TopicTreeIngester.SQL_INSERT_TOPICVIDEO, "main"));
+			insertClosure = conn.prepareStatement(String.format(TopicTreeIngester.SQL_INSERT_CLOSURE, "main"));
+			reparentTopic = conn.prepareStatement(String.format(TopicTreeIngester.SQL_REPARENT_TOPIC, "main"));
+			reparentVideo = conn.prepareStatement(String.format(TopicTreeIngester.SQL_REPARENT_VIDEO, "main"));
+		}
+
+		void clear() throws SQLException {
+			Statement s = conn.createStatement();
+			try {
+				s.executeUpdate("delete from topic");
+				s.executeUpdate("delete from video");
+				s.executeUpdate("delete from topicvideo");
+				s.executeUpdate("delete from topic_closure");
+			} finally {
+				s.close();
+			}
+			conn.commit();
+		}
+
+		void finish() throws SQLException {
+			conn.commit();
+			insertTopic.close();
+			insertVideo.close();
+			insertTopicVideo.close();
+			insertClosure.close();
+			reparentTopic.close();
+			reparentVideo.close();
+		}
+
+		private void written() throws SQLException {
+			if (++sinceCommit >= TopicTreePipeline.COMMIT_INTERVAL) {
+				conn.commit();
+				sinceCommit = 0;
+			}
+		}
+
+		@Override
+		public void reparent(Node node) {
+			try {
+				PreparedStatement s = TopicTreeParser.KIND_TOPIC.equals(node.childKind) ? reparentTopic : reparentVideo;
+				for (String childId : node.childIds) {
+					s.setString(1, node.id);
+					s.setString(2, childId);
+					s.executeUpdate();
+				}
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void topic(Node node) {
+			try {
+				PreparedStatement s = insertTopic;
+				s.setString(1, node.id);
+				s.setString(2, node.childKind);
+				s.setLong(3, node.videoCount);
+				s.setString(4, node.title);
+				s.setString(5, node.description);
+				s.setString(6, node.ka_url);
+				setHide(s, 7, node);
+				s.setString(8, node.parentId);
+				s.setLong(9, node.seq);
+				s.setString(10, node.kind);
+				s.setString(11, node.thumbId);
+				s.setString(12, Long.toHexString(node.hash));
+				s.setString(13, node.ancestry);
+				s.setLong(14, node.childCount);
+				rows += s.executeUpdate();
+
+				s = insertClosure;
+				s.setString(2, node.id);
+				int n = node.ancestorIds.size();
+				for (int i = 0; i < n; ++i) {
+					s.setString(1, node.ancestorIds.get(i));
+					s.setLong(3, n - i);
+					rows += s.executeUpdate();
+				}
+				s.setString(1, node.id);
+				s.setLong(3, 0);
+				rows += s.executeUpdate();
+				written();
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void video(Node node) {
+			try {
+				PreparedStatement s = insertTopicVideo;
+				s.setString(1, node.parentId);
+				s.setString(2, node.readable_id);
+				rows += s.executeUpdate();
+
+				s = insertVideo;
+				s.setString(1, node.readable_id);
+				s.setString(2, node.keywords);
+				s.setString(3, node.progress_key);
+				s.setLong(4, node.duration);
+				s.setString(5, node.youtube_id);
+				s.setString(6, node.mp4url);
+				s.setString(7, node.pngurl);
+				s.setString(8, node.m3u8url);
+				s.setString(9, node.date_added);
+				s.setLong(10, node.views);
+				s.setString(11, node.title);
+				s.setString(12, node.description);
+				s.setString(13, node.ka_url);
+				setHide(s, 14, node);
+				s.setString(15, node.parentId);
+				s.setLong(16, node.seq);
+				s.setString(17, node.kind);
+				s.setString(18, node.ancestry);
+				rows += s.executeUpdate();
+				written();
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static void setHide(PreparedStatement s, int index, Node node) throws SQLException {
+			if (node.hasHide) {
+				s.setLong(index, node.hide ? 1 : 0);
+			} else {
+				s.setNull(index, Types.INTEGER);
+			}
+		}
+	}
+
+}
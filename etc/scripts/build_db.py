@@ -1,18 +1,17 @@
 import logging
 import os
 import sqlite3
+import sys
 import json
 import re
-from restful_lib import Connection
 
 fields = {
     'android_metadata': ('locale'),
     'enqueueddownload': ('youtubeId',),
-    'topic': ('_id','child_kind','video_count','downloaded_video_count','standalone_title','title','description','ka_url','hide','parentTopic_id','ancestry','seq','kind','thumb_id'),
+    'topic': ('_id','child_kind','video_count','downloaded_video_count','standalone_title','title','description','ka_url','hide','parentTopic_id','ancestry','seq','kind','thumb_id','subtree_hash','child_count'),
     'user': ('user_id','joined','nickname','token','prettified_user_email','secret','points','total_seconds_watched','isSignedIn','kind',),
     'uservideo': ('id','user_id','video_id','completed','duration','last_second_watched','last_watched','points','seconds_watched','kind'),
     'video': ('readable_id','download_status','keywords','progress_key','duration','youtube_id','mp4url','pngurl','m3u8url','date_added','views','title','description','ka_url','hide','parentTopic_id','ancestry','seq','kind','dlm_id'),
-    # 'video_youtube_id_idx''video':('youtube_id'),
 }
 
 # return (youtube id of thumbnail, descendant video count)
@@ -39,6 +38,7 @@ def parse_topic(topic, ancestry, topics, videos, topicvideos):
                     thumb_id = youtube_id
         topic['thumb_id'] = thumb_id
         topic['child_kind'] = child_kind
+        topic['child_count'] = seq
         if topic.get('seq', None) is None:
             topic['seq'] = 0 # for root, where it isn't set by the parent
         topic['video_count'] = video_count
@@ -56,6 +56,8 @@ def parse_topic(topic, ancestry, topics, videos, topicvideos):
             video['m3u8url'] = urls.get('m3u8')
         return video.get('youtube_id', None), 1
 
+# The schema of DatabaseHelper.RAW_DATABASE_VERSION: the app runs no migration at or below it on a fresh
+# install, so anything a migration up to that version creates must be here.
 def create_database(dbpath):
     db = sqlite3.connect(dbpath)
     cursor = db.cursor()
@@ -64,19 +66,31 @@ def create_database(dbpath):
     PRAGMA legacy_file_format = true;
     CREATE TABLE android_metadata (locale TEXT);
     
-    CREATE TABLE `topic` (`_id` VARCHAR , `child_kind` VARCHAR , `video_count` INTEGER NOT NULL DEFAULT 0, `downloaded_video_count` INTEGER NOT NULL DEFAULT 0, `standalone_title` VARCHAR , `title` VARCHAR , `description` VARCHAR , `ka_url` VARCHAR , `hide` VARCHAR , `parentTopic_id` VARCHAR , `ancestry` VARCHAR , `seq` INTEGER , `kind` VARCHAR , `thumb_id` VARCHAR , PRIMARY KEY (`_id`) );
+    CREATE TABLE `topic` (`_id` VARCHAR , `child_kind` VARCHAR , `video_count` INTEGER NOT NULL DEFAULT 0, `downloaded_video_count` INTEGER NOT NULL DEFAULT 0, `standalone_title` VARCHAR , `title` VARCHAR , `description` VARCHAR , `ka_url` VARCHAR , `hide` VARCHAR , `parentTopic_id` VARCHAR , `ancestry` VARCHAR , `seq` INTEGER , `kind` VARCHAR , `thumb_id` VARCHAR , `subtree_hash` VARCHAR , `child_count` INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (`_id`) );
     CREATE TABLE `video` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT , `readable_id` VARCHAR, `download_status` INTEGER NOT NULL DEFAULT 0, `keywords` VARCHAR , `progress_key` VARCHAR , `duration` INTEGER NOT NULL DEFAULT 0, `youtube_id` VARCHAR , `mp4url` VARCHAR , `pngurl` VARCHAR , `m3u8url` VARCHAR , `date_added` VARCHAR , `views` INTEGER NOT NULL DEFAULT 0, `title` VARCHAR , `description` VARCHAR , `ka_url` VARCHAR , `hide` VARCHAR , `parentTopic_id` VARCHAR , `ancestry` VARCHAR , `seq` INTEGER NOT NULL DEFAULT 0, `kind` VARCHAR, `dlm_id` INTEGER NOT NULL DEFAULT 0, UNIQUE (`readable_id`) ON CONFLICT IGNORE );
     CREATE TABLE `topicvideo` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT, `topic_id` VARCHAR, `video_id` VARCHAR, UNIQUE (`topic_id`, `video_id`) ON CONFLICT IGNORE );
+    CREATE TABLE IF NOT EXISTS `topic_closure` (`ancestor` VARCHAR NOT NULL, `descendant` VARCHAR NOT NULL, `depth` INTEGER NOT NULL, PRIMARY KEY (`ancestor`, `depth`, `descendant`) );
     
     CREATE TABLE `enqueueddownload` (`youtubeId` VARCHAR , PRIMARY KEY (`youtubeId`) );
     CREATE TABLE `user` (`user_id` VARCHAR , `joined` VARCHAR , `nickname` VARCHAR , `token` VARCHAR , `prettified_user_email` VARCHAR , `secret` VARCHAR , `points` INTEGER NOT NULL DEFAULT 0, `total_seconds_watched` INTEGER NOT NULL DEFAULT 0, `isSignedIn` SMALLINT , `kind` VARCHAR , PRIMARY KEY (`nickname`) );
     CREATE TABLE `uservideo` (`id` INTEGER PRIMARY KEY AUTOINCREMENT , `user_id` VARCHAR , `video_id` VARCHAR , `completed` SMALLINT , `duration` INTEGER NOT NULL DEFAULT 0, `last_second_watched` INTEGER NOT NULL DEFAULT 0, `last_watched` VARCHAR , `points` INTEGER NOT NULL DEFAULT 0, `seconds_watched` INTEGER NOT NULL DEFAULT 0, `kind` VARCHAR );
     CREATE TABLE `caption` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT , `youtube_id` VARCHAR, `start_time` INTEGER, `end_time` INTEGER, `time_string` VARCHAR, `sub_order` REAL, `text` VARCHAR );
     CREATE TABLE `thumbnail` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT , `youtube_id` VARCHAR, `q` INTEGER, `availability` INTEGER, `data` BLOB );
+    CREATE TABLE IF NOT EXISTS `update_metrics` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT, `started_at` INTEGER, `outcome` VARCHAR, `etag` VARCHAR, `total_ms` INTEGER, `download_ms` INTEGER, `bytes_received` INTEGER, `ingest_ms` INTEGER, `bytes_parsed` INTEGER, `nodes_parsed` INTEGER, `nodes_skipped` INTEGER, `commits` INTEGER, `topic_rows` INTEGER, `video_rows` INTEGER, `topicvideo_rows` INTEGER, `closure_rows` INTEGER, `merge_ms` INTEGER, `lock_ms` INTEGER, `changed_topics` INTEGER, `peak_heap` INTEGER );
+    CREATE VIRTUAL TABLE `library_search` USING fts4(`title`, `keywords`, `description`);
+    CREATE VIRTUAL TABLE `caption_search` USING fts4(`text`);
 
     CREATE INDEX IF NOT EXISTS `caption_youtube_id_idx` on `caption` ( `youtube_id` );
     CREATE INDEX IF NOT EXISTS `thumbnail_youtube_id_idx` on `thumbnail` ( `youtube_id` );
     CREATE INDEX IF NOT EXISTS `thumbnail_q_idx` on `thumbnail` ( `q` );
+    CREATE INDEX IF NOT EXISTS `topic_closure_descendant_idx` on `topic_closure` ( `descendant` );
+    CREATE INDEX IF NOT EXISTS `topicvideo_video_id_idx` on `topicvideo` ( `video_id` );
+    CREATE INDEX IF NOT EXISTS `video_download_status_idx` on `video` ( `download_status` );
+    CREATE INDEX IF NOT EXISTS `video_youtube_id_idx` on `video` ( `youtube_id` );
+    CREATE INDEX IF NOT EXISTS `topic_parentTopic_id_idx` on `topic` ( `parentTopic_id` );
+    CREATE INDEX IF NOT EXISTS `topic_title_idx` on `topic` ( `title` );
+    CREATE INDEX IF NOT EXISTS `uservideo_user_video_idx` on `uservideo` ( `user_id`, `video_id` );
+    CREATE TRIGGER IF NOT EXISTS `video_downloaded_count` AFTER UPDATE OF `download_status` ON `video` WHEN (old.download_status = 2) != (new.download_status = 2) BEGIN UPDATE topic SET downloaded_video_count = downloaded_video_count + (CASE WHEN new.download_status = 2 THEN 1 ELSE -1 END) * (SELECT count() FROM topicvideo, topic_closure WHERE topicvideo.video_id = new.readable_id AND topic_closure.descendant = topicvideo.topic_id AND topic_closure.ancestor = topic._id) WHERE _id IN (SELECT topic_closure.ancestor FROM topicvideo, topic_closure WHERE topicvideo.video_id = new.readable_id AND topic_closure.descendant = topicvideo.topic_id); END;
     """
 
     for line in schema.split('\n'):
@@ -135,6 +149,17 @@ def insert_videos(db, videos):
     logging.debug('%d of %d inserted' % ( cursor.fetchone()[0], len(videos) ))
     cursor.close()
     
+def insert_topic_closure(db, topics):
+    # one row per (ancestor, descendant) pair, plus each topic paired with itself at depth 0
+    insert_string = 'INSERT OR IGNORE INTO topic_closure (ancestor, descendant, depth) VALUES (?, ?, ?);'
+    cursor = db.cursor()
+    for topic in topics:
+        ancestors = [a for a in (topic.get('ancestry') or '').split('|') if a]
+        ancestors.append(topic.get('id'))
+        for i, ancestor in enumerate(ancestors):
+            cursor.execute(insert_string, (ancestor, topic.get('id'), len(ancestors) - 1 - i))
+    cursor.close()
+
 def insert_topicvideos(db, topicvideos):
     insert_string = 'INSERT INTO topicvideo (topic_id, video_id) VALUES (?, ?);'
     cursor = db.cursor()
@@ -147,15 +172,30 @@ def insert_topicvideos(db, topicvideos):
     logging.debug('%d of %d inserted' % ( cursor.fetchone()[0], len(topicvideos) ))
     cursor.close()
 
-def main():
-    logging.basicConfig(level=logging.DEBUG)
-    try:
-        os.remove('out.sqlite3')
-    except OSError as e:
-        if e.errno != 2:
-            raise
+def load_library(db, path):
+    # copy the library from an existing database, such as a bundle an older build shipped
+    cursor = db.cursor()
+    cursor.execute('ATTACH DATABASE ? AS source', (path,))
+    for table in ('topic', 'video', 'topicvideo'):
+        cursor.execute('PRAGMA source.table_info(%s)' % table)
+        have = set(row[1] for row in cursor.fetchall())
+        cursor.execute('PRAGMA main.table_info(%s)' % table)
+        columns = ','.join('`%s`' % row[1] for row in cursor.fetchall() if row[1] in have)
+        cursor.execute('INSERT INTO main.%(t)s (%(c)s) SELECT %(c)s FROM source.%(t)s' % {'t': table, 'c': columns})
+        logging.debug('%d %s rows copied' % (cursor.rowcount, table))
+    # same counts as parse_topic
+    cursor.execute("UPDATE topic SET child_count = CASE child_kind "
+                   "WHEN 'Video' THEN (SELECT count() FROM topicvideo WHERE topicvideo.topic_id = topic._id) "
+                   "ELSE (SELECT count() FROM topic t WHERE t.parentTopic_id = topic._id) END")
+    cursor.execute('SELECT _id, ancestry FROM topic')
+    topics = [{'id': row[0], 'ancestry': row[1]} for row in cursor.fetchall()]
+    db.commit()
+    cursor.execute('DETACH DATABASE source')
+    cursor.close()
+    return topics
 
-    db = create_database('out.sqlite3')
+def download_library(db):
+    from restful_lib import Connection
 
     logging.info('requesting new topic tree...')
     base_url = 'http://www.khanacademy.org/api/v1/'
@@ -184,6 +224,37 @@ def main():
     insert_videos(db, videos)
     logging.info('inserting topicvideos...')
     insert_topicvideos(db, topicvideos)
+    return topics
+
+def insert_library_search(db):
+    # same rows as LibrarySearch.rebuild in the app
+    cursor = db.cursor()
+    cursor.execute('INSERT INTO library_search (docid, title, keywords, description) SELECT _id, title, keywords, description FROM video')
+    cursor.execute('INSERT INTO library_search (docid, title, description) SELECT -rowid, title, description FROM topic WHERE parentTopic_id IS NOT NULL AND video_count > 0')
+    cursor.execute("INSERT INTO library_search (library_search) VALUES ('optimize')")
+    cursor.execute('SELECT count() FROM library_search')
+    logging.debug('%d search rows' % cursor.fetchone()[0])
+    cursor.close()
+
+def main():
+    logging.basicConfig(level=logging.DEBUG)
+    try:
+        os.remove('out.sqlite3')
+    except OSError as e:
+        if e.errno != 2:
+            raise
+
+    db = create_database('out.sqlite3')
+
+    if len(sys.argv) > 2 and sys.argv[1] == '--from':
+        logging.info('copying library from %s...' % sys.argv[2])
+        topics = load_library(db, sys.argv[2])
+    else:
+        topics = download_library(db)
+    logging.info('inserting topic closure...')
+    insert_topic_closure(db, topics)
+    logging.info('indexing for search...')
+    insert_library_search(db)
 
     db.commit()
     logging.info('done!')
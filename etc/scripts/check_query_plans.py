@@ -0,0 +1,360 @@
+"""Check that the app's SQL is served by indexes.
+
+Runs EXPLAIN QUERY PLAN on each statement the app sends to its database, and
+fails if any of them scans a whole library or user table, or needs SQLite to
+build a throwaway automatic index. Statements that visit every row by design
+say so in their `scans`, with the reason.
+
+    python check_query_plans.py out.sqlite3
+
+Check the output of build_db.py, or a copy of a device's ka.sqlite3 (the app
+upgrades its schema on open, so pull the file from a current build). Nothing
+is written to the database.
+
+When you add a query to the app, add it here with its source location. Plans
+come from the desktop SQLite, which is newer than most devices', so a failure
+here is worth looking at on a device too; a pass here is a good sign, not a
+guarantee. One-off schema upgrades, which copy whole tables, are left out.
+"""
+import logging
+import re
+import sqlite3
+import sys
+
+# Tables small enough, or private enough to one run, that scanning them is fine.
+SMALL_TABLES = ('android_metadata', 'user', 'enqueueddownload', 'update_metrics', 'update_checkpoint',
+                'merge_changed_topic', 'merge_changed_video', 'refresh_old_topic')
+
+# Databases the library updaters attach. Their schemas match main's, so main stands in for them.
+ATTACHED = ('ka_temp', 'ka_refresh', 'ka_main')
+
+SETUP = (
+    'CREATE TEMP TABLE merge_changed_topic (_id VARCHAR)',
+    'CREATE TEMP TABLE merge_changed_video (readable_id VARCHAR)',
+    'CREATE TEMP TABLE refresh_old_topic (_id VARCHAR)',
+)
+
+VIDEO_COLUMNS = 'readable_id, download_status, youtube_id, title, parentTopic_id, seq, dlm_id'
+
+def carry_download_status(target, source):
+    downloaded = 's.download_status > 0'
+    return ('update %(t)s.video set '
+            'download_status = (select max(s.download_status) from %(s)s.video s where s.youtube_id = %(t)s.video.youtube_id and %(d)s), '
+            'dlm_id = (select s.dlm_id from %(s)s.video s where s.youtube_id = %(t)s.video.youtube_id and %(d)s order by s.download_status desc limit 1) '
+            'where youtube_id in (select s.youtube_id from %(s)s.video s where %(d)s)') % {'t': target, 's': source, 'd': downloaded}
+
+def update_changed_download_status(target, source):
+    status = ('coalesce((select max(s.download_status) from %(s)s.video s where s.youtube_id = %(t)s.video.youtube_id and s.download_status > 0), 0)'
+              % {'t': target, 's': source})
+    dlm_id = ('coalesce((select s.dlm_id from %(s)s.video s where s.youtube_id = %(t)s.video.youtube_id and s.download_status > 0 order by s.download_status desc limit 1), 0)'
+              % {'t': target, 's': source})
+    return ('update %(t)s.video set download_status = %(st)s, dlm_id = %(dl)s '
+            'where youtube_id in (select youtube_id from %(s)s.video where download_status > 0 union select youtube_id from %(t)s.video where download_status > 0) '
+            'and (download_status != %(st)s or dlm_id != %(dl)s)') % {'t': target, 's': source, 'st': status, 'dl': dlm_id}
+
+# (source, sql, args, {scanned name: reason})
+QUERIES = [
+    ('VideoListActivity.resetListContents',
+     'select video._id, video.youtube_id, video.readable_id, video.title , uservideo.seconds_watched, uservideo.completed '
+     'from topicvideo, video left outer join uservideo on uservideo.video_id = video.readable_id and uservideo.user_id=? '
+     'where topicvideo.topic_id=? and topicvideo.video_id=video.readable_id order by video.seq',
+     ('user', 'topic'), {}),
+    ('VideoListActivity.resetListContents, downloaded only',
+     'select video._id, video.youtube_id, video.readable_id, video.title , uservideo.seconds_watched, uservideo.completed '
+     'from topicvideo, video left outer join uservideo on uservideo.video_id = video.readable_id and uservideo.user_id=? '
+     'where topicvideo.topic_id=? and topicvideo.video_id=video.readable_id  and video.download_status=? order by video.seq',
+     ('user', 'topic', '2'), {}),
+    ('VideoListActivity.confirmAndDownloadAll',
+     'select video.* from video, topicvideo where topicvideo.video_id=video.readable_id and topicvideo.topic_id=? and video.download_status<?',
+     ('topic', '2'), {}),
+    ('ManageDownloadsActivity.getCursor',
+     'select distinct(video._id) as _id, video.youtube_id, video.readable_id, video.title, video.dlm_id , uservideo.seconds_watched, uservideo.completed '
+     'from video left outer join uservideo on uservideo.video_id = video.readable_id and uservideo.user_id=? '
+     'where video.download_status>? order by video.parentTopic_id, video.seq',
+     ('user', '0'), {}),
+    ('ManageDownloadsActivity.getCursor, one topic',
+     'select distinct(video._id) as _id, video.youtube_id, video.readable_id, video.title, video.dlm_id , uservideo.seconds_watched, uservideo.completed '
+     'from video, topicvideo, topic left outer join uservideo on uservideo.video_id = video.readable_id and uservideo.user_id=? '
+     'where video.download_status>?  and topicvideo.topic_id=topic._id and topic.title=? and topicvideo.video_id=video.readable_id '
+     'order by video.parentTopic_id, video.seq',
+     ('user', '0', 'title'), {}),
+    ('ManageDownloadsActivity.getDisplayOptionsCursor',
+     'select distinct topic._id as _id, topic.title as title from topic, topicvideo, video '
+     'where video.download_status>? and topicvideo.video_id=video.readable_id and topicvideo.topic_id=topic._id group by topic.title',
+     ('0',), {}),
+    ('ManageDownloadsActivity, topic title filter (ORMLite)',
+     'SELECT * FROM `topic` WHERE `title` = ?',
+     ('title',), {}),
+    ('ManageDownloadsActivity, parent topic of a video',
+     'select topic_id from topicvideo where video_id=? limit 1',
+     ('video',), {}),
+    ('VideoDetailActivity, next video',
+     'select video.* from video,topicvideo where topicvideo.topic_id=? and topicvideo.video_id=video.readable_id and video.seq>? order by video.seq limit 1',
+     ('topic', '0'), {}),
+    ('VideoDetailActivity, user video (ORMLite)',
+     'SELECT * FROM `uservideo` WHERE (`user_id` = ? AND `video_id` = ? ) ORDER BY `points` DESC LIMIT 1',
+     ('user', 'video'), {}),
+    ('DatabaseHelper, user videos for a list of videos (ORMLite)',
+     'SELECT * FROM `uservideo` WHERE (`video_id` IN (?,?,?) AND `user_id` = ? )',
+     ('a', 'b', 'c', 'user'), {}),
+    ('ShowProfileActivity, parent topic of a video',
+     'select topic._id from topic, topicvideo where topicvideo.video_id=? and topicvideo.topic_id = topic._id limit 1',
+     ('video',), {}),
+    ('TopicListActivity.buildCursor (ORMLite)',
+     "SELECT * FROM `topic` WHERE ((`parentTopic_id` = ? AND `video_count` > 0 ) AND `child_kind` IN ('Topic','Video') ) ORDER BY `seq` ",
+     ('topic',), {}),
+    ('AbstractListFragment.resetListContents (ORMLite)',
+     'SELECT * FROM `topic` WHERE `parentTopic_id` = ? ORDER BY `seq` ',
+     ('topic',), {}),
+    ('DatabaseHelper.buildVideosForTopicSubQuery',
+     'select video._id from video, topicvideo, topic_closure where topic_closure.ancestor = ? and topic_closure.depth = 1 '
+     'and topicvideo.topic_id = topic_closure.descendant and video.readable_id = topicvideo.video_id',
+     ('topic',), {}),
+    ('DatabaseHelper.getDownloadedVideoCount',
+     'select downloaded_video_count from topic where _id = ?',
+     ('topic',), {}),
+    ('DatabaseHelper, video_downloaded_count trigger',
+     'UPDATE topic SET downloaded_video_count = downloaded_video_count + 1 * '
+     '(SELECT count() FROM topicvideo, topic_closure WHERE topicvideo.video_id = ? AND topic_closure.descendant = topicvideo.topic_id AND topic_closure.ancestor = topic._id) '
+     'WHERE _id IN (SELECT topic_closure.ancestor FROM topicvideo, topic_closure WHERE topicvideo.video_id = ? AND topic_closure.descendant = topicvideo.topic_id)',
+     ('video', 'video'), {}),
+    ('DatabaseHelper.recomputeDownloadedVideoCounts, parents',
+     'select _id, parentTopic_id from main.topic',
+     (), {'topic': 'reads every parent link to roll counts up in memory'}),
+    ('DatabaseHelper.recomputeDownloadedVideoCounts, counts',
+     'select tv.topic_id, count() from main.topicvideo tv, main.video v where tv.video_id = v.readable_id and v.download_status = ? group by tv.topic_id',
+     ('2',), {}),
+    ('DatabaseHelper.recomputeDownloadedVideoCounts, reset',
+     'update main.topic set downloaded_video_count = 0',
+     (), {'topic': 'resets every topic'}),
+    ('DatabaseHelper.recomputeDownloadedVideoCounts, update',
+     'update main.topic set downloaded_video_count = ? where _id = ?',
+     (1, 'topic'), {}),
+    ('LibrarySearch.search, matches',
+     'select docid, matchinfo(library_search), length(title) from library_search where library_search match ?',
+     ('frac*',), {'library_search': 'reads the full-text index for the query words, not the table'}),
+    ('LibrarySearch.search, video hit',
+     'select readable_id, title from video where _id = ?',
+     (1,), {}),
+    ('LibrarySearch.search, topic hit',
+     'select _id, title from topic where rowid = ?',
+     (1,), {}),
+    ('LibrarySearch.rebuild, videos',
+     'insert into main.library_search (docid, title, keywords, description) select _id, title, keywords, description from main.video',
+     (), {'video': 'indexes every video'}),
+    ('LibrarySearch.remove, videos',
+     'delete from main.library_search where docid in (select _id from main.video where readable_id in (select readable_id from ka_refresh.video))',
+     (), {'video': 'reads every video of the refreshed subtree, which is all of ka_refresh'}),
+    ('LibrarySearch.add, videos',
+     'insert into main.library_search (docid, title, keywords, description) select _id, title, keywords, description from main.video '
+     'where readable_id in (select readable_id from temp.merge_changed_video)',
+     (), {}),
+    ('LibrarySearch.rebuild, topics',
+     'insert into main.library_search (docid, title, description) select -rowid, title, description from main.topic where parentTopic_id is not null and video_count > 0',
+     (), {'topic': 'indexes every topic'}),
+    ('CaptionSearch.index',
+     'insert into caption_search (docid, text) select _id, text from caption where youtube_id = ? '
+     'and not exists (select 1 from caption_search where docid = caption._id)',
+     ('youtube',), {}),
+    ('CaptionSearch.search, videos',
+     'select c.youtube_id, count(distinct c.start_time) as moments from caption_search s, caption c '
+     'where caption_search match ? and c._id = s.docid group by c.youtube_id order by moments desc, c.youtube_id limit ?',
+     ('frac*', 20), {}),
+    ('CaptionSearch.search, moments',
+     'select c.youtube_id, c.start_time, c.text from caption_search s, caption c '
+     'where caption_search match ? and c._id = s.docid and c.youtube_id in (?,?) order by c.youtube_id, c.start_time',
+     ('frac*', 'youtube', 'youtube'), {}),
+    ('CaptionSearch.search, video',
+     'select readable_id, title from video where youtube_id = ? limit 1',
+     ('youtube',), {}),
+    ('CaptionSearch.rebuild',
+     'insert into caption_search (docid, text) select _id, text from caption',
+     (), {'caption': 'indexes every cached caption'}),
+    ('DatabaseHelper.rebuildHierarchy',
+     'select _id, parentTopic_id from topic',
+     (), {'topic': 'rebuilds ancestry and topic_closure for the whole tree'}),
+    ('DatabaseHelper.rebuildHierarchy, video ancestry',
+     "update video set ancestry = (select coalesce(t.ancestry, '') || '|' || t._id from topic t where t._id = video.parentTopic_id)",
+     (), {'video': 'rebuilds ancestry for every video'}),
+    ('DatabaseHelper.filterByDownloadStatus',
+     'select video.youtube_id from video where video.youtube_id in (?,?) and video.download_status >= ?',
+     ('a', 'b', '1'), {}),
+    ('DatabaseHelper.filterByDownloadStatus, one topic',
+     'select video.youtube_id from video, topicvideo where video.youtube_id in (?,?) and video.download_status >= ? '
+     'and topicvideo.video_id = video.readable_id and topicvideo.topic_id = ?',
+     ('a', 'b', '2', 'topic'), {}),
+    ('DatabaseHelper.updateDownloadStatus',
+     'update video set download_status = ? where youtube_id = ?',
+     ('2', 'youtube'), {}),
+    ('DatabaseHelper.resetDownloadStatusAndDlmId',
+     'update video set download_status = 0, dlm_id = 0 where dlm_id = ?',
+     (1,), {'video': 'runs once per removed download; an index would cost every library update'}),
+    ('DatabaseHelper.getDownloadManagerIds',
+     'select group_concat(dlm_id) from video where dlm_id > 0',
+     (), {'video': 'runs once per sync with the download manager; an index would cost every library update'}),
+    ('OfflineVideoManager.getDownloadCountForTopic',
+     'select count(video._id) from topic_closure, topicvideo, video '
+     'where topic_closure.ancestor = ? and topic_closure.depth < ? and topicvideo.topic_id = topic_closure.descendant '
+     'and topicvideo.video_id = video.readable_id and video.download_status = 2',
+     ('topic', '2'), {}),
+    ('TopicRefreshTask.refresh, ancestors',
+     'select ancestor from topic_closure where descendant = ? and depth > 0 order by depth desc',
+     ('topic',), {}),
+    ('TopicRefreshTask.refresh, seq',
+     'select seq from topic where _id = ?',
+     ('topic',), {}),
+    ('TopicRefreshTask.replaceSubtree, old topics',
+     'create temp table refresh_old_topic_plan as select descendant as _id from main.topic_closure where ancestor = ?',
+     ('topic',), {}),
+    ('TopicRefreshTask.replaceSubtree, changed topics',
+     'select _id from temp.refresh_old_topic union select _id from ka_refresh.topic '
+     'union select ancestor from main.topic_closure where descendant = ? and depth > 0',
+     ('topic',), {'topic': 'lists every topic of the refreshed subtree, which is all of ka_refresh'}),
+    ('TopicRefreshTask.replaceSubtree, changed videos',
+     'select youtube_id from main.video where readable_id in (select video_id from main.topicvideo where topic_id in (select _id from temp.refresh_old_topic)) '
+     'union select youtube_id from ka_refresh.video',
+     (), {'video': 'lists every video of the refreshed subtree, which is all of ka_refresh'}),
+    ('TopicRefreshTask.replaceSubtree, carry download status',
+     carry_download_status('ka_refresh', 'main'),
+     (), {'video': 'visits each video of the refreshed subtree, which is all of ka_refresh'}),
+    ('TopicRefreshTask.replaceSubtree, delete topics',
+     'delete from main.topic where _id in (select _id from temp.refresh_old_topic)',
+     (), {}),
+    ('TopicRefreshTask.replaceSubtree, delete topicvideos',
+     'delete from main.topicvideo where topic_id in (select _id from temp.refresh_old_topic)',
+     (), {}),
+    ('TopicRefreshTask.replaceSubtree, delete closure',
+     'delete from main.topic_closure where descendant in (select _id from temp.refresh_old_topic)',
+     (), {}),
+    ('TopicRefreshTask.replaceSubtree, delete videos',
+     'delete from main.video where readable_id in (select readable_id from ka_refresh.video)',
+     (), {'video': 'reads every video of the refreshed subtree, which is all of ka_refresh'}),
+    ('TopicRefreshTask.replaceSubtree, delete orphaned videos',
+     'delete from main.video where readable_id in (select readable_id from main.video where readable_id not in (select video_id from main.topicvideo))',
+     (), {'video': 'checks every video for a remaining topic'}),
+    ('TopicRefreshTask.replaceSubtree, video counts',
+     "update main.topic set video_count = video_count + ? where _id in (select ancestor from main.topic_closure where descendant = 'topic' and depth > 0)",
+     (1,), {}),
+    ('TopicRefreshTask.replaceSubtree, remove from search',
+     'delete from main.library_search where docid in (select -rowid from main.topic where _id in '
+     '(select _id from temp.refresh_old_topic union select _id from ka_refresh.topic))',
+     (), {'topic': 'lists every topic of the refreshed subtree, which is all of ka_refresh'}),
+    ('TopicRefreshTask.replaceSubtree, remove orphans from search',
+     'delete from main.library_search where docid in (select _id from main.video where readable_id in '
+     '(select readable_id from main.video where readable_id not in (select video_id from main.topicvideo)))',
+     (), {'video': 'checks every video for a remaining topic'}),
+    ('TopicRefreshTask.replaceSubtree, add to search',
+     'insert into main.library_search (docid, title, description) select -rowid, title, description from main.topic '
+     'where parentTopic_id is not null and video_count > 0 and _id in (select _id from ka_refresh.topic)',
+     (), {}),
+    ('TopicRefreshTask.refresh, subtree hash',
+     'select subtree_hash from main.topic where _id = ?',
+     ('topic',), {}),
+    ('TopicRefreshTask.replaceSubtree, downloaded count',
+     'select downloaded_video_count from main.topic where _id = ?',
+     ('topic',), {}),
+    ('DatabaseHelper.recomputeDownloadedVideoCounts, subtree',
+     'update main.topic set downloaded_video_count = '
+     '(select count() from main.topic_closure c, main.topicvideo tv, main.video v '
+     'where c.ancestor = topic._id and tv.topic_id = c.descendant and v.readable_id = tv.video_id and v.download_status = ?) '
+     'where _id in (select descendant from main.topic_closure where ancestor = ?)',
+     (2, 'topic'), {}),
+    ('TopicRefreshTask.replaceSubtree, downloaded counts',
+     'update main.topic set downloaded_video_count = downloaded_video_count + ? where _id in (select ancestor from main.topic_closure where descendant = ? and depth > 0)',
+     (1, 'topic'), {}),
+    ('LibraryUpdaterTask.carryDownloadStatus',
+     carry_download_status('main', 'ka_main'),
+     (), {'video': 'visits every video of the new library'}),
+    # The swap's target is attached as ka_swap; ka_main stands in for it.
+    ('LibraryUpdaterTask.updateChangedDownloadStatus',
+     update_changed_download_status('ka_main', 'main'),
+     (), {}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, changed topics',
+     'create temp table merge_changed_topic_plan as select t._id as _id from ka_temp.topic t left join main.topic m on m._id = t._id '
+     'where m.subtree_hash is null or m.subtree_hash != t.subtree_hash',
+     (), {'t': 'compares every topic of the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, changed videos',
+     'create temp table merge_changed_video_plan as '
+     'select distinct video_id as readable_id from ka_temp.topicvideo where topic_id in (select _id from temp.merge_changed_topic)',
+     (), {}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, removed topics',
+     'select count() from main.topic where _id not in (select _id from ka_temp.topic)',
+     (), {'topic': 'looks for topics missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, removed videos',
+     'select count() from main.video where readable_id not in (select readable_id from ka_temp.video)',
+     (), {'video': 'looks for videos missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, remove topics from search',
+     'delete from main.library_search where docid in (select -rowid from main.topic where _id in '
+     '(select _id from main.topic where _id not in (select _id from ka_temp.topic) or _id in (select _id from temp.merge_changed_topic)))',
+     (), {'topic': 'looks for topics missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, remove videos from search',
+     'delete from main.library_search where docid in (select _id from main.video where readable_id in '
+     '(select readable_id from main.video where readable_id not in (select readable_id from ka_temp.video) or readable_id in (select readable_id from temp.merge_changed_video)))',
+     (), {'video': 'looks for videos missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, topics',
+     'delete from main.topic where _id not in (select _id from ka_temp.topic) or _id in (select _id from temp.merge_changed_topic)',
+     (), {'topic': 'looks for topics missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, topicvideos',
+     'delete from main.topicvideo where topic_id not in (select _id from ka_temp.topic) or topic_id in (select _id from temp.merge_changed_topic)',
+     (), {'topicvideo': 'looks for topics missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, closure',
+     'delete from main.topic_closure where descendant not in (select _id from ka_temp.topic) or descendant in (select _id from temp.merge_changed_topic)',
+     (), {'topic_closure': 'looks for topics missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, videos',
+     'delete from main.video where readable_id not in (select readable_id from ka_temp.video) or readable_id in (select readable_id from temp.merge_changed_video)',
+     (), {'video': 'looks for videos missing from the new library'}),
+    ('LibraryUpdaterTask.mergeChangedSubtrees, insert videos',
+     'insert into main.video (%(c)s) select %(c)s from ka_temp.video where readable_id in (select readable_id from temp.merge_changed_video)' % {'c': VIDEO_COLUMNS},
+     (), {}),
+]
+
+SCAN = re.compile(r'^SCAN (?:TABLE )?(?:\w+\.)?(\S+)(?: AS (\S+))?')
+# A virtual table "scan" with a nonzero plan number is a lookup in the module's own index: for FTS, by docid or
+# by the query words.
+VIRTUAL_LOOKUP = re.compile(r' VIRTUAL TABLE INDEX [1-9]')
+
+def problems(db, sql, args, scans):
+    found = []
+    for row in db.execute('EXPLAIN QUERY PLAN ' + sql, args):
+        detail = row[-1]
+        if 'AUTOMATIC' in detail:
+            found.append(detail)
+            continue
+        m = SCAN.match(detail)
+        if m is None or VIRTUAL_LOOKUP.search(detail):
+            continue
+        name = m.group(2) or m.group(1)
+        if name.startswith('(') or name in SMALL_TABLES or name in scans:
+            continue
+        found.append(detail)
+    return found
+
+def main(argv):
+    logging.basicConfig(level=logging.INFO, format='%(message)s')
+    if len(argv) != 2:
+        logging.error('usage: %s <database>' % argv[0])
+        return 2
+
+    db = sqlite3.connect(argv[1])
+    for schema in ATTACHED:
+        db.execute('ATTACH DATABASE ? AS %s' % schema, (argv[1],))
+    for sql in SETUP:
+        db.execute(sql)
+
+    failures = 0
+    for source, sql, args, scans in QUERIES:
+        try:
+            found = problems(db, sql, args, scans)
+        except sqlite3.Error as e:
+            found = ['error: %s' % e]
+        if found:
+            failures += 1
+            logging.error('FAIL %s\n  %s\n    %s' % (source, sql, '\n    '.join(found)))
+        else:
+            logging.debug('ok   %s' % source)
+
+    logging.info('%d of %d queries need attention' % (failures, len(QUERIES)))
+    return 1 if failures else 0
+
+if __name__ == '__main__':
+    exit(main(sys.argv))
@@ -23,6 +23,7 @@ public interface Constants {
 	public static final String ACTION_BADGE_EARNED = "ACTION_BADGE_EARNED";
 	public static final String ACTION_DOWNLOAD_PROGRESS_UPDATE = "ACTION_DOWNLOAD_PROGRESS_UPDATE";
 	public static final String ACTION_LIBRARY_UPDATE = "ACTION_LIBRARY_UPDATE";
+	public static final String ACTION_TOPIC_UPDATE = "ACTION_TOPIC_UPDATE";
 	public static final String ACTION_UPDATE_DOWNLOAD_STATUS = "ACTION_UPDATE_DOWNLOAD_STATUS";
 	
 	public static final String EXTRA_BADGE = "EXTRA_BADGE";
@@ -35,6 +36,13 @@ public interface Constants {
 	public static final String SETTINGS_NAME = "com.concentricsky.android.khanacademy.SETTINGS";
 	public static final String SETTING_ACKNOWLEDGEMENT = "SETTING_ACKNOWLEDGEMENT";
 	public static final String SETTING_LIBRARY_ETAG = "SETTING_LIBRARY_ETAG";
+	public static final String SETTING_LIBRARY_LAST_CHECK = "SETTING_LIBRARY_LAST_CHECK";
+	public static final String SETTING_LIBRARY_NEXT_CHECK = "SETTING_LIBRARY_NEXT_CHECK";
+	public static final String SETTING_LIBRARY_SPOOL_COMPLETE = "SETTING_LIBRARY_SPOOL_COMPLETE";
+	public static final String SETTING_LIBRARY_SPOOL_ENCODING = "SETTING_LIBRARY_SPOOL_ENCODING";
+	public static final String SETTING_LIBRARY_SPOOL_ETAG = "SETTING_LIBRARY_SPOOL_ETAG";
+	public static final String SETTING_LIBRARY_SPOOL_LENGTH = "SETTING_LIBRARY_SPOOL_LENGTH";
+	public static final String SETTING_LIBRARY_UNCHANGED_COUNT = "SETTING_LIBRARY_UNCHANGED_COUNT";
 	public static final String SETTING_OAUTH_TOKEN = "SETTING_OAUTH_TOKEN";
 	public static final String SETTING_OAUTH_SECRET = "SETTING_OAUTH_SECRET";
 	public static final String SETTING_SHOW_DL_ONLY = "SETTING_SHOW_DL_ONLY";
@@ -74,6 +82,8 @@ public interface Constants {
 	
 	public static final int UPDATE_DELAY_FROM_FIRST_RUN = 60 * 60 * 3;
 	public static final int UPDATE_DELAY_FROM_NETWORK_CONNECT = 4;
+	/** Unchanged library checks double the interval between checks, from one day up to 2^this days. */
+	public static final int UPDATE_MAX_BACKOFF_STEPS = 3;
 	
     public static final int POSITION_UPDATE_DELAY = 333;
     public static final float LOG_INTERVAL_PERCENT = 0.05f;
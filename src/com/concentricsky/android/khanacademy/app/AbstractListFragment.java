@@ -34,6 +34,7 @@ import com.concentricsky.android.khanacademy.data.KADataService;
 import com.concentricsky.android.khanacademy.data.KADataService.ServiceUnavailableException;
 import com.concentricsky.android.khanacademy.data.db.DatabaseHelper;
 import com.concentricsky.android.khanacademy.data.db.EntityBase;
+import com.concentricsky.android.khanacademy.data.db.QueryExecutor;
 import com.concentricsky.android.khanacademy.data.db.Topic;
 import com.concentricsky.android.khanacademy.util.Log;
 import com.concentricsky.android.khanacademy.util.ObjectCallback;
@@ -56,6 +57,7 @@ public abstract class AbstractListFragment<T extends EntityBase> extends android
 	private boolean isShowingDownloadedVideosOnly;
 	private Topic topic;
 	private Cursor topicCursor;
+	private QueryExecutor.Token queries;
 	
 	protected Callbacks getCallbacks() {
 		return callbacks;
@@ -159,6 +161,7 @@ public abstract class AbstractListFragment<T extends EntityBase> extends android
 		
         ListAdapter adapter = buildListAdapter();
         setListAdapter(adapter);
+        queries = new QueryExecutor.Token();
 
 		Activity a = getActivity();
 		try {
@@ -180,6 +183,7 @@ public abstract class AbstractListFragment<T extends EntityBase> extends android
 	@Override
 	public void onDestroyView() {
 		Log.d(LOG_TAG, ".onDestroyView");
+		queries.cancel();
 		if (topicCursor != null) {
 			// This is opened in onActivityCreated.
 			topicCursor.close();
@@ -195,49 +199,52 @@ public abstract class AbstractListFragment<T extends EntityBase> extends android
      * implements ObjectCallback<KADataService>
      */
 	@Override
-	public void call(KADataService service) {
+	public void call(final KADataService service) {
 		// Called when the service becomes available.
-		
-		if (topicId != null) {
-	        DatabaseHelper dbh = service.getHelper();
-			try {
-				Dao<Topic, String> topicDao = dbh.getTopicDao();
-				topic = topicDao.queryForId(topicId);
+		service.getQueryExecutor().submit(queries, "list", new QueryExecutor.Query<Cursor>() {
+			@Override
+			protected Cursor load() throws SQLException {
+				DatabaseHelper dbh = service.getHelper();
+				if (topicId != null) {
+					Dao<Topic, String> topicDao = dbh.getTopicDao();
+					topic = topicDao.queryForId(topicId);
+				}
+				else {
+					topic = service.getRootTopic();
+					topicId = topic.getId();
+				}
 				dao = dbh.getDao(getEntityClass());
-			} catch (SQLException e) {
-				e.printStackTrace();
+				return buildCursor(topicId);
 			}
-		}
-		else {
-			topic = service.getRootTopic();
-			topicId = topic.getId();
-		}
-
-		resetListContents(topicId);
+			
+			@Override
+			protected void onLoaded(Cursor cursor) {
+				resetListContents(cursor);
+			}
+		});
 	}
 	
 	
 	// PRIVATE
 	
-	private void resetListContents(String topicId) {
-    	Log.d(LOG_TAG, "resetListContents");
-    	
-    	AndroidDatabaseResults iterator = null;
+	private Cursor buildCursor(String topicId) throws SQLException {
     	QueryBuilder<T, String> qb = this.dao.queryBuilder();
     	qb = qb.orderBy("seq", true);
-    	try {
-    		Where<T, String> where = qb.where();
-	    	where.eq("parentTopic_id", topicId);
-	    	addToQuery(where);
-	    	PreparedQuery<T> pq = qb.prepare();
-	    	iterator = (AndroidDatabaseResults) dao.iterator(pq).getRawResults();
-	    	if (topicCursor != null) {
-	    		topicCursor.close();
-	    	}
-	    	topicCursor = iterator.getRawCursor();
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+		Where<T, String> where = qb.where();
+    	where.eq("parentTopic_id", topicId);
+    	addToQuery(where);
+    	PreparedQuery<T> pq = qb.prepare();
+    	AndroidDatabaseResults iterator = (AndroidDatabaseResults) dao.iterator(pq).getRawResults();
+    	return iterator.getRawCursor();
+	}
+	
+	private void resetListContents(Cursor cursor) {
+    	Log.d(LOG_TAG, "resetListContents");
+    	
+    	if (topicCursor != null) {
+    		topicCursor.close();
+    	}
+    	topicCursor = cursor;
     	
     	CursorAdapter adapter = (CursorAdapter) getListAdapter();
     	adapter.changeCursor(topicCursor);
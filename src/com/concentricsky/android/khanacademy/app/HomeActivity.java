@@ -23,19 +23,13 @@ import static com.concentricsky.android.khanacademy.Constants.ACTION_TOAST;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_BADGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_MESSAGE;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_TOPIC_ID;
-import static com.concentricsky.android.khanacademy.Constants.REQUEST_CODE_RECURRING_LIBRARY_UPDATE;
 import static com.concentricsky.android.khanacademy.Constants.TAG_LIST_FRAGMENT;
-import static com.concentricsky.android.khanacademy.Constants.UPDATE_DELAY_FROM_FIRST_RUN;
 
 import java.sql.SQLException;
-import java.util.Calendar;
 
-import android.app.Activity;
-import android.app.AlarmManager;
 import android.app.AlertDialog;
 import android.app.Fragment;
 import android.app.FragmentTransaction;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -58,7 +52,9 @@ import com.concentricsky.android.khan.R;
 import com.concentricsky.android.khanacademy.Constants;
 import com.concentricsky.android.khanacademy.MainMenuDelegate;
 import com.concentricsky.android.khanacademy.data.KADataService;
+import com.concentricsky.android.khanacademy.data.LibraryUpdateScheduler;
 import com.concentricsky.android.khanacademy.data.db.Badge;
+import com.concentricsky.android.khanacademy.data.db.QueryExecutor;
 import com.concentricsky.android.khanacademy.data.db.Topic;
 import com.concentricsky.android.khanacademy.data.db.User;
 import com.concentricsky.android.khanacademy.util.Log;
@@ -72,6 +68,7 @@ public class HomeActivity extends KADataServiceProviderActivityBase
 	private MainMenuDelegate mainMenuDelegate;
 	private Menu mainMenu;
 	private Topic topic;
+	private QueryExecutor.Token queries;
 	
 	private BroadcastReceiver receiver = new BroadcastReceiver() {
 		@Override
@@ -116,25 +113,8 @@ public class HomeActivity extends KADataServiceProviderActivityBase
 	
 	private void setupRepeatingLibraryUpdateAlarm() {
 		Log.d(LOG_TAG, "setupRepeatingLibraryUpdateAlarm");
-		AlarmManager am = (AlarmManager) getSystemService(Activity.ALARM_SERVICE);
-
-		Intent intent = new Intent(getApplicationContext(), KADataService.class);
-		intent.setAction(ACTION_LIBRARY_UPDATE);
-		PendingIntent existing = PendingIntent.getService(getApplicationContext(),
-				REQUEST_CODE_RECURRING_LIBRARY_UPDATE, intent, PendingIntent.FLAG_NO_CREATE);
-		boolean alreadyScheduled = existing != null;
-
-		if (!alreadyScheduled) {
-			// Initial delay.
-			Calendar cal = Calendar.getInstance();
-			cal.add(Calendar.SECOND, UPDATE_DELAY_FROM_FIRST_RUN);
-
-			// Schedule the alarm.
-			PendingIntent pendingIntent = PendingIntent.getService(getApplicationContext(),
-					REQUEST_CODE_RECURRING_LIBRARY_UPDATE, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-			Log.d(LOG_TAG, "(re)setting alarm");
-			am.setRepeating(AlarmManager.RTC_WAKEUP, cal.getTimeInMillis(), AlarmManager.INTERVAL_DAY, pendingIntent);
-		}
+		// The scheduler re-arms its own alarm after every check, backing off while the library is unchanged.
+		new LibraryUpdateScheduler(this).ensureScheduled();
 	}
 
 	private boolean userHasAcceptedTOS() {
@@ -214,17 +194,28 @@ public class HomeActivity extends KADataServiceProviderActivityBase
 		
 		mainMenuDelegate = new MainMenuDelegate(this);
 		
+		queries = new QueryExecutor.Token();
 		requestDataService(new ObjectCallback<KADataService>() {
 			@Override
-			public void call(KADataService dataService) {
-				topic = dataService.getRootTopic();
-				if (topic != null) {
-					//  It is important to create the AbstractListFragment programmatically here as opposed to
-					// specifying it in the xml layout.  If it is specified in xml, we end up with an
-					// error about "Content view not yet created" when clicking a list item after restoring
-					// a fragment from the back stack.
-					setListForTopic(topic, TopicListFragment.class, true);
-				}
+			public void call(final KADataService dataService) {
+				dataService.getQueryExecutor().submit(queries, "root", new QueryExecutor.Query<Topic>() {
+					@Override
+					protected Topic load() {
+						return dataService.getRootTopic();
+					}
+					
+					@Override
+					protected void onLoaded(Topic root) {
+						topic = root;
+						if (topic != null) {
+							//  It is important to create the AbstractListFragment programmatically here as opposed to
+							// specifying it in the xml layout.  If it is specified in xml, we end up with an
+							// error about "Content view not yet created" when clicking a list item after restoring
+							// a fragment from the back stack.
+							setListForTopic(topic, TopicListFragment.class, true);
+						}
+					}
+				});
 			}
 		});
 		
@@ -237,6 +228,7 @@ public class HomeActivity extends KADataServiceProviderActivityBase
 	
 	@Override
 	protected void onStop() {
+		queries.cancel();
 		mainMenuDelegate = null;
 		LocalBroadcastManager.getInstance(this).unregisterReceiver(receiver);
 		super.onStop();
@@ -331,24 +323,26 @@ public class HomeActivity extends KADataServiceProviderActivityBase
 	public void onTopicSelected(final String readableId) {
 		requestDataService(new ObjectCallback<KADataService>() {
 			@Override
-			public void call(KADataService dataService) {
-				Topic topic;
-				try {
-					topic = dataService.getHelper().getTopicDao().queryForId(readableId);
-					String kind = topic.getChild_kind();
-					
-					// Should only ever find CHILD_KIND_TOPIC or CHILD_KIND_VIDEO here. TopicListFragment.addToQuery
-					// should filter its query to ensure this is the case.
-					Class<?> activityClass = Topic.CHILD_KIND_TOPIC.equals(kind)
-							? TopicListActivity.class
-							: VideoListActivity.class;
+			public void call(final KADataService dataService) {
+				dataService.getQueryExecutor().submit(queries, "open", new QueryExecutor.Query<Topic>() {
+					@Override
+					protected Topic load() throws SQLException {
+						return dataService.getHelper().getTopicDao().queryForId(readableId);
+					}
 					
-					launchListActivity(readableId, activityClass);
-							
-				} catch (SQLException e) {
-					e.printStackTrace();
-					return;
-				}
+					@Override
+					protected void onLoaded(Topic topic) {
+						String kind = topic.getChild_kind();
+						
+						// Should only ever find CHILD_KIND_TOPIC or CHILD_KIND_VIDEO here. TopicListFragment.addToQuery
+						// should filter its query to ensure this is the case.
+						Class<?> activityClass = Topic.CHILD_KIND_TOPIC.equals(kind)
+								? TopicListActivity.class
+								: VideoListActivity.class;
+						
+						launchListActivity(readableId, activityClass);
+					}
+				});
 			}
 		});
 		
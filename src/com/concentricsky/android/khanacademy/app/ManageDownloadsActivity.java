@@ -20,13 +20,15 @@ package com.concentricsky.android.khanacademy.app;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_BADGE_EARNED;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_DOWNLOAD_PROGRESS_UPDATE;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_LIBRARY_UPDATE;
-import static com.concentricsky.android.khanacademy.Constants.ACTION_OFFLINE_VIDEO_SET_CHANGED;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_TOAST;
+import static com.concentricsky.android.khanacademy.Constants.COL_DL_STATUS;
+import static com.concentricsky.android.khanacademy.Constants.COL_VIDEO_ID;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_BADGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_MESSAGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_STATUS;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_TOPIC_ID;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_VIDEO_ID;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_VIDEO;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -48,8 +50,6 @@ import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v4.content.LocalBroadcastManager;
@@ -74,10 +74,13 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.concentricsky.android.khan.R;
-import com.concentricsky.android.khanacademy.Constants;
 import com.concentricsky.android.khanacademy.data.KADataService;
 import com.concentricsky.android.khanacademy.data.KADataService.ServiceUnavailableException;
 import com.concentricsky.android.khanacademy.data.db.Badge;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus.Change;
+import com.concentricsky.android.khanacademy.data.db.DatabaseHelper;
+import com.concentricsky.android.khanacademy.data.db.QueryExecutor;
 import com.concentricsky.android.khanacademy.data.db.Thumbnail;
 import com.concentricsky.android.khanacademy.data.db.Topic;
 import com.concentricsky.android.khanacademy.data.db.User;
@@ -97,6 +100,8 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 
 	private GridView gridView;
 	private KADataService dataService;
+	private ChangeBus changeBus;
+	private QueryExecutor.Token queries;
 	private ActionMode actionMode;
 	private LocalBroadcastManager broadcastManager;
 	private CursorAdapter displayOptionsAdapter;
@@ -115,10 +120,6 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 			} else if (ACTION_BADGE_EARNED.equals(intent.getAction()) && dataService != null) {
 				Badge badge = (Badge) intent.getSerializableExtra(EXTRA_BADGE);
 				dataService.getAPIAdapter().toastBadge(badge);
-			} else if (Constants.ACTION_OFFLINE_VIDEO_SET_CHANGED.equals(intent.getAction())) {
-				((CursorAdapter) gridView.getAdapter()).changeCursor(getCursor());
-				setCancelButtonEnabled(areDownloadsEnqueued());
-				setupListNavigation();
 			} else if (ACTION_DOWNLOAD_PROGRESS_UPDATE.equals(intent.getAction())) {
 				@SuppressWarnings("unchecked")
 				Map<String, Integer> status = (Map<String, Integer>) intent.getSerializableExtra(EXTRA_STATUS);
@@ -132,6 +133,19 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 		
 	};
 	
+	private ChangeBus.Listener changeListener = new ChangeBus.Listener() {
+		@Override
+		public void onChange(Change change) {
+			if (gridView == null || gridView.getAdapter() == null) {
+				return;
+			}
+			if (change.touches(COL_DL_STATUS)) {
+				setCancelButtonEnabled(areDownloadsEnqueued());
+			}
+			checkGridChangedBy(change);
+		}
+	};
+	
 	private ActionBar.OnNavigationListener navListener = new ActionBar.OnNavigationListener() {
 		@Override
 		public boolean onNavigationItemSelected(int itemPosition, long itemId) {
@@ -157,35 +171,41 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 			// Otherwise, we have a topic id.
 			Cursor c = (Cursor) grid.getItemAtPosition(position);
 			
-			String videoId = c.getString(c.getColumnIndex("readable_id"));
-			Video video = new Video();
-			video.setReadable_id(videoId);
+			final String videoId = c.getString(c.getColumnIndex("readable_id"));
+			final String topicTitle = topicTitleFilter;
 			
-			String topicId = null;
-			if (topicTitleFilter != null) {
-				try {
-					List<Topic> topics = dataService.getHelper().getTopicDao().queryForEq("title", topicTitleFilter);
-					if (topics != null && topics.size() > 0) {
-						topicId = topics.get(0).getId();
+			dataService.getQueryExecutor().submit(queries, "open", new QueryExecutor.Query<String>() {
+				@Override
+				protected String load() throws SQLException {
+					String topicId = null;
+					if (topicTitle != null) {
+						List<Topic> topics = dataService.getHelper().getTopicDao().queryForEq("title", topicTitle);
+						if (topics != null && topics.size() > 0) {
+							topicId = topics.get(0).getId();
+						}
+					}
+					
+					if (topicId == null) {
+						String sql = "select topic_id from topicvideo where video_id=? limit 1";
+						String[] selectionArgs = {videoId};
+						Cursor cursor = dataService.getHelper().getReadConnection().rawQuery(sql, selectionArgs);
+						if (cursor.moveToFirst()) {
+							topicId = cursor.getString(0);
+						}
+						cursor.close();
 					}
-				} catch (SQLException e) {
-					e.printStackTrace();
+					return topicId;
 				}
-			}
-			
-			if (topicId == null) {
-				String sql = "select topic_id from topicvideo where video_id=? limit 1";
-				String[] selectionArgs = {videoId};
-				c = dataService.getHelper().getReadableDatabase().rawQuery(sql, selectionArgs);
-				if (c.moveToFirst()) {
-					topicId = c.getString(0);
+				
+				@Override
+				protected void onLoaded(String topicId) {
+					if (topicId != null) {
+						Video video = new Video();
+						video.setReadable_id(videoId);
+						launchVideoDetailActivity(video, topicId);
+					}
 				}
-				c.close();
-			}
-			
-			if (topicId != null) {
-				launchVideoDetailActivity(video, topicId);
-			}
+			});
 		}
 	};
 	
@@ -265,6 +285,7 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 		
 		gridView.setEmptyView(emptyView);
 		
+		queries = new QueryExecutor.Token();
 		requestDataService(new ObjectCallback<KADataService>() {
 			@Override
 			public void call(final KADataService dataService) {
@@ -272,18 +293,7 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 				
 				CursorAdapter adapter = new Adapter(ManageDownloadsActivity.this, null, 0, dataService.getThumbnailManager());
 				gridView.setAdapter(adapter);
-	
-				new AsyncTask<Void, Void, Cursor>() {
-					@Override
-					protected Cursor doInBackground(Void... arg) {
-						return getCursor();
-					}
-					
-					@Override
-					protected void onPostExecute(Cursor cursor) {
-						((CursorAdapter) gridView.getAdapter()).changeCursor(cursor);
-					}
-				}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+				loadGrid();
 				
 				final ActionBar ab = getActionBar();
 				ab.setDisplayHomeAsUpEnabled(true);
@@ -293,11 +303,13 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 				
 				setupListNavigation();
 				
+				changeBus = dataService.getChangeBus();
+				changeBus.register(TABLE_VIDEO, changeListener);
+				
 				// The receiver performs actions that require a dataService, so register it here.
 				IntentFilter filter = new IntentFilter();
 				filter.addAction(ACTION_LIBRARY_UPDATE);
 				filter.addAction(ACTION_BADGE_EARNED);
-				filter.addAction(ACTION_OFFLINE_VIDEO_SET_CHANGED);
 				filter.addAction(ACTION_DOWNLOAD_PROGRESS_UPDATE);
 				filter.addAction(ACTION_TOAST);
 				broadcastManager.registerReceiver(receiver, filter);
@@ -334,6 +346,7 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 	
 	@Override
 	protected void onStop() {
+		queries.cancel();
 		getActionBar().setListNavigationCallbacks(null, null);
 		
 		gridView.setMultiChoiceModeListener(null);
@@ -356,11 +369,74 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 			}
 		}
 		
+		if (changeBus != null) {
+			changeBus.unregister(changeListener);
+		}
 		broadcastManager.unregisterReceiver(receiver);
 		super.onStop();
 	}
 	
-	private Cursor getCursor(SQLiteOpenHelper helper, User currentUser, String topicTitle) {
+	/**
+	 * Requery the grid if a change to videos alters it: if it started, finished or removed a download, or
+	 * changed a listed video. Changes to videos that aren't and won't be downloaded are skipped.
+	 */
+	private void checkGridChangedBy(final Change change) {
+		if (change.isWholeTable()) {
+			refreshGrid();
+			return;
+		}
+		Cursor cursor = ((CursorAdapter) gridView.getAdapter()).getCursor();
+		if (cursor == null || cursor.isClosed()) {
+			// Still loading; that query will see the change.
+			return;
+		}
+		// The cursor was filled when loaded, so this reads memory.
+		final Set<String> listed = change.touchedRows(cursor, COL_VIDEO_ID);
+		if (!change.touchesOnly(COL_DL_STATUS) && !listed.isEmpty()) {
+			refreshGrid();
+			return;
+		}
+		if (!change.touches(COL_DL_STATUS)) {
+			return;
+		}
+		// Every change's check counts, so these aren't slotted: a later check mustn't swallow an earlier one's requery.
+		dataService.getQueryExecutor().submit(queries, null, new QueryExecutor.Query<Set<String>>() {
+			@Override
+			protected Set<String> load() {
+				return dataService.getHelper().filterByDownloadStatus(change.getKeys(), Video.DL_STATUS_IN_PROGRESS, null);
+			}
+			
+			@Override
+			protected void onLoaded(Set<String> downloads) {
+				// The topic title filter isn't applied here, so a download starting outside it requeries needlessly; that's rare.
+				if (!listed.equals(downloads)) {
+					refreshGrid();
+				}
+			}
+		});
+	}
+	
+	private void refreshGrid() {
+		Log.d(LOG_TAG, "refreshGrid");
+		loadGrid();
+		setupListNavigation();
+	}
+	
+	private void loadGrid() {
+		dataService.getQueryExecutor().submit(queries, "list", new QueryExecutor.Query<Cursor>() {
+			@Override
+			protected Cursor load() {
+				return getCursor();
+			}
+			
+			@Override
+			protected void onLoaded(Cursor cursor) {
+				((CursorAdapter) gridView.getAdapter()).changeCursor(cursor);
+			}
+		});
+	}
+	
+	private Cursor getCursor(DatabaseHelper helper, User currentUser, String topicTitle) {
     	String userId = currentUser == null ? "" : currentUser.getNickname();
     	
     	String sql = "select distinct(video._id) as _id, video.youtube_id, video.readable_id, video.title, video.dlm_id " +
@@ -379,7 +455,7 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
     	}
     	sql += "order by video.parentTopic_id, video.seq";
     	
-    	return helper.getReadableDatabase().rawQuery(sql, selectionArgs);
+    	return helper.getReadConnection().rawQuery(sql, selectionArgs);
 	}
 	
 	/**
@@ -395,19 +471,7 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 	
 	private void filterByTopicTitle(String topicTitle) {
 		topicTitleFilter = topicTitle;
-		
-		new AsyncTask<Void, Void, Cursor>() {
-			@Override
-			protected Cursor doInBackground(Void... arg) {
-				Cursor cursor = getCursor();
-				return cursor;
-			}
-			
-			@Override
-			protected void onPostExecute(Cursor cursor) {
-				((CursorAdapter) gridView.getAdapter()).changeCursor(cursor);
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		loadGrid();
 	}
 	
 	private void setupListNavigation() {
@@ -417,23 +481,23 @@ public class ManageDownloadsActivity extends KADataServiceProviderActivityBase {
 			getActionBar().setListNavigationCallbacks(displayOptionsAdapter, navListener);
 		}
 		
-		new AsyncTask<Void, Void, Cursor>() {
+		dataService.getQueryExecutor().submit(queries, "navigation", new QueryExecutor.Query<Cursor>() {
 			@Override
-			protected Cursor doInBackground(Void... arg0) {
+			protected Cursor load() {
 				return getDisplayOptionsCursor(dataService.getHelper());
 			}
 			
 			@Override
-			protected void onPostExecute(Cursor cursor) {
+			protected void onLoaded(Cursor cursor) {
 				displayOptionsAdapter.changeCursor(cursor);
 			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		});
 	}
 				
-	private Cursor getDisplayOptionsCursor(SQLiteOpenHelper helper) {
-		SQLiteDatabase db = helper.getReadableDatabase();
+	private Cursor getDisplayOptionsCursor(DatabaseHelper helper) {
+		SQLiteDatabase db = helper.getReadConnection();
 		
-		String sql = "select distinct topic._id as _id, topic.title as title from topic, topicvideo, video where video.download_status>? and topicvideo.video_id=video.readable_id and topicvideo.topic_id=topic._id group by title";
+		String sql = "select distinct topic._id as _id, topic.title as title from topic, topicvideo, video where video.download_status>? and topicvideo.video_id=video.readable_id and topicvideo.topic_id=topic._id group by topic.title";
 		String[] selectionArgs = {String.valueOf(Video.DL_STATUS_NOT_STARTED)};
 		Cursor mainCursor = db.rawQuery(sql, selectionArgs);
 		
@@ -23,10 +23,9 @@ import static com.concentricsky.android.khanacademy.Constants.ACTION_TOAST;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_BADGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_MESSAGE;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_TOPIC_ID;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_TOPIC;
 
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
 
 import android.app.ActionBar;
 import android.content.BroadcastReceiver;
@@ -59,6 +58,9 @@ import com.concentricsky.android.khanacademy.Constants.Direction;
 import com.concentricsky.android.khanacademy.MainMenuDelegate;
 import com.concentricsky.android.khanacademy.data.KADataService;
 import com.concentricsky.android.khanacademy.data.db.Badge;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus.Change;
+import com.concentricsky.android.khanacademy.data.db.QueryExecutor;
 import com.concentricsky.android.khanacademy.data.db.Thumbnail;
 import com.concentricsky.android.khanacademy.data.db.Topic;
 import com.concentricsky.android.khanacademy.data.db.User;
@@ -86,21 +88,16 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 	private MainMenuDelegate mainMenuDelegate;
 	private Menu mainMenu;
 	private KADataService dataService;
+	private ChangeBus changeBus;
 	private Cursor topicCursor;
+	private QueryExecutor.Token queries;
 	
 	private BroadcastReceiver receiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			if (ACTION_LIBRARY_UPDATE.equals(intent.getAction()) && topic != null) {
 				Log.d(LOG_TAG, "library update broadcast received");
-				TopicGridAdapter adapter = getUnwrappedAdapter();
-				if (adapter != null) {
-					if (topicCursor != null) {
-						topicCursor.close();
-					}
-					topicCursor = buildCursor(topicId);
-					adapter.changeCursor(topicCursor);
-				}
+				requery();
 			} else if (ACTION_BADGE_EARNED.equals(intent.getAction()) && dataService != null) {
 				Badge badge = (Badge) intent.getSerializableExtra(EXTRA_BADGE);
 				dataService.getAPIAdapter().toastBadge(badge);
@@ -111,6 +108,112 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 		
 	};
 
+	private ChangeBus.Listener changeListener = new ChangeBus.Listener() {
+		@Override
+		public void onChange(Change change) {
+			if (topic == null) {
+				return;
+			}
+			// Refreshing an ancestor replaces its whole subtree, so that reports this topic too.
+			if (change.isWholeTable() || change.touchesRow(topicId) || !change.touchedRows(topicCursor, "_id").isEmpty()) {
+				Log.d(LOG_TAG, "topics changed: " + change);
+				requery();
+			}
+		}
+	};
+	
+	private void loadTopic() {
+		dataService.getQueryExecutor().submit(queries, "topic", new QueryExecutor.Query<Topic>() {
+			@Override
+			protected Topic load() throws SQLException {
+				dao = dataService.getHelper().getTopicDao();
+				return topicId != null ? dao.queryForId(topicId) : dataService.getRootTopic();
+			}
+			
+			@Override
+			protected void onLoaded(Topic result) {
+				// DEBUG
+				if (result == null) return;
+				
+				topic = result;
+				topicId = topic.getId();
+				showTopic();
+			}
+		});
+	}
+	
+	private void showTopic() {
+		// header
+		headerView = findViewById(R.id.header_topic_list);
+
+		((TextView) headerView.findViewById(R.id.header_video_list_title)).setText(topic.getTitle());
+		
+		String desc = topic.getDescription();
+		TextView descView = (TextView) headerView.findViewById(R.id.header_video_list_description);
+		if (desc != null && desc.length() > 0) {
+			descView.setText(Html.fromHtml(desc));
+			descView.setVisibility(View.VISIBLE);
+		} else {
+			descView.setVisibility(View.GONE);
+		}
+		
+		// Child count for this parent topic.
+		boolean videoChildren = Topic.CHILD_KIND_VIDEO.equals(topic.getChild_kind());
+		int count = topic.getChild_count();
+		String countFormat = getString(videoChildren ? R.string.format_video_count : R.string.format_topic_count);
+		
+		// Set header count string.
+		((TextView) headerView.findViewById(R.id.header_video_list_count)).setText(
+				String.format(countFormat, count));
+		
+		final ImageView thumb = (ImageView) headerView.findViewById(R.id.header_video_list_thumbnail);
+		if (thumb != null) {
+			new AsyncTask<Void, Void, Bitmap>() {
+				@Override public Bitmap doInBackground(Void... arg) {
+					Bitmap bmp = thumbnailManager.getThumbnail(TopicListActivity.this.topic.getThumb_id(), Thumbnail.QUALITY_SD);
+					return bmp;
+				}
+				@Override public void onPostExecute(Bitmap bmp) {
+					thumb.setImageBitmap(bmp);
+				}
+			}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		}
+		
+		// list
+		gridView.setAdapter(new TopicGridAdapter(null));
+		requery();
+		
+		// Request the topic and its children be updated from the api. The root is left to full library updates.
+		if (topic.getParentTopic() != null) {
+			dataService.refreshTopic(topic.getId());
+		}
+	}
+	
+	private void requery() {
+		if (getUnwrappedAdapter() == null) {
+			return;
+		}
+		dataService.getQueryExecutor().submit(queries, "list", new QueryExecutor.Query<Cursor>() {
+			@Override
+			protected Cursor load() throws SQLException {
+				// The update may have swapped in a new database, and with it a new helper.
+				dao = dataService.getHelper().getTopicDao();
+				return buildCursor(topicId);
+			}
+			
+			@Override
+			protected void onLoaded(Cursor cursor) {
+				TopicGridAdapter adapter = getUnwrappedAdapter();
+				if (adapter == null) {
+					discard(cursor);
+					return;
+				}
+				topicCursor = cursor;
+				adapter.changeCursor(topicCursor);
+			}
+		});
+	}
+	
 	// Used to avoid touching the ui with AsyncTask callbacks after the ui is no longer available.
 	boolean stopped = false;
 	
@@ -143,85 +246,16 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 		ab.setDisplayHomeAsUpEnabled(true);
 		ab.setTitle("Topics");
 		
+		queries = new QueryExecutor.Token();
 		requestDataService(new ObjectCallback<KADataService>() {
 			@Override
 			public void call(final KADataService dataService) {
 				TopicListActivity.this.dataService = dataService;
+				changeBus = dataService.getChangeBus();
+				changeBus.register(TABLE_TOPIC, changeListener);
 				
-				try {
-					thumbnailManager = dataService.getThumbnailManager();
-					
-					dao = dataService.getHelper().getTopicDao();
-					if (topicId != null) {
-						topic = dao.queryForId(topicId);
-					}
-					else {
-						topic = dataService.getRootTopic();
-						topicId = topic.getId();
-					}
-					
-					// DEBUG
-					if (topic == null) return;
-					
-					// header
-					headerView = findViewById(R.id.header_topic_list);
-		
-					((TextView) headerView.findViewById(R.id.header_video_list_title)).setText(topic.getTitle());
-					
-					String desc = topic.getDescription();
-					TextView descView = (TextView) headerView.findViewById(R.id.header_video_list_description);
-					if (desc != null && desc.length() > 0) {
-						descView.setText(Html.fromHtml(desc));
-						descView.setVisibility(View.VISIBLE);
-					} else {
-						descView.setVisibility(View.GONE);
-					}
-					
-					// Find child count for this parent topic.
-					boolean videoChildren = Topic.CHILD_KIND_VIDEO.equals(topic.getChild_kind());
-					String[] idArg = {topic.getId()};
-					String sql = videoChildren ? "select count() from topicvideo where topic_id=?"
-											   : "select count() from topic where parentTopic_id=?";
-					int count = (int) dao.queryRawValue(sql, idArg);
-					String countFormat = getString(videoChildren ? R.string.format_video_count : R.string.format_topic_count);
-					
-					// Set header count string.
-					((TextView) headerView.findViewById(R.id.header_video_list_count)).setText(
-							String.format(countFormat, count));
-					
-					final ImageView thumb = (ImageView) headerView.findViewById(R.id.header_video_list_thumbnail);
-					if (thumb != null) {
-						new AsyncTask<Void, Void, Bitmap>() {
-							@Override public Bitmap doInBackground(Void... arg) {
-								Bitmap bmp = thumbnailManager.getThumbnail(TopicListActivity.this.topic.getThumb_id(), Thumbnail.QUALITY_SD);
-								return bmp;
-							}
-							@Override public void onPostExecute(Bitmap bmp) {
-								thumb.setImageBitmap(bmp);
-							}
-						}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-					}
-							
-					// list
-					if (topicCursor != null) {
-						topicCursor.close();
-					}
-					topicCursor = buildCursor(topicId);
-					
-					ListAdapter adapter = new TopicGridAdapter(topicCursor);
-					gridView.setAdapter(adapter);
-					
-					// Request the topic and its children be updated from the api.
-					List<Topic> children = dao.queryForEq("parentTopic_id", topic.getId());
-					List<String> toUpdate = new ArrayList<String>();
-					for (Topic child : children) {
-						toUpdate.add(child.getId());
-					}
-					toUpdate.add(topic.getId());
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-				
+				thumbnailManager = dataService.getThumbnailManager();
+				loadTopic();
 			}
 		});
 		
@@ -236,6 +270,7 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 	public void onStop() {
 		Log.d(LOG_TAG, "onStop");
 		stopped = true;
+		queries.cancel();
 		
 		if (gridView != null) {
 			gridView.setOnItemClickListener(null);
@@ -261,6 +296,9 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 			}
 		}
 		
+		if (changeBus != null) {
+			changeBus.unregister(changeListener);
+		}
 		LocalBroadcastManager.getInstance(this).unregisterReceiver(receiver);
 		receiver = null;
 		
@@ -318,26 +356,30 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 				// Not sure what to do.
 				launchHomeActivity();
 			}
+			else if (topic.getParentTopic() == null) {
+				// This is the root topic. How did that happen?
+				launchHomeActivity();
+			}
 			else {
-				Topic parentTopic = topic.getParentTopic();
-				try {
-					dataService.getHelper().getTopicDao().refresh(parentTopic);
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-				if (parentTopic == null) {
-					// This is the root topic. How did that happen?
-					launchHomeActivity();
-				}
-				else {
-					if (parentTopic.getParentTopic() == null) {
-						// The parent is the root topic.
-						launchHomeActivity();
+				dataService.getQueryExecutor().submit(queries, "parent", new QueryExecutor.Query<Topic>() {
+					@Override
+					protected Topic load() throws SQLException {
+						Topic parentTopic = topic.getParentTopic();
+						dataService.getHelper().getTopicDao().refresh(parentTopic);
+						return parentTopic;
 					}
-					else {
-						launchListActivity(parentTopic.getId(), TopicListActivity.class, Direction.BACKWARD);
+					
+					@Override
+					protected void onLoaded(Topic parentTopic) {
+						if (parentTopic.getParentTopic() == null) {
+							// The parent is the root topic.
+							launchHomeActivity();
+						}
+						else {
+							launchListActivity(parentTopic.getId(), TopicListActivity.class, Direction.BACKWARD);
+						}
 					}
-				}
+				});
 			}
 			return true;
 		default:
@@ -389,7 +431,7 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 	private class Renderer extends ThumbnailViewRenderer {
 
 		private CursorAdapter mAdapter;
-		private int titleColumn, childKindColumn, idColumn;
+		private int titleColumn, childKindColumn, childCountColumn;
 		private boolean prepared = false;
 		
 		public Renderer(CursorAdapter adapter, ThumbnailManager thumbnailManager, int cacheCapacity) {
@@ -410,25 +452,14 @@ public class TopicListActivity extends KADataServiceProviderActivityBase {
 			if (!prepared) {
 				titleColumn = c.getColumnIndex("title");
 				childKindColumn = c.getColumnIndex("child_kind");
-				idColumn = c.getColumnIndex("_id");
+				childCountColumn = c.getColumnIndex("child_count");
 				prepared = true;
 			}
 			
 			String title = c.getString(titleColumn);
 			boolean videoChildren = Topic.CHILD_KIND_VIDEO.equals(c.getString(childKindColumn));
 			String countFormat = getString(videoChildren ? R.string.format_video_count : R.string.format_topic_count);
-			String[] idArg = {c.getString(idColumn)};
-			String sql = videoChildren ? "select count() from topicvideo where topic_id=?"
-									   : "select count() from topic where parentTopic_id=?";
-			int count = 0;
-			try {
-				// TODO : Denormalize the child count so we don't need to query here.
-				count = (int) dao.queryRawValue(sql, idArg);
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
-			
-			String countString = String.format(countFormat, count);
+			String countString = String.format(countFormat, c.getInt(childCountColumn));
 			
 			descView.setVisibility(View.GONE);
 			titleView.setText(title);
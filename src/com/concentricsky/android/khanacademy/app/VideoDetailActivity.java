@@ -132,6 +132,8 @@ public class VideoDetailActivity extends KADataServiceProviderActivityBase
 	private boolean saving = false;
 	
 	private int desiredSeekPosition;
+	/** Where the intent asked to start, in ms, until the video is prepared there; -1 for where the user left off. */
+	private int requestedSeekPosition = -1;
 	private boolean isVideoPlayerPrepared;
 	
 	private Handler handler = new Handler();
@@ -183,6 +185,12 @@ public class VideoDetailActivity extends KADataServiceProviderActivityBase
 				: intent != null && intent.hasExtra(PARAM_TOPIC_ID)
 				? intent.getStringExtra(PARAM_TOPIC_ID)
 				: null;
+		
+		// A caller may ask to start somewhere in particular, such as at a caption search hit.
+		requestedSeekPosition = 
+				savedInstanceState == null && intent != null
+				? intent.getIntExtra(PARAM_VIDEO_POSITION, -1)
+				: -1;
 				
 		requestDataService(new ObjectCallback<KADataService>() {
 			@Override
@@ -486,6 +494,7 @@ public class VideoDetailActivity extends KADataServiceProviderActivityBase
 		shouldShowVideoControls = true;
 		setControlsVisible(getNavVisibility());
 		videoFragment.seekTo(desiredSeekPosition);
+		requestedSeekPosition = -1;
 	}
 	
 	@Override
@@ -558,7 +567,12 @@ public class VideoDetailActivity extends KADataServiceProviderActivityBase
 	private void restoreVideoProgress() {
 		Log.d(LOG_TAG, "restoreVideoProgress");
 		desiredSeekPosition = 0;
-		if (userVideo != null) {
+		if (requestedSeekPosition >= 0) {
+			desiredSeekPosition = requestedSeekPosition;
+			if (isVideoPlayerPrepared) {
+				videoFragment.seekTo(desiredSeekPosition);
+			}
+		} else if (userVideo != null) {
 			int sec = userVideo.getLast_second_watched();
 			if (video.getDuration() - sec > 1) {
 				desiredSeekPosition = sec * 1000;
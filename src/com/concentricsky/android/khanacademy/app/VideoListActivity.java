@@ -20,20 +20,24 @@ package com.concentricsky.android.khanacademy.app;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_BADGE_EARNED;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_DOWNLOAD_PROGRESS_UPDATE;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_LIBRARY_UPDATE;
-import static com.concentricsky.android.khanacademy.Constants.ACTION_OFFLINE_VIDEO_SET_CHANGED;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_TOAST;
+import static com.concentricsky.android.khanacademy.Constants.COL_DL_STATUS;
+import static com.concentricsky.android.khanacademy.Constants.COL_VIDEO_ID;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_BADGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_MESSAGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_STATUS;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_SHOW_DL_ONLY;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_TOPIC_ID;
 import static com.concentricsky.android.khanacademy.Constants.PARAM_VIDEO_ID;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_TOPIC;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_VIDEO;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -73,6 +77,9 @@ import com.concentricsky.android.khan.R;
 import com.concentricsky.android.khanacademy.MainMenuDelegate;
 import com.concentricsky.android.khanacademy.data.KADataService;
 import com.concentricsky.android.khanacademy.data.db.Badge;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus.Change;
+import com.concentricsky.android.khanacademy.data.db.QueryExecutor;
 import com.concentricsky.android.khanacademy.data.db.Thumbnail;
 import com.concentricsky.android.khanacademy.data.db.Topic;
 import com.concentricsky.android.khanacademy.data.db.User;
@@ -103,7 +110,9 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 	private MainMenuDelegate mainMenuDelegate;
 	private Menu mainMenu;
 	private KADataService dataService;
+	private ChangeBus changeBus;
 	private Cursor topicCursor;
+	private QueryExecutor.Token queries;
 	private ExecutorService thumbExecutor;
 	
 	private BroadcastReceiver receiver = new BroadcastReceiver() {
@@ -121,8 +130,6 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 				VideoAdapter adapter = (VideoAdapter) listView.getAdapter();
 				adapter.setStatus(status);
 				adapter.updateBars();
-			} else if (ACTION_OFFLINE_VIDEO_SET_CHANGED.equals(intent.getAction()) && listView != null) {
-				resetListContents(topicId);
 			} else if (ACTION_TOAST.equals(intent.getAction())) {
 				Toast.makeText(VideoListActivity.this, intent.getStringExtra(EXTRA_MESSAGE), Toast.LENGTH_SHORT).show();
 			}
@@ -130,6 +137,23 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 		
 	};
 	
+	private ChangeBus.Listener changeListener = new ChangeBus.Listener() {
+		@Override
+		public void onChange(Change change) {
+			if (listView == null || topic == null) {
+				return;
+			}
+			if (TABLE_TOPIC.equals(change.table)) {
+				if (change.touchesRow(topicId)) {
+					Log.d(LOG_TAG, "topic changed: " + change);
+					loadTopic();
+				}
+			} else {
+				checkListChangedBy(change);
+			}
+		}
+	};
+	
 	// Used to avoid touching the ui with AsyncTask callbacks after the ui is no longer available.
 	boolean stopped = false;
 	
@@ -241,40 +265,28 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 		ab.setListNavigationCallbacks(displayOptionsAdapter, navListener);
 		ab.setSelectedNavigationItem(isShowingDownloadedVideosOnly ? 1 : 0);
 		
+		queries = new QueryExecutor.Token();
 		requestDataService(new ObjectCallback<KADataService>() {
 			@Override
 			public void call(KADataService dataService) {
 				VideoListActivity.this.dataService = dataService;
 				
-				if (topicId != null) {
-					Dao<Topic, String> topicDao;
-					try {
-						topicDao = dataService.getHelper().getTopicDao();
-						topic = topicDao.queryForId(topicId);
-					} catch (SQLException e) {
-						e.printStackTrace();
-					}
-				}
-				else {
-					Log.e(LOG_TAG, "Topic id not set for video list");
-					topic = dataService.getRootTopic();
-					topicId = topic.getId();
-				}
-				
 				thumbnailManager = dataService.getThumbnailManager();
 				api = dataService.getAPIAdapter();
 				api.registerUserUpdateListener(userUpdateListener);
+				changeBus = dataService.getChangeBus();
+				changeBus.register(TABLE_VIDEO, changeListener);
+				changeBus.register(TABLE_TOPIC, changeListener);
 				
-				// This instead happens in ActionBar.OnNavigationListener#onNavigationItemSelected, which
-				// fires after onResume.
-//				setParentTopic(topic);
+				// Shows the topic once loaded. ActionBar.OnNavigationListener#onNavigationItemSelected, which
+				// fires after onResume, shows it too if it is loaded by then.
+				loadTopic();
 			}
 		});
 				
 		IntentFilter filter = new IntentFilter();
 		filter.addAction(ACTION_LIBRARY_UPDATE);
 		filter.addAction(ACTION_BADGE_EARNED);
-		filter.addAction(ACTION_OFFLINE_VIDEO_SET_CHANGED);
 		filter.addAction(ACTION_DOWNLOAD_PROGRESS_UPDATE);
 		filter.addAction(ACTION_TOAST);
 		LocalBroadcastManager.getInstance(this).registerReceiver(receiver, filter);
@@ -285,6 +297,7 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 	protected void onStop() {
 		Log.d(LOG_TAG, "onStop");
 		stopped = true;
+		queries.cancel();
 		
 		getActionBar().setListNavigationCallbacks(null, null);
 		if (listView != null) {
@@ -302,6 +315,9 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 		if (api != null) {
 			api.unregisterUserUpdateListener(userUpdateListener);
 		}
+		if (changeBus != null) {
+			changeBus.unregister(changeListener);
+		}
 		mainMenuDelegate = null;
 		LocalBroadcastManager.getInstance(this).unregisterReceiver(receiver);
 		thumbExecutor.shutdownNow();
@@ -353,26 +369,30 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 				// Not sure what to do.
 				launchHomeActivity();
 			}
+			else if (topic.getParentTopic() == null) {
+				// This is the root topic. How did that happen?
+				launchHomeActivity();
+			}
 			else {
-				Topic parentTopic = topic.getParentTopic();
-				try {
-					dataService.getHelper().getTopicDao().refresh(parentTopic);
-				} catch (SQLException e) {
-					e.printStackTrace();
-				}
-				if (parentTopic == null) {
-					// This is the root topic. How did that happen?
-					launchHomeActivity();
-				}
-				else {
-					if (parentTopic.getParentTopic() == null) {
-						// The parent is the root topic.
-						launchHomeActivity();
+				dataService.getQueryExecutor().submit(queries, "parent", new QueryExecutor.Query<Topic>() {
+					@Override
+					protected Topic load() throws SQLException {
+						Topic parentTopic = topic.getParentTopic();
+						dataService.getHelper().getTopicDao().refresh(parentTopic);
+						return parentTopic;
 					}
-					else {
-						launchListActivity(parentTopic.getId(), TopicListActivity.class);
+					
+					@Override
+					protected void onLoaded(Topic parentTopic) {
+						if (parentTopic.getParentTopic() == null) {
+							// The parent is the root topic.
+							launchHomeActivity();
+						}
+						else {
+							launchListActivity(parentTopic.getId(), TopicListActivity.class);
+						}
 					}
-				}
+				});
 			}
 			return true;
 		case DOWNLOAD_ITEM_ID:
@@ -384,42 +404,48 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 	}
 	
 	private void confirmAndDownloadAll() {
-		Dao<Video, String> videoDao;
-		try {
-			videoDao = dataService.getHelper().getVideoDao();
-			// TODO : Instead, startService with a topicId and let the service background the lookup.
-			//        This would take some callback juggling, though, as we want the count available for the dialog.
-			final List<Video> toDownload = videoDao.queryRaw(
-					"select video.* from video, topicvideo where topicvideo.video_id=video.readable_id and topicvideo.topic_id=? and video.download_status<?",
-					videoDao.getRawRowMapper(), topicId, String.valueOf(Video.DL_STATUS_COMPLETE)).getResults();
-			
-			String msg = "";
-			int size = toDownload.size();
-			switch (size) {
-			case 0:
-			case 1:
-				dataService.getOfflineVideoManager().downloadAll(toDownload);
-				return;
-			case 2:
-				msg = getString(R.string.msg_download_both);
-				break;
-			default:
-				msg = String.format(getString(R.string.msg_download_all), toDownload.size());
+		final String topicId = this.topicId;
+		dataService.getQueryExecutor().submit(queries, "download all", new QueryExecutor.Query<List<Video>>() {
+			@Override
+			protected List<Video> load() throws SQLException {
+				Dao<Video, String> videoDao = dataService.getHelper().getVideoDao();
+				return videoDao.queryRaw(
+						"select video.* from video, topicvideo where topicvideo.video_id=video.readable_id and topicvideo.topic_id=? and video.download_status<?",
+						videoDao.getRawRowMapper(), topicId, String.valueOf(Video.DL_STATUS_COMPLETE)).getResults();
 			}
 			
-		    new AlertDialog.Builder(VideoListActivity.this)
+			@Override
+			protected void onLoaded(List<Video> toDownload) {
+				confirmAndDownload(toDownload);
+			}
+		});
+	}
+	
+	private void confirmAndDownload(final List<Video> toDownload) {
+		String msg = "";
+		int size = toDownload.size();
+		switch (size) {
+		case 0:
+		case 1:
+			dataService.getOfflineVideoManager().downloadAll(toDownload);
+			return;
+		case 2:
+			msg = getString(R.string.msg_download_both);
+			break;
+		default:
+			msg = String.format(getString(R.string.msg_download_all), toDownload.size());
+		}
+		
+	    new AlertDialog.Builder(VideoListActivity.this)
 	        .setMessage(msg)
 	        .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
 	        	@Override
 	            public void onClick(DialogInterface dialog, int id) {
-					dataService.getOfflineVideoManager().downloadAll(toDownload);
+				dataService.getOfflineVideoManager().downloadAll(toDownload);
 	            }
 	        })
 	        .setNegativeButton(android.R.string.no, null)
 	        .show();
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
 	}
 	
 	private AdapterView.OnItemClickListener clickListener = new AdapterView.OnItemClickListener() {
@@ -472,6 +498,24 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 		return null;
 	}
 	
+	private void loadTopic() {
+		dataService.getQueryExecutor().submit(queries, "topic", new QueryExecutor.Query<Topic>() {
+			@Override
+			protected Topic load() throws SQLException {
+				if (topicId != null) {
+					return dataService.getHelper().getTopicDao().queryForId(topicId);
+				}
+				Log.e(LOG_TAG, "Topic id not set for video list");
+				return dataService.getRootTopic();
+			}
+			
+			@Override
+			protected void onLoaded(Topic result) {
+				setParentTopic(result);
+			}
+		});
+	}
+	
 	private void setParentTopic(Topic topic) {
 		this.topic = topic;
 		
@@ -504,22 +548,76 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 				}.execute();
 			}
 
-			String countFormat;
-			int param;
-			if (isShowingDownloadedVideosOnly()) {
-				countFormat = getString(R.string.format_downloaded_count);
-				param = dataService.getOfflineVideoManager().getDownloadCountForTopic(dataService.getHelper(), topicId, 1);
-			} else {
-				countFormat = getString(R.string.format_video_count);
-				param = topic.getVideo_count();
-			}
-			((TextView) headerView.findViewById(R.id.header_video_list_count)).setText(String.format(countFormat, param));
+			updateVideoCount();
 			
 			listView.setAdapter(new VideoAdapter(this));
 			resetListContents(topic.getId());
 		}
 	}
 	
+	private void updateVideoCount() {
+		final Topic topic = this.topic;
+		final boolean downloadedOnly = isShowingDownloadedVideosOnly();
+		// Both kinds of count go through the slot, so a late downloaded count can't replace the full one.
+		dataService.getQueryExecutor().submit(queries, "count", new QueryExecutor.Query<Integer>() {
+			@Override
+			protected Integer load() {
+				return downloadedOnly ? dataService.getHelper().getDownloadedVideoCount(topic.getId()) : topic.getVideo_count();
+			}
+			
+			@Override
+			protected void onLoaded(Integer count) {
+				String countFormat = getString(downloadedOnly ? R.string.format_downloaded_count : R.string.format_video_count);
+				((TextView) headerView.findViewById(R.id.header_video_list_count)).setText(String.format(countFormat, count));
+			}
+		});
+	}
+	
+	/**
+	 * Requery the list if a change to videos alters what it shows, so changes elsewhere in the library don't.
+	 */
+	private void checkListChangedBy(final Change change) {
+		if (change.isWholeTable()) {
+			refreshList();
+			return;
+		}
+		if (topicCursor == null || topicCursor.isClosed()) {
+			return;
+		}
+		// The cursor was filled when loaded, so this reads memory.
+		final Set<String> listed = change.touchedRows(topicCursor, COL_VIDEO_ID);
+		if (!change.touchesOnly(COL_DL_STATUS) && !listed.isEmpty()) {
+			refreshList();
+			return;
+		}
+		if (!isShowingDownloadedVideosOnly() || !change.touches(COL_DL_STATUS)) {
+			// The full list doesn't show download status; progress bars follow ACTION_DOWNLOAD_PROGRESS_UPDATE.
+			return;
+		}
+		final String topicId = this.topicId;
+		// Every change's check counts, so these aren't slotted: a later check mustn't swallow an earlier one's requery.
+		dataService.getQueryExecutor().submit(queries, null, new QueryExecutor.Query<Set<String>>() {
+			@Override
+			protected Set<String> load() {
+				return dataService.getHelper().filterByDownloadStatus(change.getKeys(), Video.DL_STATUS_COMPLETE, topicId);
+			}
+			
+			@Override
+			protected void onLoaded(Set<String> complete) {
+				// Stale if a changed video is listed but no longer complete, or complete here but not listed.
+				if (!listed.equals(complete)) {
+					refreshList();
+				}
+			}
+		});
+	}
+	
+	private void refreshList() {
+		Log.d(LOG_TAG, "refreshList");
+		updateVideoCount();
+		resetListContents(topicId);
+	}
+	
 	private void resetListContents(String topicId) {
     	Log.d(LOG_TAG, "resetListContents");
     	
@@ -534,7 +632,7 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 	    			"left outer join uservideo on uservideo.video_id = video.readable_id and uservideo.user_id=? " +
 	    			"where topicvideo.topic_id=? and topicvideo.video_id=video.readable_id ";
 	    	
-	    	String[] selectionArgs;
+	    	final String[] selectionArgs;
 	    	if (isShowingDownloadedVideosOnly()) {
 	    		sql += " and video.download_status=? ";
 	    		selectionArgs = new String[] {userId, topicId, String.valueOf(Video.DL_STATUS_COMPLETE)};
@@ -543,16 +641,26 @@ public class VideoListActivity extends KADataServiceProviderActivityBase {
 	    	}
 	    	sql += "order by video.seq";
 	    	
-			if (topicCursor != null) {
-				topicCursor.close();
-			}
-	    	topicCursor = this.dataService.getHelper().getReadableDatabase()
-	    			.rawQuery(sql, selectionArgs);
-	    	
-	    	CursorAdapter adapter = getUnwrappedAdapter();
-	    	if (adapter != null) {
-		    	adapter.changeCursor(topicCursor);
-	    	}
+	    	final String query = sql;
+	    	dataService.getQueryExecutor().submit(queries, "list", new QueryExecutor.Query<Cursor>() {
+	    		@Override
+	    		protected Cursor load() {
+	    			return dataService.getHelper().getReadConnection().rawQuery(query, selectionArgs);
+	    		}
+	    		
+	    		@Override
+	    		protected void onLoaded(Cursor cursor) {
+					if (topicCursor != null) {
+						topicCursor.close();
+					}
+			    	topicCursor = cursor;
+			    	
+			    	CursorAdapter adapter = getUnwrappedAdapter();
+			    	if (adapter != null) {
+				    	adapter.changeCursor(topicCursor);
+			    	}
+	    		}
+	    	});
     	}
 	}
 	
@@ -18,17 +18,28 @@
 package com.concentricsky.android.khanacademy.data;
 
 import static com.concentricsky.android.khanacademy.Constants.ACTION_LIBRARY_UPDATE;
+import static com.concentricsky.android.khanacademy.Constants.ACTION_TOPIC_UPDATE;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_UPDATE_DOWNLOAD_STATUS;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_FORCE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_ID;
 import static com.concentricsky.android.khanacademy.Constants.RESULT_CODE_FAILURE;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_TOPIC;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_VIDEO;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -42,28 +53,38 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.concentricsky.android.khan.R;
 import com.concentricsky.android.khanacademy.Constants;
+import com.concentricsky.android.khanacademy.data.db.CaptionSearch;
+import com.concentricsky.android.khanacademy.data.db.ChangeBus;
 import com.concentricsky.android.khanacademy.data.db.DatabaseHelper;
+import com.concentricsky.android.khanacademy.data.db.LibrarySearch;
+import com.concentricsky.android.khanacademy.data.db.QueryExecutor;
 import com.concentricsky.android.khanacademy.data.db.Topic;
 import com.concentricsky.android.khanacademy.data.db.Video;
 import com.concentricsky.android.khanacademy.data.remote.KAAPIAdapter;
+import com.concentricsky.android.khanacademy.data.remote.LibraryUpdateMetrics;
 import com.concentricsky.android.khanacademy.data.remote.LibraryUpdaterTask;
+import com.concentricsky.android.khanacademy.data.remote.TopicRefreshTask;
 import com.concentricsky.android.khanacademy.util.CaptionManager;
+import com.concentricsky.android.khanacademy.util.DatabaseExporter;
 import com.concentricsky.android.khanacademy.util.Log;
 import com.concentricsky.android.khanacademy.util.ObjectCallback;
 import com.concentricsky.android.khanacademy.util.OfflineVideoManager;
 import com.concentricsky.android.khanacademy.util.ThumbnailManager;
 import com.j256.ormlite.android.apptools.OpenHelperManager;
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.stmt.PreparedQuery;
-import com.j256.ormlite.stmt.UpdateBuilder;
 
 /**
  * Manages all data for the application.
@@ -88,14 +109,38 @@ public class KADataService extends Service {
 	public static final int RESULT_ERROR = 1;
 	public static final int RESULT_CANCELLED = 2;
 	
+	/** A topic is refreshed from the api at most this often, in ms, however often its screen is shown. */
+	private static final long TOPIC_REFRESH_INTERVAL = 30 * 60 * 1000;
+	
+	/** How long a database swap waits for queries and other background database work to finish, in ms. */
+	private static final long SWAP_WAIT_MS = 5 * 1000;
+	
+	/** Screens write these tables on the main thread, where a swap can't hold them off; see {@link #swapDatabase}. */
+	private static final String[] MAIN_THREAD_TABLES = {"user", "uservideo"};
+	
 	private KADataBinder mBinder = new KADataBinder(this);
-    private DatabaseHelper helper;
+    /** Replaced, on the main thread, when a library update swaps in a new database. */
+    private volatile DatabaseHelper helper;
+    /** Shared by background threads using the database, and held exclusively while a new one is swapped in. */
+    private final ReentrantReadWriteLock databaseLock = new ReentrantReadWriteLock();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ChangeBus changeBus = new ChangeBus();
+    private final QueryExecutor queryExecutor = new QueryExecutor();
     private KAAPIAdapter api;
     private CaptionManager captionManager;
     private OfflineVideoManager offlineVideoManager;
     private ThumbnailManager thumbnailManager;
     
     private Executor libraryUpdateExecutor = Executors.newSingleThreadExecutor();
+    private LibraryUpdateScheduler libraryUpdateScheduler;
+    /** True while a library update is queued or running, touched only on the main thread. */
+    private boolean libraryUpdatePending;
+    /** The most recent library update run in this process, or null. Touched only on the main thread. */
+    private LibraryUpdateMetrics lastLibraryUpdateMetrics;
+    /** Topics with a refresh queued or running, touched only on the main thread. */
+    private Set<String> refreshingTopics = new HashSet<String>();
+    /** When each topic's last refresh was requested, touched only on the main thread. */
+    private Map<String, Long> topicRefreshTimes = new HashMap<String, Long>();
     private NotificationManager notificationManager;
     
     /**
@@ -144,6 +189,23 @@ public class KADataService extends Service {
     	Log.d(LOG_TAG, "onCreate");
     	
     	helper = OpenHelperManager.getHelper(this, DatabaseHelper.class);
+    	helper.setChangeBus(changeBus);
+    	// First thing, so a fresh install's database is being inflated while the rest of startup goes on.
+    	runMigrations();
+    	// Lists read topic_closure, child_count and the like, which the migrations fill in, and must not read
+    	// while the database is being swapped.
+    	queryExecutor.setGate(new QueryExecutor.Gate() {
+    		@Override
+    		public void await() {
+    			helper.awaitMigrations();
+    			beginDatabaseWork();
+    		}
+    		
+    		@Override
+    		public void release() {
+    			endDatabaseWork();
+    		}
+    	});
     	
     	InputStream is = getResources().openRawResource(R.raw.oauth_credentials);
     	byte[] buffer;
@@ -165,6 +227,7 @@ public class KADataService extends Service {
     	offlineVideoManager = new OfflineVideoManager(this);
     	thumbnailManager = ThumbnailManager.getSharedInstance(this);
     	notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+    	libraryUpdateScheduler = new LibraryUpdateScheduler(this);
     	
     	setupResponseCache();
     }
@@ -229,6 +292,7 @@ public class KADataService extends Service {
     	thumbnailManager.destroy();
     	thumbnailManager = null;
     	
+    	queryExecutor.shutdown();
     	OpenHelperManager.releaseHelper();
     	flushResponseCache();
     	
@@ -263,6 +327,39 @@ public class KADataService extends Service {
     	return helper;
     }
     
+    /**
+     * Hold off database swaps while a background thread uses the database. Pair every call with
+     * {@link #endDatabaseWork()} in a finally block, and get the helper and any Dao after it, not before: a swap
+     * may have replaced them in between.
+     * 
+     * Never call on the main thread: a swap holding off this work needs the main thread to finish.
+     */
+    public void beginDatabaseWork() {
+    	databaseLock.readLock().lock();
+    }
+    
+    /**
+     * Let database swaps go ahead again after {@link #beginDatabaseWork()}.
+     */
+    public void endDatabaseWork() {
+    	databaseLock.readLock().unlock();
+    }
+    
+    /**
+     * Get the bus reporting which topic and video rows change. Unlike the helper, it lasts as long as this
+     * service, so listeners stay registered across library updates.
+     */
+    public ChangeBus getChangeBus() {
+    	return changeBus;
+    }
+    
+    /**
+     * Get the executor screens run their queries on, so none of them reads the database on the main thread.
+     */
+    public QueryExecutor getQueryExecutor() {
+    	return queryExecutor;
+    }
+    
     private void setupResponseCache() {
     	// directly from http://developer.android.com/reference/android/net/http/HttpResponseCache.html
     	try {
@@ -314,6 +411,12 @@ public class KADataService extends Service {
 		LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
 	}
 	
+	private void broadcastTopicUpdateNotification(String topicId) {
+		Intent intent = new Intent(ACTION_TOPIC_UPDATE);
+		intent.putExtra(EXTRA_ID, topicId);
+		LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+	}
+	
 	private void broadcastOfflineVideoSetChanged() {
 		LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(this);
 		Intent intent = new Intent(Constants.ACTION_OFFLINE_VIDEO_SET_CHANGED);
@@ -350,16 +453,13 @@ public class KADataService extends Service {
 				cursor.close();
 				
 				if (status == DownloadManager.STATUS_SUCCESSFUL && youtubeId != null) {
+					beginDatabaseWork();
 					try {
-						Dao<Video, String> videoDao = helper.getVideoDao();
-						UpdateBuilder<Video, String> q = videoDao.updateBuilder();
-						q.where().eq("youtube_id", youtubeId);
-						q.updateColumnValue("download_status", Video.DL_STATUS_COMPLETE);
-						q.update();
-						return true;
-					} catch (SQLException e) {
-						e.printStackTrace();
+						helper.updateDownloadStatus(youtubeId, Video.DL_STATUS_COMPLETE);
+					} finally {
+						endDatabaseWork();
 					}
+					return true;
 				}
 				
 				return false;
@@ -385,23 +485,40 @@ public class KADataService extends Service {
     private void requestLibraryUpdate(final int startId, final PendingIntent pendingIntent, boolean force) {
     	Log.d(LOG_TAG, "requestLibraryUpdate");
     	
+    	// Coalesce duplicate triggers: one update at a time, and unforced ones only when a check is due.
+    	if (libraryUpdatePending || !force && !libraryUpdateScheduler.isDue()) {
+    		Log.d(LOG_TAG, "library update not due or already pending; skipping");
+    		finish(startId, pendingIntent, RESULT_CANCELLED);
+    		return;
+    	}
+    	libraryUpdatePending = true;
+    	
     	showUpdateNotification();
     	LibraryUpdaterTask task = new LibraryUpdaterTask(this) {
     		@Override
     		public void onPostExecute(Integer status) {
+    			libraryUpdatePending = false;
+    			if (!isOffline()) {
+    				// When offline, the connectivity receiver retries once we're back, so the check is still due.
+    				libraryUpdateScheduler.onChecked(status != RESULT_CODE_FAILURE, isNotModified());
+    			}
+    			
     			if (status != RESULT_CODE_FAILURE) {
+    				// After a swap, the helper is already a fresh one; otherwise the merge rewrote rows under its caches.
     				try {
-						helper.getDao(Topic.class).clearObjectCache();
-	    				helper.getDao(Video.class).clearObjectCache();
-					} catch (SQLException e) {
-						e.printStackTrace();
-					}
+    					helper.getDao(Topic.class).clearObjectCache();
+    					helper.getDao(Video.class).clearObjectCache();
+    				} catch (SQLException e) {
+    					e.printStackTrace();
+    				}
     				
     				broadcastLibraryUpdateNotification();
     			} else {
     				Log.w(LOG_TAG, "library update failure code");
     			}
     				
+    			saveLibraryUpdateMetrics(getMetrics());
+    				
 				finish(startId, pendingIntent, RESULT_SUCCESS);
 				cancelUpdateNotification();
     		}
@@ -412,6 +529,278 @@ public class KADataService extends Service {
     	Log.d(LOG_TAG, "Returning from requestLibraryUpdate");
     }
     
+    /**
+     * Provision the current helper's database if need be, and finish its schema migrations, in the background.
+     * 
+     * Runs on the library update executor, so library updates and topic refreshes queued after it see the
+     * finished data. If any migration steps ran, lists are told to requery as after a library update.
+     */
+    private void runMigrations() {
+    	final DatabaseHelper target = helper;
+    	new AsyncTask<Void, Void, Integer>() {
+    		@Override
+    		protected Integer doInBackground(Void... arg) {
+    			return target.runPendingMigrations();
+    		}
+    		
+    		@Override
+    		protected void onPostExecute(Integer count) {
+    			if (count > 0 && target == helper) {
+    				try {
+    					helper.getDao(Topic.class).clearObjectCache();
+    					helper.getDao(Video.class).clearObjectCache();
+    				} catch (SQLException e) {
+    					e.printStackTrace();
+    				}
+    				broadcastLibraryUpdateNotification();
+    			}
+    		}
+    	}.executeOnExecutor(libraryUpdateExecutor);
+    }
+    
+    /**
+     * Keep the metrics from a finished library update, and add them to the saved history.
+     * 
+     * Called after any database swap, so the history follows into the new file.
+     */
+    private void saveLibraryUpdateMetrics(final LibraryUpdateMetrics metrics) {
+    	lastLibraryUpdateMetrics = metrics;
+    	final DatabaseHelper target = helper;
+    	libraryUpdateExecutor.execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			metrics.save(target.getWritableDatabase());
+    		}
+    	});
+    }
+    
+    /**
+     * @return The metrics of the last library update run by this service, or null if none has run yet.
+     */
+    public LibraryUpdateMetrics getLastLibraryUpdateMetrics() {
+    	return lastLibraryUpdateMetrics;
+    }
+    
+    /**
+     * Get saved library update runs, most recent first. Reads the database; don't call on the main thread.
+     * 
+     * @param limit The maximum number of runs to return.
+     */
+    public List<LibraryUpdateMetrics> getLibraryUpdateMetrics(int limit) {
+    	return LibraryUpdateMetrics.loadRecent(helper.getReadableDatabase(), limit);
+    }
+    
+    /**
+     * Search topic and video titles, keywords and descriptions. Reads the database; don't call on the main thread.
+     * 
+     * Each word matches as a prefix ("frac" finds "Fractions"), and every word must match. Until a fresh
+     * install or upgrade finishes building the index, this finds nothing.
+     * 
+     * @param query What the user typed.
+     * @param limit The maximum number of hits to return.
+     * @return Topic and video hits, best first.
+     */
+    public List<LibrarySearch.Hit> search(String query, int limit) {
+    	return LibrarySearch.search(helper.getReadConnection(), query, limit);
+    }
+    
+    /**
+     * Search the captions of every video whose captions have been viewed, and so cached. Reads the database;
+     * don't call on the main thread.
+     * 
+     * Words match as in {@link #search}. To jump to a hit, start VideoDetailActivity with the hit's videoId
+     * as {@link Constants#PARAM_VIDEO_ID} and its startTime as {@link Constants#PARAM_VIDEO_POSITION}.
+     * 
+     * @param query What the user typed.
+     * @param limit The maximum number of hits to return.
+     * @return Matching caption lines, grouped by video, best video first.
+     */
+    public List<CaptionSearch.Hit> searchCaptions(String query, int limit) {
+    	return CaptionSearch.search(helper.getReadConnection(), query, limit);
+    }
+    
+    /**
+     * Write the saved library update runs to a csv file in external storage, for inspection off the device.
+     */
+    public void exportLibraryUpdateMetrics() {
+    	final DatabaseHelper source = helper;
+    	libraryUpdateExecutor.execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			new DatabaseExporter(KADataService.this).exportTable(source.getReadableDatabase(), LibraryUpdateMetrics.TABLE);
+    		}
+    	});
+    }
+    
+    /**
+     * Refresh one topic and everything below it from the api, without a full library update.
+     * 
+     * Runs on the library update executor, so it never overlaps a full update. If anything changed, the topics and
+     * videos touched are posted to the {@link #getChangeBus() change bus}, and {@link Constants#ACTION_TOPIC_UPDATE}
+     * is broadcast with the topic id as {@link Constants#EXTRA_ID}. Requests for a topic whose refresh is
+     * already pending, or that was refreshed within {@link #TOPIC_REFRESH_INTERVAL}, are dropped.
+     * 
+     * Must be called on the main thread.
+     * 
+     * @param topicId The id of the topic to refresh. Must not be the root topic.
+     */
+    public void refreshTopic(final String topicId) {
+    	Long last = topicRefreshTimes.get(topicId);
+    	long now = System.currentTimeMillis();
+    	if (last != null && now - last < TOPIC_REFRESH_INTERVAL) {
+    		return;
+    	}
+    	if (!refreshingTopics.add(topicId)) {
+    		return;
+    	}
+    	topicRefreshTimes.put(topicId, now);
+    	Log.d(LOG_TAG, "refreshTopic: " + topicId);
+    	
+    	new TopicRefreshTask(this, topicId) {
+    		@Override
+    		public void onPostExecute(Integer status) {
+    			refreshingTopics.remove(topicId);
+    			if (status != RESULT_CODE_FAILURE && !getChangedTopicIds().isEmpty()) {
+    				try {
+    					helper.getDao(Topic.class).clearObjectCache();
+    					helper.getDao(Video.class).clearObjectCache();
+    				} catch (SQLException e) {
+    					e.printStackTrace();
+    				}
+    				changeBus.post(TABLE_TOPIC, null, getChangedTopicIds());
+    				changeBus.post(TABLE_VIDEO, null, getChangedYoutubeIds());
+    				broadcastTopicUpdateNotification(topicId);
+    			}
+    		}
+    	}.executeOnExecutor(libraryUpdateExecutor);
+    }
+    
+    /**
+     * Replace the main database with one fully prepared by a library update. Call on the library update executor,
+     * which keeps migrations, topic refreshes and metrics off the database meanwhile.
+     * 
+     * Screen queries and the other background work that goes through {@link #beginDatabaseWork()} are let finish
+     * and held off; if they don't finish within {@link #SWAP_WAIT_MS}, nothing is swapped. Everything written to
+     * the main database since the replacement was prepared is copied into it. Then, on the main thread, so that no
+     * screen is using the helper either, the small tables screens write there are copied once more along with any
+     * download status changed in between, the old file is
+     * taken out of WAL mode, the helper is released, the prepared file is renamed over the main one, and a fresh
+     * helper is opened on it. A list cursor still open on the old file keeps it from leaving WAL mode, and then
+     * nothing is swapped.
+     * 
+     * Anyone holding a Dao must get a new one from {@link #getHelper()}; listeners for
+     * {@link Constants#ACTION_LIBRARY_UPDATE} should do so.
+     * 
+     * @param prepared The replacement database file, in the same directory as the main one.
+     * @return True if the prepared file replaced the main one. If false, the main database is as it was and still
+     * 		open, and the prepared file is left for the caller to merge instead.
+     */
+    public boolean swapDatabase(final File prepared) {
+    	Log.d(LOG_TAG, "swapDatabase");
+    	try {
+    		if (!databaseLock.writeLock().tryLock(SWAP_WAIT_MS, TimeUnit.MILLISECONDS)) {
+    			Log.w(LOG_TAG, "database still in use; not swapping in " + prepared);
+    			return false;
+    		}
+    	} catch (InterruptedException e) {
+    		e.printStackTrace();
+    		return false;
+    	}
+    	try {
+    		copyIntoPrepared(prepared, null);
+    		// Move the log into the file now, so the main thread has little left to checkpoint.
+    		Cursor c = helper.getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+    		c.moveToFirst();
+    		c.close();
+    		
+    		final boolean[] swapped = new boolean[1];
+    		final CountDownLatch done = new CountDownLatch(1);
+    		handler.post(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					swapped[0] = replaceDatabase(prepared);
+    				} finally {
+    					done.countDown();
+    				}
+    			}
+    		});
+    		// Whatever the main thread decides, the caller has to know it.
+    		boolean interrupted = false;
+    		while (done.getCount() > 0) {
+    			try {
+    				done.await();
+    			} catch (InterruptedException e) {
+    				interrupted = true;
+    			}
+    		}
+    		if (interrupted) {
+    			Thread.currentThread().interrupt();
+    		}
+    		return swapped[0];
+    	} finally {
+    		databaseLock.writeLock().unlock();
+    	}
+    }
+    
+    /**
+     * The main thread's part of {@link #swapDatabase}.
+     */
+    private boolean replaceDatabase(File prepared) {
+    	File target = getDatabasePath(DatabaseHelper.DATABASE_NAME);
+    	copyIntoPrepared(prepared, MAIN_THREAD_TABLES);
+    	
+    	if (!helper.releaseFile()) {
+    		// A list's cursor still holds a read connection to the old file. Keep the old file; the update
+    		// merges the new tree into it instead.
+    		Log.w(LOG_TAG, "old database still open; not swapping in " + prepared);
+    		return false;
+    	}
+    	
+    	OpenHelperManager.releaseHelper();
+    	DaoManager.clearCache();
+    	boolean renamed = prepared.renameTo(target);
+    	if (!renamed) {
+    		// The old file is untouched, so we simply keep using it.
+    		Log.e(LOG_TAG, "failed to rename " + prepared + " to " + target);
+    	}
+    	helper = OpenHelperManager.getHelper(this, DatabaseHelper.class);
+    	helper.setChangeBus(changeBus);
+    	runMigrations();
+    	return renamed;
+    }
+    
+    /**
+     * Copy what was written to the main database since a swap was prepared into the prepared file.
+     * 
+     * @param tables The tables to copy, along with the download status changed since the last copy; null for
+     * 		everything outside the library, and all download status.
+     */
+    private void copyIntoPrepared(File prepared, String[] tables) {
+    	long start = System.currentTimeMillis();
+    	SQLiteDatabase db = helper.getWritableDatabase();
+    	db.execSQL("attach database ? as ka_swap", new Object[] {prepared.getAbsolutePath()});
+    	try {
+    		db.beginTransaction();
+    		try {
+    			if (tables == null) {
+    				LibraryUpdaterTask.copyUserData(db, "ka_swap", "main");
+    			} else {
+    				for (String table : tables) {
+    					LibraryUpdaterTask.copyTable(db, "ka_swap", "main", table);
+    				}
+    				LibraryUpdaterTask.updateChangedDownloadStatus(db, "ka_swap", "main");
+    			}
+    			db.setTransactionSuccessful();
+    		} finally {
+    			db.endTransaction();
+    		}
+    	} finally {
+    		db.execSQL("detach database ka_swap");
+    	}
+    	Log.d(LOG_TAG, String.format("copied into %s in %dms", prepared.getName(), System.currentTimeMillis() - start));
+    }
+    
     public KAAPIAdapter getAPIAdapter() {
     	return api;
     }
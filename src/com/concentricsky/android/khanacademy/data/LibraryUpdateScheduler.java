@@ -0,0 +1,129 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data;
+
+import static com.concentricsky.android.khanacademy.Constants.ACTION_LIBRARY_UPDATE;
+import static com.concentricsky.android.khanacademy.Constants.REQUEST_CODE_RECURRING_LIBRARY_UPDATE;
+import static com.concentricsky.android.khanacademy.Constants.SETTINGS_NAME;
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_LAST_CHECK;
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_NEXT_CHECK;
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_UNCHANGED_COUNT;
+import static com.concentricsky.android.khanacademy.Constants.UPDATE_DELAY_FROM_FIRST_RUN;
+import static com.concentricsky.android.khanacademy.Constants.UPDATE_MAX_BACKOFF_STEPS;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import com.concentricsky.android.khanacademy.util.Log;
+
+/**
+ * Decides when the next library update check should happen, and keeps a single alarm set for it.
+ *
+ * Checks start a day apart. Each check the server answers with a 304 doubles the interval, up to
+ * 2^{@link com.concentricsky.android.khanacademy.Constants#UPDATE_MAX_BACKOFF_STEPS} days; a changed tree
+ * resets it. The check history lives in preferences, so it survives restarts.
+ *
+ * Unforced update requests that arrive before the next check is due (repeated connectivity events, say)
+ * are dropped by {@link KADataService}, which asks {@link #isDue()}.
+ */
+public class LibraryUpdateScheduler {
+
+	public static final String LOG_TAG = LibraryUpdateScheduler.class.getSimpleName();
+
+	/** Checks this close to the scheduled time count as due, so a slightly early alarm isn't dropped. */
+	private static final long SLACK_MS = 10 * 60 * 1000;
+
+	private final Context context;
+	private final SharedPreferences prefs;
+
+	public LibraryUpdateScheduler(Context context) {
+		this.context = context.getApplicationContext();
+		this.prefs = context.getSharedPreferences(SETTINGS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @return True if the scheduled check time has (about) arrived.
+	 */
+	public boolean isDue() {
+		return System.currentTimeMillis() >= prefs.getLong(SETTING_LIBRARY_NEXT_CHECK, 0) - SLACK_MS;
+	}
+
+	/**
+	 * Make sure an alarm is set for the next check. Cheap to call; does nothing if one already is.
+	 */
+	public void ensureScheduled() {
+		long next = prefs.getLong(SETTING_LIBRARY_NEXT_CHECK, 0);
+		long now = System.currentTimeMillis();
+		PendingIntent existing = PendingIntent.getService(context,
+				REQUEST_CODE_RECURRING_LIBRARY_UPDATE, buildIntent(), PendingIntent.FLAG_NO_CREATE);
+		if (existing != null && next > now) {
+			return;
+		}
+
+		// Nothing set, or the alarm was lost (a reboot clears them). First run waits a while before checking.
+		setAlarm(Math.max(next, now + UPDATE_DELAY_FROM_FIRST_RUN * 1000L));
+	}
+
+	/**
+	 * Record the outcome of a check and set the alarm for the next one.
+	 *
+	 * @param changed True if the server sent a new tree.
+	 * @param notModified True if the server answered 304. If neither, the check failed, and is retried after
+	 *                    the base interval without counting towards the back-off.
+	 */
+	public void onChecked(boolean changed, boolean notModified) {
+		int unchanged = prefs.getInt(SETTING_LIBRARY_UNCHANGED_COUNT, 0);
+		if (changed) {
+			unchanged = 0;
+		} else if (notModified) {
+			unchanged = Math.min(unchanged + 1, UPDATE_MAX_BACKOFF_STEPS);
+		}
+
+		long now = System.currentTimeMillis();
+		long interval = notModified ? AlarmManager.INTERVAL_DAY << unchanged : AlarmManager.INTERVAL_DAY;
+		long next = now + interval;
+		prefs.edit()
+			.putInt(SETTING_LIBRARY_UNCHANGED_COUNT, unchanged)
+			.putLong(SETTING_LIBRARY_LAST_CHECK, now)
+			.putLong(SETTING_LIBRARY_NEXT_CHECK, next)
+			.apply();
+
+		Log.d(LOG_TAG, String.format("library %s; %d unchanged in a row, next check in %dh",
+				changed ? "changed" : notModified ? "unchanged" : "check failed", unchanged, interval / AlarmManager.INTERVAL_HOUR));
+		setAlarm(next);
+	}
+
+	private Intent buildIntent() {
+		Intent intent = new Intent(context, KADataService.class);
+		intent.setAction(ACTION_LIBRARY_UPDATE);
+		return intent;
+	}
+
+	private void setAlarm(long at) {
+		AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent pendingIntent = PendingIntent.getService(context,
+				REQUEST_CODE_RECURRING_LIBRARY_UPDATE, buildIntent(), PendingIntent.FLAG_UPDATE_CURRENT);
+		// Replaces any alarm, repeating or not, set with the same intent.
+		am.set(AlarmManager.RTC_WAKEUP, at, pendingIntent);
+		prefs.edit().putLong(SETTING_LIBRARY_NEXT_CHECK, at).apply();
+	}
+
+}
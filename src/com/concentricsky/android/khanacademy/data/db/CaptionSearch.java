@@ -0,0 +1,240 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.concentricsky.android.khanacademy.util.Log;
+
+/**
+ * Full-text search over cached captions, for finding the moment a video says something.
+ *
+ * The caption_search table is an FTS4 index with one row per caption line, its docid the caption's _id.
+ * Captions are only ever added, a video's whole transcript at once, so {@link #index} runs as each one is
+ * saved. Library updates carry the index across as it is rather than rebuilding it; see {@link #copy}.
+ *
+ * Queries read the way library searches do: each word matches as a prefix, and every word must be on one
+ * line. Videos are ranked by how many of their lines match, and each contributes its earliest few matching
+ * lines.
+ *
+ * @author austinlally
+ *
+ */
+public class CaptionSearch {
+
+	public static final String LOG_TAG = CaptionSearch.class.getSimpleName();
+
+	public static final String TABLE = "caption_search";
+
+	/** Matching lines returned per video, earliest first. */
+	private static final int MOMENTS_PER_VIDEO = 3;
+
+	private static final String SQL_INDEX = "insert into caption_search (docid, text) " +
+			"select _id, text from caption where youtube_id = ? and not exists (select 1 from caption_search where docid = caption._id)";
+	// Some transcripts were saved twice (see CaptionManager), so count each moment once.
+	private static final String SQL_RANK_VIDEOS = "select c.youtube_id, count(distinct c.start_time) as moments " +
+			"from caption_search s, caption c where caption_search match ? and c._id = s.docid " +
+			"group by c.youtube_id order by moments desc, c.youtube_id limit ?";
+	private static final String SQL_MOMENTS = "select c.youtube_id, c.start_time, c.text " +
+			"from caption_search s, caption c where caption_search match ? and c._id = s.docid and c.youtube_id in (%s) " +
+			"order by c.youtube_id, c.start_time";
+	private static final String SQL_VIDEO = "select readable_id, title from video where youtube_id = ? limit 1";
+
+	/**
+	 * One matching caption line.
+	 */
+	public static class Hit {
+		public final String youtubeId;
+		/** The video's readable_id, to open it with. */
+		public final String videoId;
+		public final String videoTitle;
+		/** Where the line starts, in ms; seek here to hear it. */
+		public final int startTime;
+		/** The caption line. */
+		public final String text;
+
+		Hit(String youtubeId, String videoId, String videoTitle, int startTime, String text) {
+			this.youtubeId = youtubeId;
+			this.videoId = videoId;
+			this.videoTitle = videoTitle;
+			this.startTime = startTime;
+			this.text = text;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %d: %s", videoId, startTime, text);
+		}
+	}
+
+	/**
+	 * Create the index if the schema lacks it. It starts empty; see {@link #rebuild}.
+	 *
+	 * @param schema main, or the name of an attached database.
+	 */
+	public static void create(SQLiteDatabase db, String schema) {
+		LibrarySearch.createIndex(db, schema, TABLE, "`text`");
+	}
+
+	/**
+	 * @return True if the index has no rows, as after {@link #create}.
+	 */
+	public static boolean isEmpty(SQLiteDatabase db) {
+		return LibrarySearch.isEmpty(db, TABLE);
+	}
+
+	/**
+	 * Index a video's captions. Lines already indexed are skipped, so this is safe to repeat.
+	 *
+	 * @param db The db holding the index and captions. Call this in the transaction that saved the captions.
+	 */
+	public static void index(SQLiteDatabase db, String youtubeId) {
+		db.execSQL(SQL_INDEX, new Object[] {youtubeId});
+	}
+
+	/**
+	 * Replace the index's contents with every cached caption.
+	 *
+	 * @param db The db holding the index. Callers wanting atomicity should hold a transaction around this.
+	 */
+	public static void rebuild(SQLiteDatabase db) {
+		long start = System.currentTimeMillis();
+		db.execSQL("delete from caption_search");
+		db.execSQL("insert into caption_search (docid, text) select _id, text from caption");
+		db.execSQL("insert into caption_search (caption_search) values ('optimize')");
+		Log.d(LOG_TAG, String.format("rebuilt caption index in %dms", System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Copy the index from one schema to another as it is, without re-reading any text: the rows of its shadow
+	 * tables are the whole index. Both schemas must have the index, created by {@link #create} with the same
+	 * SQLite; whatever the target's held is replaced. The captions themselves must be copied with their _ids.
+	 *
+	 * @param to The schema to copy into.
+	 * @param from The schema to copy from.
+	 */
+	public static void copy(SQLiteDatabase db, String to, String from) {
+		List<String> shadows = new ArrayList<String>();
+		Cursor c = db.rawQuery(String.format("select name from %s.sqlite_master where type = 'table' and name like 'caption\\_search\\_%%' escape '\\'", from), null);
+		try {
+			while (c.moveToNext()) {
+				shadows.add(c.getString(0));
+			}
+		} finally {
+			c.close();
+		}
+		for (String shadow : shadows) {
+			db.execSQL(String.format("delete from %2$s.`%1$s`", shadow, to));
+			db.execSQL(String.format("insert into %2$s.`%1$s` select * from %3$s.`%1$s`", shadow, to, from));
+		}
+	}
+
+	/**
+	 * Find caption lines matching a query, across every cached transcript.
+	 *
+	 * Matching runs twice, each time inside SQLite: once to rank videos by their count of matching lines, then
+	 * again for the lines of only the best videos, so only those are sorted and read out.
+	 *
+	 * @param db A database with the index, such as a read connection.
+	 * @param query What the user typed.
+	 * @param limit The maximum number of hits to return.
+	 * @return The hits, grouped by video, best video first and each video's lines in time order; empty if the
+	 * 		query has no words.
+	 */
+	public static List<Hit> search(SQLiteDatabase db, String query, int limit) {
+		List<Hit> hits = new ArrayList<Hit>();
+		String match = LibrarySearch.toMatchQuery(query);
+		if (match == null || limit <= 0) {
+			return hits;
+		}
+
+		// Every ranked video has at least one hit, so more than limit of them are never needed.
+		Map<String, List<Hit>> byVideo = new LinkedHashMap<String, List<Hit>>();
+		Cursor c = db.rawQuery(SQL_RANK_VIDEOS, new String[] {match, String.valueOf(limit)});
+		try {
+			while (c.moveToNext()) {
+				byVideo.put(c.getString(0), new ArrayList<Hit>(MOMENTS_PER_VIDEO));
+			}
+		} finally {
+			c.close();
+		}
+		if (byVideo.isEmpty()) {
+			return hits;
+		}
+
+		Map<String, String[]> videos = new LinkedHashMap<String, String[]>();
+		for (String youtubeId : byVideo.keySet()) {
+			c = db.rawQuery(SQL_VIDEO, new String[] {youtubeId});
+			try {
+				// Captions outlive videos dropped from the library; those can't be played, so skip them.
+				if (c.moveToFirst()) {
+					videos.put(youtubeId, new String[] {c.getString(0), c.getString(1)});
+				}
+			} finally {
+				c.close();
+			}
+		}
+		if (videos.isEmpty()) {
+			return hits;
+		}
+
+		String[] args = new String[videos.size() + 1];
+		args[0] = match;
+		StringBuilder params = new StringBuilder();
+		int i = 1;
+		for (String youtubeId : videos.keySet()) {
+			params.append(i > 1 ? ",?" : "?");
+			args[i++] = youtubeId;
+		}
+		c = db.rawQuery(String.format(SQL_MOMENTS, params), args);
+		try {
+			while (c.moveToNext()) {
+				String youtubeId = c.getString(0);
+				int startTime = c.getInt(1);
+				List<Hit> moments = byVideo.get(youtubeId);
+				if (moments.size() >= MOMENTS_PER_VIDEO) {
+					continue;
+				}
+				if (moments.size() > 0 && moments.get(moments.size() - 1).startTime == startTime) {
+					continue;
+				}
+				String[] video = videos.get(youtubeId);
+				moments.add(new Hit(youtubeId, video[0], video[1], startTime, c.getString(2)));
+			}
+		} finally {
+			c.close();
+		}
+
+		for (List<Hit> moments : byVideo.values()) {
+			for (Hit hit : moments) {
+				if (hits.size() >= limit) {
+					return hits;
+				}
+				hits.add(hit);
+			}
+		}
+		return hits;
+	}
+
+}
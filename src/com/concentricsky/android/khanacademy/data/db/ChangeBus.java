@@ -0,0 +1,240 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Tells screens which rows of which tables changed, so they can skip requerying lists the change doesn't touch.
+ *
+ * Writers post the table, the column if they know it, and the keys of the changed rows: topic._id for topics,
+ * and youtube_id for videos, since download status is written by youtube id. Posts from any thread within
+ * {@link #COALESCE_WINDOW} of the first for a table are merged and delivered once, on the main thread, to that
+ * table's listeners. A burst of completed or deleted downloads is one refresh rather than one per video.
+ *
+ * A library update replaces the whole database, so it is still announced by the ACTION_LIBRARY_UPDATE broadcast.
+ *
+ * @author austinlally
+ *
+ */
+public class ChangeBus {
+
+	/** How long, in ms, posts for a table are collected before delivery. */
+	public static final long COALESCE_WINDOW = 250;
+
+	/**
+	 * One or more merged changes to a table.
+	 */
+	public static class Change {
+		public final String table;
+		/** Null if any column may have changed. */
+		private final Set<String> columns;
+		/** Null if any row may have changed. */
+		private final Set<String> keys;
+
+		Change(String table, Set<String> columns, Set<String> keys) {
+			this.table = table;
+			this.columns = columns;
+			this.keys = keys;
+		}
+
+		/**
+		 * @return True if the change may have touched the given column.
+		 */
+		public boolean touches(String column) {
+			return columns == null || columns.contains(column);
+		}
+
+		/**
+		 * @return True if the changed rows aren't known, so any row may have changed.
+		 */
+		public boolean isWholeTable() {
+			return keys == null;
+		}
+
+		/**
+		 * @return The keys of the changed rows, or null if any row may have changed.
+		 */
+		public Set<String> getKeys() {
+			return keys == null ? null : Collections.unmodifiableSet(keys);
+		}
+
+		/**
+		 * @return True if the change may have touched the row with the given key.
+		 */
+		public boolean touchesRow(String key) {
+			return keys == null || keys.contains(key);
+		}
+
+		/**
+		 * @return True if the change is known to have touched only the given column.
+		 */
+		public boolean touchesOnly(String column) {
+			return columns != null && columns.size() == 1 && columns.contains(column);
+		}
+
+		/**
+		 * Find the rows of a list the change may have touched. Moves the cursor.
+		 *
+		 * @param keyColumn The cursor column holding each row's key.
+		 * @return The keys of the touched rows.
+		 */
+		public Set<String> touchedRows(Cursor cursor, String keyColumn) {
+			Set<String> touched = new HashSet<String>();
+			if (cursor == null || cursor.isClosed()) {
+				return touched;
+			}
+			int index = cursor.getColumnIndex(keyColumn);
+			cursor.moveToPosition(-1);
+			while (cursor.moveToNext()) {
+				String key = cursor.getString(index);
+				if (touchesRow(key)) {
+					touched.add(key);
+				}
+			}
+			return touched;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s of %s", table, columns == null ? "*" : columns, keys == null ? "*" : keys.size() + " rows");
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the main thread.
+		 */
+		public void onChange(Change change);
+	}
+
+	private static class Pending {
+		Set<String> columns = new HashSet<String>();
+		Set<String> keys = new HashSet<String>();
+
+		void add(String column, Collection<String> keys) {
+			if (column == null) {
+				this.columns = null;
+			} else if (this.columns != null) {
+				this.columns.add(column);
+			}
+			if (keys == null) {
+				this.keys = null;
+			} else if (this.keys != null) {
+				this.keys.addAll(keys);
+			}
+		}
+	}
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Map<String, List<Listener>> listeners = new HashMap<String, List<Listener>>();
+	private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+	/**
+	 * Start delivering a table's changes to a listener. Call on the main thread.
+	 */
+	public void register(String table, Listener listener) {
+		List<Listener> list = listeners.get(table);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<Listener>();
+			listeners.put(table, list);
+		}
+		list.add(listener);
+	}
+
+	/**
+	 * Stop delivering changes to a listener, for every table it was registered for. Call on the main thread.
+	 */
+	public void unregister(Listener listener) {
+		for (List<Listener> list : listeners.values()) {
+			list.remove(listener);
+		}
+	}
+
+	/**
+	 * Report a change to rows that aren't known, so any row may have changed.
+	 *
+	 * @param column The changed column, or null for any.
+	 */
+	public void postAll(String table, String column) {
+		post(table, column, (Collection<String>) null);
+	}
+
+	/**
+	 * Report one changed row.
+	 *
+	 * @param column The changed column, or null for any.
+	 */
+	public void post(String table, String column, String key) {
+		post(table, column, Collections.singleton(key));
+	}
+
+	/**
+	 * Report changed rows. Safe to call from any thread; call once the change has committed, so listeners
+	 * requerying see it.
+	 *
+	 * @param column The changed column, or null for any.
+	 * @param keys The keys of the changed rows, or null if they aren't known.
+	 */
+	public void post(final String table, String column, Collection<String> keys) {
+		if (keys != null && keys.isEmpty()) {
+			return;
+		}
+		synchronized (pending) {
+			Pending p = pending.get(table);
+			if (p == null) {
+				p = new Pending();
+				pending.put(table, p);
+				handler.postDelayed(new Runnable() {
+					@Override
+					public void run() {
+						deliver(table);
+					}
+				}, COALESCE_WINDOW);
+			}
+			p.add(column, keys);
+		}
+	}
+
+	private void deliver(String table) {
+		Pending p;
+		synchronized (pending) {
+			p = pending.remove(table);
+		}
+		List<Listener> list = listeners.get(table);
+		if (p == null || list == null) {
+			return;
+		}
+		Change change = new Change(table, p.columns, p.keys);
+		for (Listener listener : list) {
+			listener.onChange(change);
+		}
+	}
+
+}
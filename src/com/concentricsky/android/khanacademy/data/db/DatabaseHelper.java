@@ -22,39 +22,39 @@ import static android.app.DownloadManager.STATUS_PAUSED;
 import static android.app.DownloadManager.STATUS_RUNNING;
 import static android.app.DownloadManager.STATUS_SUCCESSFUL;
 import static com.concentricsky.android.khanacademy.Constants.COL_DL_STATUS;
-import static com.concentricsky.android.khanacademy.Constants.COL_FK_TOPIC;
-import static com.concentricsky.android.khanacademy.Constants.COL_TOPIC_ID;
-import static com.concentricsky.android.khanacademy.Constants.TABLE_TOPIC;
 import static com.concentricsky.android.khanacademy.Constants.TABLE_VIDEO;
 
 import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import android.app.DownloadManager;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 
 import com.concentricsky.android.khan.R;
+import com.concentricsky.android.khanacademy.data.remote.LibraryUpdateMetrics;
 import com.concentricsky.android.khanacademy.util.DatabaseImporter;
 import com.concentricsky.android.khanacademy.util.Log;
 import com.concentricsky.android.khanacademy.util.OfflineVideoManager;
 import com.j256.ormlite.android.apptools.OrmLiteSqliteOpenHelper;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.stmt.QueryBuilder;
-import com.j256.ormlite.stmt.UpdateBuilder;
 import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.table.TableUtils;
 
@@ -63,15 +63,72 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 	
 	public static final String DATABASE_NAME = "ka.sqlite3";
 	public static final int DATABASE_RESOURCE_ID = R.raw.db;
-	public static final int DATABASE_VERSION = 120; // analagous to 1.2.0 release
+	public static final int DATABASE_VERSION = 124; // analagous to 1.2.4 release
+	/**
+	 * The schema version res/raw/db.gz is built at, by etc/scripts/build_db.py; only newer migrations run on a
+	 * freshly imported copy. Raise it whenever the bundle is rebuilt with a newer migration's schema and data.
+	 */
+	private static final int RAW_DATABASE_VERSION = 124;
+	/** Where the bundled database is imported to when an old library is replaced with it. */
+	private static final String BUNDLED_DB_NAME = "ka_bundled";
+	/** Read-only connections for list queries, besides the one writer connection. */
+	private static final int READ_CONNECTIONS = 2;
+	
+	/**
+	 * One row per (ancestor, descendant) pair of topics, including each topic paired with itself at depth 0.
+	 * Subtree queries become a lookup on ancestor rather than a join per level.
+	 */
+	public static final String SQL_CREATE_TOPIC_CLOSURE = "CREATE TABLE IF NOT EXISTS `topic_closure` (`ancestor` VARCHAR NOT NULL, `descendant` VARCHAR NOT NULL, `depth` INTEGER NOT NULL, PRIMARY KEY (`ancestor`, `depth`, `descendant`) )";
+	public static final String SQL_CREATE_TOPIC_CLOSURE_INDEX = "CREATE INDEX IF NOT EXISTS `topic_closure_descendant_idx` on `topic_closure` ( `descendant` )";
+	public static final String SQL_CREATE_TOPICVIDEO_VIDEO_INDEX = "CREATE INDEX IF NOT EXISTS `topicvideo_video_id_idx` on `topicvideo` ( `video_id` )";
+	
+	/**
+	 * Indexes behind the video list, downloads and topic list queries. etc/scripts/check_query_plans.py
+	 * fails if any of those queries goes back to scanning a whole table.
+	 */
+	public static final String[] SQL_CREATE_LOOKUP_INDEXES = {
+		"CREATE INDEX IF NOT EXISTS `video_download_status_idx` on `video` ( `download_status` )",
+		"CREATE INDEX IF NOT EXISTS `video_youtube_id_idx` on `video` ( `youtube_id` )",
+		"CREATE INDEX IF NOT EXISTS `topic_parentTopic_id_idx` on `topic` ( `parentTopic_id` )",
+		"CREATE INDEX IF NOT EXISTS `topic_title_idx` on `topic` ( `title` )",
+		"CREATE INDEX IF NOT EXISTS `uservideo_user_video_idx` on `uservideo` ( `user_id`, `video_id` )",
+	};
+	
+	private static final String DOWNLOADED_COUNT_TRIGGER = "video_downloaded_count";
+	private static final String SQL_DOWNLOADED_COUNT_TRIGGER_BODY =
+			"AFTER UPDATE OF `download_status` ON `video` " +
+			"WHEN (old.download_status = " + Video.DL_STATUS_COMPLETE + ") != (new.download_status = " + Video.DL_STATUS_COMPLETE + ") BEGIN " +
+			"UPDATE topic SET downloaded_video_count = downloaded_video_count + (CASE WHEN new.download_status = " + Video.DL_STATUS_COMPLETE + " THEN 1 ELSE -1 END) * " +
+			"(SELECT count() FROM topicvideo, topic_closure WHERE topicvideo.video_id = new.readable_id AND topic_closure.descendant = topicvideo.topic_id AND topic_closure.ancestor = topic._id) " +
+			"WHERE _id IN (SELECT topic_closure.ancestor FROM topicvideo, topic_closure WHERE topicvideo.video_id = new.readable_id AND topic_closure.descendant = topicvideo.topic_id); END";
+	
+	/**
+	 * Keeps topic.downloaded_video_count current on every ancestor when a video finishes downloading or is
+	 * removed, whichever code path changes download_status. Counts match {@link #recomputeDownloadedVideoCounts}:
+	 * each topic counts the topicvideo rows below it whose video is complete.
+	 */
+	public static final String SQL_CREATE_DOWNLOADED_COUNT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS `" + DOWNLOADED_COUNT_TRIGGER + "` " +
+			SQL_DOWNLOADED_COUNT_TRIGGER_BODY;
+	
+	/*
+	 * Statements run through the StatementRegistry, compiled once per connection. Keep their text constant.
+	 */
+	static final String SQL_DOWNLOAD_MANAGER_IDS = "select group_concat(dlm_id) from video where dlm_id > 0";
+	static final String SQL_DOWNLOADED_VIDEO_COUNT = "select downloaded_video_count from topic where _id = ?";
+	static final String SQL_UPDATE_DOWNLOAD_STATUS = "update video set download_status = ? where youtube_id = ?";
+	static final String SQL_RESET_DOWNLOAD = "update video set download_status = " + Video.DL_STATUS_NOT_STARTED + ", dlm_id = 0 where dlm_id = ?";
 	
 	private Context context;
+	private final ReadConnectionPool readers;
+	private StatementRegistry statements;
+	private final SchemaMigrator migrator = new SchemaMigrator(buildMigrations());
+	/** Set once the database file is known to exist. */
+	private volatile boolean provisioned;
 	private Dao<Video, String> videoDao;
 	private Dao<Topic, String> topicDao;
 	private Dao<User, String> userDao;
 	private Dao<UserVideo, Integer> userVideoDao;
-	private StringBuilder stringBuilder = new StringBuilder();
-	private Formatter stringFormatter = new Formatter(stringBuilder);
+	private volatile ChangeBus changeBus;
 	
 	public static enum Type {
 		USER(User.class),
@@ -86,333 +143,499 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 		}
 	}
 	
-	public interface Callbacks {
-		public abstract void onChange();
-	}
-	
-	private ArrayList<Callbacks> callbacks = new ArrayList<Callbacks>();
-	
-	public void registerCallbacks(Callbacks callbacks) {
-		this.callbacks.add(callbacks);
+	/**
+	 * Report the rows this helper changes to a bus. The bus outlives helpers, which database swaps replace.
+	 */
+	public void setChangeBus(ChangeBus changeBus) {
+		this.changeBus = changeBus;
 	}
 	
-	public boolean unregisterCallbacks(Callbacks callbacks) {
-		return this.callbacks.remove(callbacks);
+	private void postVideoChange(String column, Collection<String> youtubeIds) {
+		ChangeBus bus = changeBus;
+		if (bus != null) {
+			bus.post(TABLE_VIDEO, column, youtubeIds);
+		}
 	}
 
 	public DatabaseHelper(Context context) {
 	    super(context, DATABASE_NAME, null, DATABASE_VERSION,
 	        R.raw.ormlite_config);
 		this.context = context;
+		this.readers = new ReadConnectionPool(context.getDatabasePath(DATABASE_NAME).getPath(), READ_CONNECTIONS);
 	}
 	
-	private boolean databaseExists() {
-		for (String name : context.databaseList()) {
-			if (name.equals(getDatabaseName())) {
-				return true;
+	/**
+	 * Make sure the database file exists, inflating the bundled one if it doesn't.
+	 * 
+	 * On a fresh install the first call does the import, timed and logged as the provisioning phase. Once
+	 * the file is known to exist, calls return without touching the filesystem. KADataService calls this
+	 * from the background as it starts, so the import is usually done before any screen needs the database.
+	 */
+	public void provision() {
+		if (provisioned) {
+			return;
+		}
+		synchronized (this) {
+			if (!provisioned) {
+				if (!context.getDatabasePath(getDatabaseName()).exists()) {
+					long start = System.currentTimeMillis();
+					new DatabaseImporter(context).import_(DATABASE_RESOURCE_ID, getDatabaseName());
+					Log.d(LOG_TAG, String.format("provisioned database in %dms", System.currentTimeMillis() - start));
+				}
+				provisioned = true;
 			}
 		}
-		return false;
-	}
-	
-	private void copyRawDatabase() {
-		new DatabaseImporter(context).import_(DATABASE_RESOURCE_ID, getDatabaseName());
 	}
 	
 	@Override
 	public SQLiteDatabase getWritableDatabase() {
-		if (!databaseExists()) {
-			copyRawDatabase();
-		}
+		provision();
 		return super.getWritableDatabase();
 	}
 
 	@Override
 	public SQLiteDatabase getReadableDatabase() {
-		if (!databaseExists()) {
-			copyRawDatabase();
-		}
+		provision();
 		return super.getReadableDatabase();
 	}
 
+	/**
+	 * Get a read-only connection for a list's cursor query, so the list can fill while a library update,
+	 * download sync or migration is writing.
+	 * 
+	 * The database is in WAL mode, so a query here never waits on the writer and never sees its uncommitted
+	 * work: it sees the database as of the last commit before it started, and a write's effects appear to
+	 * queries started after it commits. A cursor too big for one window (about 2MB) starts a fresh read for
+	 * each later window, so it may see a commit that landed in between; requery on the library update
+	 * broadcasts as lists already do. Writes still go one at a time through {@link #getWritableDatabase}.
+	 * 
+	 * The connections belong to this helper, and close with it. Don't write through them, or use them for
+	 * ORMLite queries, or ATTACH on them.
+	 */
+	public SQLiteDatabase getReadConnection() {
+		// The writer provisions and upgrades the file and switches it to WAL before any reader opens it.
+		getWritableDatabase();
+		return readers.get();
+	}
+	
+	/**
+	 * Get the hot statements, compiled against the writer connection. Use these for writes.
+	 */
+	public synchronized StatementRegistry getStatements() {
+		SQLiteDatabase db = getWritableDatabase();
+		if (statements == null || !statements.isFor(db)) {
+			if (statements != null) {
+				statements.close();
+			}
+			statements = new StatementRegistry(db);
+		}
+		return statements;
+	}
+	
+	/**
+	 * Get the hot statements, compiled against one of the connections from {@link #getReadConnection}. Use
+	 * these for queries.
+	 */
+	public StatementRegistry getReadStatements() {
+		getWritableDatabase();
+		return readers.getStatements();
+	}
+	
 	@Override
-	public void onCreate(SQLiteDatabase database, ConnectionSource connectionSource) {
+	public void close() {
+		synchronized (this) {
+			if (statements != null) {
+				statements.close();
+				statements = null;
+			}
+		}
+		readers.close();
+		super.close();
+	}
+	
+	/**
+	 * Make the file safe to replace once this helper is closed: close the read connections, then take the
+	 * file out of WAL mode, which checkpoints the write-ahead log into it and deletes the log.
+	 * 
+	 * SQLite only leaves WAL mode when no other connection has the file open, and a cursor still open on a
+	 * read connection keeps that connection alive. So this is also the check that nothing else still holds
+	 * the file; renaming a new file over one still open would hand it the old file's log. Call with nothing
+	 * else using this helper.
+	 * 
+	 * @return True if the file can be replaced once this helper is closed. If false, the file stays in WAL
+	 * 		mode, and the read connections reopen on next use.
+	 */
+	public boolean releaseFile() {
+		readers.close();
+		String mode = null;
+		try {
+			Cursor c = getWritableDatabase().rawQuery("PRAGMA journal_mode=DELETE", null);
+			mode = c.moveToFirst() ? c.getString(0) : null;
+			c.close();
+		} catch (android.database.SQLException e) {
+			// The database is locked: some other connection still has it open.
+			Log.w(LOG_TAG, "could not leave WAL: " + e.getMessage());
+		}
+		return "delete".equalsIgnoreCase(mode);
+	}
+	
+	@Override
+	public void onOpen(SQLiteDatabase database) {
+		super.onOpen(database);
+		if (database.isReadOnly()) {
+			return;
+		}
 		
+		// Set WAL on the file rather than through enableWriteAheadLogging, which Android turns off for good
+		// on a connection the first time it runs ATTACH, as library updates and topic refreshes do. Newer
+		// Android resets the journal mode as the connection opens, so this runs on every open.
+		Cursor c = database.rawQuery("PRAGMA journal_mode=WAL", null);
+		String mode = c.moveToFirst() ? c.getString(0) : null;
+		c.close();
+		if (!"wal".equalsIgnoreCase(mode)) {
+			// Readers still work in the old journal mode; they just wait on writes.
+			Log.w(LOG_TAG, "could not enable WAL; journal mode is " + mode);
+		}
+	}
+	
+	@Override
+	public void onCreate(SQLiteDatabase database, ConnectionSource connectionSource) {
+		// The raw database ships with user_version 0, so this is where a freshly imported copy lands.
+		// Bring it up to the current schema.
+		migrator.upgrade(database, RAW_DATABASE_VERSION);
 	}
 	
 
 	@Override
 	public void onUpgrade(final SQLiteDatabase database,
 			final ConnectionSource connectionSource, final int oldVersion, final int newVersion) {
+		// Only the schema changes happen here; the data catches up in runPendingMigrations.
+		migrator.upgrade(database, oldVersion);
+	}
+	
+	/**
+	 * Finish the migrations started when the database was opened. Call once per helper, off the main thread.
+	 * 
+	 * @return The number of migration steps run.
+	 */
+	public int runPendingMigrations() {
+		return migrator.runPending(getWritableDatabase());
+	}
+	
+	/**
+	 * @return True once the data, and not just the schema, is up to date.
+	 */
+	public boolean isMigrated() {
+		return migrator.isReady();
+	}
+	
+	/**
+	 * Block until {@link #runPendingMigrations} has finished. Never call this from the main thread.
+	 */
+	public void awaitMigrations() {
+		migrator.awaitReady();
+	}
+	
+	/**
+	 * The steps from each release, oldest first. Each runs for databases older than its version.
+	 * 
+	 * Schema parts run while the database opens, so keep them to quick DDL; anything that touches every
+	 * row belongs in the data part, which runs in the background. Both parts must be safe to repeat.
+	 */
+	private List<Migration> buildMigrations() {
+		List<Migration> migrations = new ArrayList<Migration>();
 		
-		
-		if (oldVersion < 111) {
-			// Create new Caption table.
-			try {
-				TableUtils.createTableIfNotExists(connectionSource, Caption.class);
-			} catch (SQLException e) {
-				e.printStackTrace();
+		migrations.add(new Migration(111, "caption table") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				try {
+					TableUtils.createTableIfNotExists(getConnectionSource(), Caption.class);
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
 			}
-		}
-		
-		if (oldVersion < 114) {
-			// Could instead create an ORMLite pojo for topicvideo and do this with TableUtils.
-			database.execSQL("CREATE TABLE IF NOT EXISTS `topicvideo` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT, `topic_id` VARCHAR, `video_id` VARCHAR )");
-		}
+		});
 		
-		if (newVersion >= 111) {
-			
-			// Played with the idea of putting this all into an AsyncTask, but
-			//  1) Can crash the app. For example, in 114 upgrade we add topicvideo table; if it doesn't exist and user reaches a video list, we 
-			//     crash. Worse, if we do crash here the app is broken. Db version has been bumped, so this code doesn't get another chance to run.
-			//  2) To prevent crash, tried showing AlertDialog. The context we get here is "not an application context", so trying to show a window
-			//     (or sometimes a toast) crashes us with a null window token error. I dug deep to try to pass in a useful context with no luck.
-			//     See branch temp/pass_context_to_helper.
-			//  3) It doesn't take very long (truncate / reload full video and topic tables is just a few seconds, not long enough for ANR on Fire HD)
-			
-			new DatabaseImporter(context).import_(DATABASE_RESOURCE_ID, "temp");
-			SQLiteDatabase tempDb = new TempHelper(context).getReadableDatabase();
-			
-			if (oldVersion < 111) {
-				do111Upgrade(database, tempDb);
+		migrations.add(new Migration(114, "library from the bundled database") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				// Could instead create an ORMLite pojo for topicvideo and do this with TableUtils.
+				db.execSQL("CREATE TABLE IF NOT EXISTS `topicvideo` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT, `topic_id` VARCHAR, `video_id` VARCHAR )");
 			}
 			
-			if (oldVersion < 114 && newVersion >= 114) {
-				// add topicvideo table
-				do114Upgrade(database, tempDb);
+			@Override
+			public void data(SQLiteDatabase db) {
+				// Libraries this old predate topicvideo, so replace them with the one we ship.
+				importBundledLibrary(db);
 			}
-			
-			if (oldVersion < 120 && newVersion >= 120) {
-				// add video.dlm_id column
-				do120Upgrade(database, tempDb);
+		});
+		
+		migrations.add(new Migration(120, "video.dlm_id") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				addColumnIfMissing(db, "video", "dlm_id", "INTEGER NOT NULL DEFAULT 0");
 			}
 			
-			tempDb.close();
-			context.deleteDatabase(TempHelper.DB_NAME);
-			
-			// Update download status from storage. This recovers any lost during library updates in 1.1.3.
-			database.beginTransaction();
-			try {
-				for (String yid : getAllDownloadedYoutubeIds()) {
-					database.execSQL("update video set download_status=? where youtube_id=?", new Object[] {Video.DL_STATUS_COMPLETE, yid});
+			@Override
+			public void data(SQLiteDatabase db) {
+				// Recover download status from storage, including any lost during library updates in 1.1.3,
+				// then pick up dlm_ids from the download manager.
+				List<String> youtubeIds = getAllDownloadedYoutubeIds();
+				db.beginTransaction();
+				try {
+					SQLiteStatement update = db.compileStatement("update video set download_status = ? where youtube_id = ?");
+					for (String youtubeId : youtubeIds) {
+						update.bindLong(1, Video.DL_STATUS_COMPLETE);
+						update.bindString(2, youtubeId);
+						update.execute();
+					}
+					update.close();
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
 				}
-				database.setTransactionSuccessful();
-			} finally {
-				database.endTransaction();
+				try {
+					getVideoDao();
+				} catch (SQLException e) {
+					e.printStackTrace();
+					return;
+				}
+				syncWithDownloadManager();
 			}
-					
-		}
-			
-	}
-
-	private void do111Upgrade(SQLiteDatabase database, SQLiteDatabase tempDb) {
-		Log.d(LOG_TAG, "do111Upgrade");
+		});
 		
-		Cursor c;
+		migrations.add(new Migration(121, "subtree hashes, child counts, topic_closure, download count trigger") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				// topic.subtree_hash is used for delta library updates
+				addColumnIfMissing(db, "topic", "subtree_hash", "VARCHAR");
+				// topic.child_count spares topic lists counting children per row
+				addColumnIfMissing(db, "topic", "child_count", "INTEGER NOT NULL DEFAULT 0");
+				db.execSQL(SQL_CREATE_TOPIC_CLOSURE);
+				db.execSQL(SQL_CREATE_TOPIC_CLOSURE_INDEX);
+				db.execSQL(SQL_CREATE_TOPICVIDEO_VIDEO_INDEX);
+				db.execSQL(SQL_CREATE_DOWNLOADED_COUNT_TRIGGER);
+				// update_metrics is a history of library update runs
+				db.execSQL(LibraryUpdateMetrics.SQL_CREATE_TABLE);
+			}
 			
-		// Maintain download status.
-		tempDb.beginTransaction();
-		try {
-			String sql = "select max(download_status), youtube_id from video where download_status != ? group by youtube_id";
-			c = database.rawQuery(sql, new String[] {"" + Video.DL_STATUS_NOT_STARTED});
-			while (c.moveToNext()) {
-				String youtube_id = c.getString(c.getColumnIndex("youtube_id"));
-				String download_status = c.getString(c.getColumnIndex("max(download_status)"));
-				ContentValues v = new ContentValues();
-				v.put("download_status", download_status);
-				String[] idArg = new String[] {youtube_id};
-				tempDb.update("video", v, "youtube_id = ?", idArg);
-				
-				// cursor over parent topics of this video
-				sql = "select topic._id from topic, topicvideo, video where video.youtube_id=? and topicvideo.video_id=video.readable_id and topicvideo.topic_id=topic._id";
-				Cursor c1 = tempDb.rawQuery(sql, idArg);
-				Log.d(LOG_TAG, String.format("updating counts for %d topics", c1.getCount()));
-				while (c1.moveToNext()) {
-					String topicId = c1.getString(c1.getColumnIndex("_id"));
-					incrementDownloadedVideoCounts(tempDb, topicId, "topic");
+			@Override
+			public void data(SQLiteDatabase db) {
+				db.beginTransaction();
+				try {
+					db.execSQL("update topic set child_count = case child_kind " +
+							"when 'Video' then (select count() from topicvideo where topicvideo.topic_id = topic._id) " +
+							"else (select count() from topic t where t.parentTopic_id = topic._id) end");
+					if (DatabaseUtils.queryNumEntries(db, "topic_closure") == 0) {
+						rebuildHierarchy(db);
+					}
+					// The trigger keeps counts from here on; count what is already downloaded.
+					recomputeDownloadedVideoCounts(db, "main");
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
 				}
-				c1.close();
 			}
-			c.close();
-			tempDb.setTransactionSuccessful();
-		} finally {
-			tempDb.endTransaction();
-		}
-			
-		// Migrate topics.
-		database.beginTransaction();
-		try {
-			List<String> schema = new ArrayList<String>();
-			c = tempDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"topic"});
-			while (c.moveToNext()) {
-				String s = c.getString(0);
-				if (s != null) {
-					schema.add(s);
+		});
+		
+		migrations.add(new Migration(122, "lookup indexes") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				// indexes for the video list, downloads and topic list lookups
+				for (String sql : SQL_CREATE_LOOKUP_INDEXES) {
+					db.execSQL(sql);
 				}
 			}
-			c.close();
-			database.execSQL("drop table topic");
-			for (String s : schema) {
-				Log.d(LOG_TAG, s);
-				database.execSQL(s);
+		});
+		
+		migrations.add(new Migration(123, "library search") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				LibrarySearch.create(db, "main");
 			}
 			
-			c = tempDb.rawQuery("select * from topic", null);
-			while (c.moveToNext()) {
-				ContentValues v = new ContentValues();
-				DatabaseUtils.cursorRowToContentValues(c, v);
-				database.insert("topic", null, v);
-			}
-			c.close();
-			database.setTransactionSuccessful();
-		} finally {
-			database.endTransaction();
-		}
-		// Migrate videos.
-		database.beginTransaction();
-		try {
-			List<String> schema = new ArrayList<String>();
-			c = tempDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"video"});
-			while (c.moveToNext()) {
-				String s = c.getString(0);
-				if (s != null) {
-					schema.add(s);
+			@Override
+			public void data(SQLiteDatabase db) {
+				// A database built by build_db.py arrives already indexed.
+				if (LibrarySearch.isEmpty(db)) {
+					db.beginTransaction();
+					try {
+						LibrarySearch.rebuild(db, "main");
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
 				}
 			}
-			c.close();
-			database.execSQL("drop table video");
-			for (String s : schema) {
-				Log.d(LOG_TAG, s);
-				database.execSQL(s);
+		});
+		
+		migrations.add(new Migration(124, "caption search") {
+			@Override
+			public void schema(SQLiteDatabase db) {
+				CaptionSearch.create(db, "main");
 			}
 			
-			c = tempDb.rawQuery("select * from video", null);
-			while (c.moveToNext()) {
-				ContentValues v = new ContentValues();
-				DatabaseUtils.cursorRowToContentValues(c, v);
-				database.insert("video", null, v);
+			@Override
+			public void data(SQLiteDatabase db) {
+				// Index the captions cached before there was an index; from here on, CaptionManager keeps it.
+				if (CaptionSearch.isEmpty(db)) {
+					db.beginTransaction();
+					try {
+						CaptionSearch.rebuild(db);
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				}
 			}
-			c.close();
-			database.setTransactionSuccessful();
-		} finally {
-			database.endTransaction();
-		}
+		});
 		
-		Log.d(LOG_TAG, "do111Upgrade returning");
+		return migrations;
 	}
 	
-	private void do114Upgrade(SQLiteDatabase database, SQLiteDatabase tempDb) {
-		Log.d(LOG_TAG, "do114Upgrade");
-		
-		database.beginTransaction();
-		Cursor c = null;
+	/**
+	 * Replace the library tables' contents with those of the database we ship, keeping download status.
+	 * 
+	 * Copies table to table with INSERT ... SELECT through an attached copy. Columns the bundled tables have
+	 * and the old ones lack are added first, so nothing shipped is left behind; columns only the old tables
+	 * have, such as those later steps added, keep their defaults.
+	 */
+	private void importBundledLibrary(SQLiteDatabase db) {
+		new DatabaseImporter(context).import_(DATABASE_RESOURCE_ID, BUNDLED_DB_NAME);
+		db.execSQL("attach database ? as ka_bundled", new Object[] {context.getDatabasePath(BUNDLED_DB_NAME).getAbsolutePath()});
 		try {
-			List<String> schema = new ArrayList<String>();
-			c = tempDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"topicvideo"});
-			while (c.moveToNext()) {
-				String s = c.getString(0);
-				if (s != null) {
-					schema.add(s);
+			db.beginTransaction();
+			try {
+				db.execSQL("drop table if exists temp.bundled_download_status");
+				db.execSQL("create temp table bundled_download_status as " +
+						"select youtube_id, max(download_status) as download_status from main.video where download_status > ? group by youtube_id",
+						new Object[] {Video.DL_STATUS_NOT_STARTED});
+				
+				for (String table : new String[] {"topic", "video", "topicvideo", "topic_closure"}) {
+					addMissingColumns(db, table, "main", "ka_bundled");
+					String columns = getSharedColumns(db, table, "main", "ka_bundled");
+					if (columns == null) {
+						continue;
+					}
+					db.execSQL(String.format("delete from main.%s", table));
+					db.execSQL(String.format("insert into main.%1$s (%2$s) select %2$s from ka_bundled.%1$s", table, columns));
 				}
+				
+				// The bundled topic_closure is already in, so the trigger would rewrite every ancestor per video.
+				boolean trigger = dropDownloadedCountTrigger(db, "main");
+				db.execSQL("update main.video set download_status = " +
+						"(select s.download_status from temp.bundled_download_status s where s.youtube_id = main.video.youtube_id) " +
+						"where youtube_id in (select youtube_id from temp.bundled_download_status)");
+				db.execSQL("drop table temp.bundled_download_status");
+				if (trigger) {
+					recomputeDownloadedVideoCounts(db, "main");
+					createDownloadedCountTrigger(db, "main");
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
 			}
-			c.close();
-			database.execSQL("drop table topicvideo");
-			for (String s : schema) {
-				Log.d(LOG_TAG, s);
-				database.execSQL(s);
-			}
-			
-			c = tempDb.rawQuery("select * from topicvideo", null);
-			while (c.moveToNext()) {
-				ContentValues v = new ContentValues();
-				DatabaseUtils.cursorRowToContentValues(c, v);
-				database.insert("topicvideo", null, v);
-			}
-			c.close();
-			database.setTransactionSuccessful();
 		} finally {
-			if (c != null && !c.isClosed()) {
-				c.close();
-			}
-			database.endTransaction();
+			db.execSQL("detach database ka_bundled");
+			context.deleteDatabase(BUNDLED_DB_NAME);
 		}
-		
-		Log.d(LOG_TAG, "do114Upgrade returning");
 	}
 	
-	private void do120Upgrade(SQLiteDatabase database, SQLiteDatabase tempDb) {
-		// adds dlm_id column
-		
+	/**
+	 * @return The columns the table has in both schemas as a comma-separated list, or null if either lacks the table.
+	 */
+	private static String getSharedColumns(SQLiteDatabase db, String table, String schema, String otherSchema) {
+		Set<String> other = new HashSet<String>();
+		Cursor c = db.rawQuery(String.format("pragma %s.table_info(%s)", otherSchema, table), null);
+		int nameIndex = c.getColumnIndex("name");
+		while (c.moveToNext()) {
+			other.add(c.getString(nameIndex));
+		}
+		c.close();
 		
-		// Move existing video data into temp table (dlm_id will be left at default of 0).
-		tempDb.beginTransaction();
-		Cursor c = null;
-		try {
-			tempDb.execSQL("delete from video");
-			c = database.rawQuery("select * from video", null);
-			while (c.moveToNext()) {
-				ContentValues v = new ContentValues();
-				DatabaseUtils.cursorRowToContentValues(c, v);
-				tempDb.insert("video", null, v);
-			}
-			tempDb.setTransactionSuccessful();
-		} finally {
-			if (c != null && !c.isClosed()) {
-				c.close();
+		StringBuilder columns = new StringBuilder();
+		c = db.rawQuery(String.format("pragma %s.table_info(%s)", schema, table), null);
+		nameIndex = c.getColumnIndex("name");
+		while (c.moveToNext()) {
+			String name = c.getString(nameIndex);
+			if (other.contains(name)) {
+				if (columns.length() > 0) {
+					columns.append(", ");
+				}
+				columns.append('`').append(name).append('`');
 			}
-			tempDb.endTransaction();
 		}
-			
-		// Recreate main video table with the new column.
-		database.execSQL("drop table video");
-		c = tempDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"video"});
+		c.close();
+		return columns.length() > 0 ? columns.toString() : null;
+	}
+	
+	/**
+	 * Give a table every column its copy in another schema has, with the same declared type and default.
+	 * 
+	 * SQLite can't add a NOT NULL column without a default, so such columns are added nullable. Does nothing
+	 * if either schema lacks the table.
+	 */
+	private static void addMissingColumns(SQLiteDatabase db, String table, String schema, String otherSchema) {
+		Set<String> existing = new HashSet<String>();
+		Cursor c = db.rawQuery(String.format("pragma %s.table_info(%s)", schema, table), null);
+		int nameIndex = c.getColumnIndex("name");
 		while (c.moveToNext()) {
-			String s = c.getString(0);
-			if (s != null) {
-				database.execSQL(s);
-			}
+			existing.add(c.getString(nameIndex));
 		}
 		c.close();
+		if (existing.isEmpty()) {
+			return;
+		}
 		
-		// Move data from temp back into main db.
-		database.beginTransaction();
-		try {
-			c = tempDb.rawQuery("select * from video", null);
-			while (c.moveToNext()) {
-				ContentValues v = new ContentValues();
-				DatabaseUtils.cursorRowToContentValues(c, v);
-				database.insert("video", null, v);
+		List<String> additions = new ArrayList<String>();
+		c = db.rawQuery(String.format("pragma %s.table_info(%s)", otherSchema, table), null);
+		nameIndex = c.getColumnIndex("name");
+		int typeIndex = c.getColumnIndex("type");
+		int notNullIndex = c.getColumnIndex("notnull");
+		int defaultIndex = c.getColumnIndex("dflt_value");
+		while (c.moveToNext()) {
+			String name = c.getString(nameIndex);
+			if (existing.contains(name)) {
+				continue;
 			}
-			database.setTransactionSuccessful();
-		} finally {
-			if (c != null && !c.isClosed()) {
-				c.close();
+			StringBuilder definition = new StringBuilder();
+			definition.append('`').append(name).append("` ").append(c.getString(typeIndex));
+			if (!c.isNull(defaultIndex)) {
+				if (c.getInt(notNullIndex) != 0) {
+					definition.append(" NOT NULL");
+				}
+				definition.append(" DEFAULT ").append(c.getString(defaultIndex));
 			}
-			database.endTransaction();
+			additions.add(definition.toString());
 		}
+		c.close();
 		
-		syncWithDownloadManager();
+		for (String definition : additions) {
+			Log.d(LOG_TAG, String.format("adding column %s.%s from %s", table, definition, otherSchema));
+			db.execSQL(String.format("alter table %s.`%s` add column %s", schema, table, definition));
+		}
 	}
 	
-	class TempHelper extends OrmLiteSqliteOpenHelper {
-		
-		static final String DB_NAME = "temp";
-
-		public TempHelper(Context context) {
-		    super(context, DB_NAME, null, 1);
-		}
-
-		@Override
-		public void onCreate(SQLiteDatabase database, ConnectionSource connectionSource) {
-		}
-
-		@Override
-		public void onUpgrade(SQLiteDatabase database,
-				ConnectionSource connectionSource, int oldVersion, int newVersion) {
+	/**
+	 * @return True if the column was added, false if it was already there.
+	 */
+	private static boolean addColumnIfMissing(SQLiteDatabase database, String table, String column, String type) {
+		Cursor c = database.rawQuery(String.format("pragma table_info(%s)", table), null);
+		try {
+			int nameIndex = c.getColumnIndex("name");
+			while (c.moveToNext()) {
+				if (column.equals(c.getString(nameIndex))) {
+					return false;
+				}
+			}
+		} finally {
+			c.close();
 		}
+		Log.d(LOG_TAG, String.format("adding column %s.%s", table, column));
+		database.execSQL(String.format("alter table `%s` add column `%s` %s", table, column, type));
+		return true;
 	}
 	
-	
 	///////////////////////////////  Download-related  ////////////////////////////////
 	
 	public void syncWithDownloadManager() {
@@ -514,6 +737,12 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
+			
+			Set<String> youtubeIds = new HashSet<String>();
+			for (Video video : videos) {
+				youtubeIds.add(video.getYoutube_id());
+			}
+			postVideoChange(COL_DL_STATUS, youtubeIds);
 		}
 		
 		Log.w(LOG_TAG, "  <--   syncWithDownloadManager");
@@ -540,52 +769,131 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 		if (toRemove > 0) {
 			((DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE)).remove(toRemove);
 			resetDownloadStatusAndDlmId(toRemove);
+			if (video.getYoutube_id() != null) {
+				postVideoChange(COL_DL_STATUS, Collections.singleton(video.getYoutube_id()));
+			}
 		}
 		return toRemove;
 	}
 	
 	private void resetDownloadStatusAndDlmId(long dlm_id) {
-		try {
-			UpdateBuilder<Video, String> q = getVideoDao().updateBuilder();
-			q.where().eq("dlm_id", dlm_id);
-			q.updateColumnValue("dlm_id", 0);
-			q.updateColumnValue("download_status", Video.DL_STATUS_NOT_STARTED);
-			q.update();
-		} catch (SQLException e) {
-			e.printStackTrace();
+		getStatements().update(SQL_RESET_DOWNLOAD, dlm_id);
+	}
+	
+	/**
+	 * Get the DownloadManager ids of every video with a download, finished or not.
+	 * 
+	 * The download poller calls this once a second, so it runs one compiled statement and reads one string
+	 * rather than opening a cursor.
+	 */
+	public long[] getDownloadManagerIds() {
+		String list = getReadStatements().queryForString(SQL_DOWNLOAD_MANAGER_IDS);
+		if (list == null) {
+			return new long[0];
+		}
+		String[] parts = list.split(",");
+		long[] ids = new long[parts.length];
+		for (int i = 0; i < parts.length; ++i) {
+			ids[i] = Long.parseLong(parts[i]);
 		}
+		return ids;
 	}
 	
 	////////////////////////////////////////////////////////////////////////////////////
 
 	
 	/**
-	 * Increments downloaded_video_count field on the topic with the given id and all its ancestors.
+	 * Drop the downloaded count trigger from a schema, ahead of a bulk change to download status that ends in a
+	 * full recount. Left in place, the trigger would rewrite every ancestor once per video changed, only for the
+	 * recount to overwrite it all. Put it back with {@link #createDownloadedCountTrigger} in the same transaction.
 	 * 
-	 * TODO : review the need for this. I think it's moot, as we now calculate download counts for topics on demand.
+	 * @param schema main, or the name of an attached database.
+	 * @return True if the schema had the trigger.
+	 */
+	public static boolean dropDownloadedCountTrigger(SQLiteDatabase db, String schema) {
+		boolean had = DatabaseUtils.longForQuery(db,
+				String.format("select count() from %s.sqlite_master where type = 'trigger' and name = ?", schema),
+				new String[] {DOWNLOADED_COUNT_TRIGGER}) > 0;
+		db.execSQL(String.format("drop trigger if exists %s.`%s`", schema, DOWNLOADED_COUNT_TRIGGER));
+		return had;
+	}
+	
+	/**
+	 * Create the downloaded count trigger in a schema, as {@link #SQL_CREATE_DOWNLOADED_COUNT_TRIGGER} does in main.
 	 * 
-	 * @param db The db in which to do the incrementing.
-	 * @param topicId The id of the topic to update.
-	 * @param topicTableName The name of the topic table in the given db.
+	 * @param schema main, or the name of an attached database.
 	 */
-	public static void incrementDownloadedVideoCounts(SQLiteDatabase db, String topicId, String topicTableName) {
-		Log.d(LOG_TAG, "incrementDownloadedVideoCounts: " + topicId);
-		String sql = String.format("update %s set downloaded_video_count = downloaded_video_count + 1 where _id=?", topicTableName);
-		String[] idArg = new String[] {topicId};
-		db.execSQL(sql, idArg);
+	public static void createDownloadedCountTrigger(SQLiteDatabase db, String schema) {
+		db.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS %s.`%s` ", schema, DOWNLOADED_COUNT_TRIGGER) + SQL_DOWNLOADED_COUNT_TRIGGER_BODY);
+	}
+	
+	/**
+	 * Recalculates downloaded_video_count on every topic in the given schema from the videos' download_status.
+	 * 
+	 * Between recounts, the count is kept by {@link #SQL_CREATE_DOWNLOADED_COUNT_TRIGGER}. A recount is only
+	 * needed when the tree itself changes, since the trigger doesn't follow topicvideo rows moving around.
+	 * 
+	 * One aggregate query counts downloaded videos per immediate parent topic, then the counts are rolled up
+	 * the parent chain in memory and written with a single compiled statement.
+	 * 
+	 * @param db The db in which to recount. Callers wanting atomicity should hold a transaction around this.
+	 * @param schema The schema (main, or the name of an attached database) holding topic, topicvideo and video.
+	 */
+	public static void recomputeDownloadedVideoCounts(SQLiteDatabase db, String schema) {
+		Map<String, String> parents = new HashMap<String, String>();
+		Cursor c = db.rawQuery(String.format("select _id, parentTopic_id from %s.topic", schema), null);
+		while (c.moveToNext()) {
+			parents.put(c.getString(0), c.getString(1));
+		}
+		c.close();
 		
-		sql = String.format("select parentTopic_id, downloaded_video_count from %s where _id=?", topicTableName);
-		Cursor c = db.rawQuery(sql, idArg);
-		c.moveToFirst();
-		String parentId = c.getString(c.getColumnIndex("parentTopic_id"));
-		String dlc = c.getString(c.getColumnIndex("downloaded_video_count"));
-		Log.d(LOG_TAG, "  --> " + dlc);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		c = db.rawQuery(String.format(
+				"select tv.topic_id, count() from %1$s.topicvideo tv, %1$s.video v where tv.video_id = v.readable_id and v.download_status = ? group by tv.topic_id",
+				schema), new String[] {"" + Video.DL_STATUS_COMPLETE});
+		while (c.moveToNext()) {
+			String topicId = c.getString(0);
+			int n = c.getInt(1);
+			while (topicId != null) {
+				Integer existing = counts.get(topicId);
+				counts.put(topicId, existing == null ? n : existing + n);
+				topicId = parents.get(topicId);
+			}
+		}
 		c.close();
-		if (parentId != null) {
-			incrementDownloadedVideoCounts(db, parentId, topicTableName);
+		
+		db.execSQL(String.format("update %s.topic set downloaded_video_count = 0", schema));
+		SQLiteStatement update = db.compileStatement(String.format("update %s.topic set downloaded_video_count = ? where _id = ?", schema));
+		try {
+			for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+				update.bindLong(1, entry.getValue());
+				update.bindString(2, entry.getKey());
+				update.execute();
+			}
+		} finally {
+			update.close();
 		}
+		Log.d(LOG_TAG, String.format("recomputeDownloadedVideoCounts: %d topics updated", counts.size()));
 	}
 	
+	/**
+	 * Recalculates downloaded_video_count on one topic and every topic below it, as after that subtree was
+	 * replaced. Topics above it are left alone; callers adjust them by the change in the topic's own count.
+	 * 
+	 * Each topic counts the topicvideo rows below it through topic_closure, so the cost is the size of the
+	 * subtree rather than of the library.
+	 * 
+	 * @param db The db in which to recount. Callers wanting atomicity should hold a transaction around this.
+	 * @param schema The schema (main, or the name of an attached database) holding topic, topic_closure, topicvideo and video.
+	 * @param topicId The root of the subtree to recount.
+	 */
+	public static void recomputeDownloadedVideoCounts(SQLiteDatabase db, String schema, String topicId) {
+		db.execSQL(String.format("update %1$s.topic set downloaded_video_count = " +
+				"(select count() from %1$s.topic_closure c, %1$s.topicvideo tv, %1$s.video v " +
+				"where c.ancestor = topic._id and tv.topic_id = c.descendant and v.readable_id = tv.video_id and v.download_status = ?) " +
+				"where _id in (select descendant from %1$s.topic_closure where ancestor = ?)", schema),
+				new Object[] {Video.DL_STATUS_COMPLETE, topicId});
+	}
 	
 	public Dao<UserVideo, Integer> getUserVideoDao() throws SQLException {
 		if (userVideoDao == null) {
@@ -621,63 +929,22 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 	 * This returns FROM and WHERE clauses. The SELECT and other parts of the query are the responsibility
 	 * of the caller. In particular, it is possible to add AND/OR clauses after the WHERE.
 	 * 
+	 * Descendants are found through topic_closure and their videos through topicvideo, so this is the same
+	 * indexed join at any depth.
+	 * 
 	 * @param depth The tree depth at which to search for videos (0 for immediate children).
 	 * @return A string with appropriate FROM and WHERE clauses.
 	 */
 	public String buildVideosForTopicSubQuery(int depth) {
-		String from = buildTopicVideoFromClause(depth);
-		String where = buildTopicVideoWhereClause(depth);
-		stringFormatter.format("%s %s", from, where);
-		
-		String result = stringBuilder.toString();
-		stringBuilder.setLength(0);
+		String result = String.format("from %1$s, topicvideo, topic_closure where topic_closure.ancestor = ? and topic_closure.depth = %2$d " +
+				"and topicvideo.topic_id = topic_closure.descendant and %1$s.readable_id = topicvideo.video_id",
+				TABLE_VIDEO, depth);
 		Log.v(LOG_TAG, "returning query string: " + result);
 		return result;
-		
-	}
-	
-	private String buildTopicVideoFromClause(int depth) {
-		if (depth == 0) {
-			stringFormatter.format("from %s", TABLE_VIDEO);
-		} else {
-			stringFormatter.format(", %s as p%%d", TABLE_TOPIC);
-			String extra = stringBuilder.toString();
-			stringBuilder.setLength(0);
-			
-			stringFormatter.format("from %s, %s as p0", TABLE_VIDEO, TABLE_TOPIC);
-			// for each depth N, add a ", topic as pN"
-			for (int i=0; i<depth-1; ++i) {
-				stringFormatter.format(extra, i+1);
-			}
-		}
-		
-		String result = stringBuilder.toString();
-		stringBuilder.setLength(0);
-		return result;
-	}
-	
-	private String buildTopicVideoWhereClause(int depth) {
-		if (depth == 0) {
-			stringFormatter.format("where %s = ?", COL_FK_TOPIC);
-		} else {
-			stringFormatter.format(" p%%d.%s = p%%d.%s and", COL_FK_TOPIC, COL_TOPIC_ID);
-			String extraWhere = stringBuilder.toString();
-			stringBuilder.setLength(0);
-			
-			stringFormatter.format("where %s.%s = p0.%s and", TABLE_VIDEO, COL_FK_TOPIC, COL_TOPIC_ID);
-		    // for each depth N, add a "pN.parentTopic_id = pN+1._id and"
-			for (int i=0; i<depth-1; ++i) {
-				stringFormatter.format(extraWhere, i, i+1);
-			}
-			stringFormatter.format(" p%d.%s = ?", depth - 1, COL_FK_TOPIC);
-		}
-		
-		String result = stringBuilder.toString();
-		stringBuilder.setLength(0);
-		return result;
 	}
 	
 	public boolean deleteDatabase(Context context) {
+		provisioned = false;
 		return context.deleteDatabase(DATABASE_NAME);
 	}
 	
@@ -721,84 +988,167 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 	/**
 	 * Update a video's download_status in the database.
 	 * 
-	 * Proxy to videoDao.update, but will not modify any fields but download_status.
-	 * Also updates the downloaded_video_count of all Topics in the video's parent 
-	 * hierarchy.
+	 * Will not modify any fields but download_status, on every video row with the video's youtube id.
+	 * The downloaded_video_count of all Topics in the video's parent hierarchy follows
+	 * through {@link #SQL_CREATE_DOWNLOADED_COUNT_TRIGGER}.
 	 * 
 	 * @param video The video to update.
 	 */
 	public void updateDownloadStatus(Video video, int was, int is) {
+		updateDownloadStatus(video.getYoutube_id(), is);
+	}
+	
+	/**
+	 * Set download_status on every video row with the given youtube id.
+	 * 
+	 * @return The number of rows updated.
+	 */
+	public int updateDownloadStatus(String youtubeId, int status) {
 		Log.d(LOG_TAG, "updateDownloadStatus");
-		try {
-			Dao<Video, String> videoDao = getVideoDao();
-			UpdateBuilder<Video, String> u = videoDao.updateBuilder();
-			u.updateColumnValue("download_status", is);
-			u.where().eq("youtube_id", video.getYoutube_id());
-			videoDao.update(u.prepare());
-			
-			// DEBUG
-//			QueryBuilder<Video, String> q = videoDao.queryBuilder();
-//			q.where().eq("readable_id", video.getReadable_id());
-//			Video v = videoDao.queryForFirst(q.prepare());
-//			Log.d(LOG_TAG, String.format("updated dl status of %s from %d to %d", video.getTitle(), was, v.getDownload_status()));
-			
-//			Dao<Topic, String> topicDao = getTopicDao();
-//			UpdateBuilder<Topic, String> ub = topicDao.updateBuilder();
-//			ub.updateColumnExpression("downloaded_video_count", "downloaded_video_count + 1");
-//			Topic p = video.getParentTopic();
-//			while (p != null) {
-//				topicDao.refresh(p);
-//				Log.d(LOG_TAG, String.format("updating parent topic %s. Value was %d...", p.getTitle(), p.getDownloaded_video_count()));
-//				ub.where().idEq(p.getId());
-//				PreparedUpdate<Topic> pu = ub.prepare();
-//				topicDao.update(pu);
-//				
-//				// DEBUG
-////				p = topicDao.queryForId(p.getId());
-////				Log.d(LOG_TAG, String.format("updated to %d.", p.getDownloaded_video_count()));
-//				
-//				p = p.getParentTopic();
-//			}
-			
-		} catch (SQLException e) {
-			e.printStackTrace();
+		int rows = getStatements().update(SQL_UPDATE_DOWNLOAD_STATUS, status, youtubeId);
+		if (rows > 0) {
+			postVideoChange(COL_DL_STATUS, Collections.singleton(youtubeId));
+		}
+		return rows;
+	}
+	
+	/**
+	 * Of the given videos, find those with at least a given download status, for deciding whether a change
+	 * moves videos into or out of a list. Reads a read connection, by the youtube_id index.
+	 * 
+	 * @param youtubeIds The videos to check.
+	 * @param minStatus The least download status to include.
+	 * @param topicId If not null, only include videos this topic lists directly.
+	 * @return The youtube ids of the videos that qualify.
+	 */
+	public Set<String> filterByDownloadStatus(Collection<String> youtubeIds, int minStatus, String topicId) {
+		Set<String> result = new HashSet<String>();
+		List<String> ids = new ArrayList<String>(youtubeIds);
+		SQLiteDatabase db = getReadConnection();
+		// Stay well under SQLite's limit of 999 parameters.
+		for (int start = 0; start < ids.size(); start += 500) {
+			List<String> chunk = ids.subList(start, Math.min(start + 500, ids.size()));
+			List<String> args = new ArrayList<String>(chunk);
+			StringBuilder sql = new StringBuilder("select video.youtube_id from video");
+			if (topicId != null) {
+				sql.append(", topicvideo");
+			}
+			sql.append(" where video.youtube_id in (");
+			for (int i = 0; i < chunk.size(); ++i) {
+				sql.append(i == 0 ? "?" : ",?");
+			}
+			sql.append(") and video.download_status >= ?");
+			args.add(String.valueOf(minStatus));
+			if (topicId != null) {
+				sql.append(" and topicvideo.video_id = video.readable_id and topicvideo.topic_id = ?");
+				args.add(topicId);
+			}
+			Cursor c = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+			while (c.moveToNext()) {
+				result.add(c.getString(0));
+			}
+			c.close();
 		}
+		return result;
+	}
+	
+	/**
+	 * Get the number of completed downloads in a topic and everything below it.
+	 * 
+	 * Reads the topic's downloaded_video_count directly rather than through the Dao, so a cached Topic
+	 * can't hand back a stale count.
+	 * 
+	 * @param topicId The id of the topic.
+	 * @return The count, or 0 if there is no such topic.
+	 */
+	public int getDownloadedVideoCount(String topicId) {
+		return (int) getReadStatements().queryForLong(0, SQL_DOWNLOADED_VIDEO_COUNT, topicId);
 	}
 	
-	public void denormalizeAncestry() {
-		String fmt = "%s|%s";
+	/**
+	 * Rebuild topic and video ancestry and the topic_closure table from parentTopic_id, in one pass.
+	 * 
+	 * Library updates fill these as the tree is parsed; this is for databases that predate that. Ancestor
+	 * chains are built once per topic from its parent's chain, so the cost is one read of the topic table plus
+	 * the writes, rather than an ORM refresh per ancestor of every row.
+	 * 
+	 * @param db The db to rebuild. Callers should hold a transaction around this.
+	 */
+	public static void rebuildHierarchy(SQLiteDatabase db) {
+		long start = System.currentTimeMillis();
+		
+		Map<String, String> parents = new HashMap<String, String>();
+		Cursor c = db.rawQuery("select _id, parentTopic_id from topic", null);
+		while (c.moveToNext()) {
+			parents.put(c.getString(0), c.getString(1));
+		}
+		c.close();
+		
+		Map<String, List<String>> chains = new HashMap<String, List<String>>();
+		for (String id : parents.keySet()) {
+			ancestorChain(id, parents, chains);
+		}
+		
+		db.execSQL("delete from topic_closure");
+		SQLiteStatement updateTopic = db.compileStatement("update topic set ancestry = ? where _id = ?");
+		SQLiteStatement insertClosure = db.compileStatement("insert or ignore into topic_closure (ancestor, descendant, depth) values (?,?,?)");
 		try {
-			for (Video v : getVideoDao().queryForAll()) {
-				String ancestry = "";
-				Topic p = v.getParentTopic();
-				while (p != null) {
-					getTopicDao().refresh(p);
-					ancestry = String.format(fmt, p.getId(), ancestry);
-					p = p.getParentTopic();
-				}
-				if (ancestry.endsWith("|")) { // actually, this is true for all videos
-					ancestry = ancestry.substring(0, ancestry.length()-1);
-				}
-				v.setAncestry(ancestry);
-				getVideoDao().update(v);
-			}
-			for (Topic t : getTopicDao().queryForAll()) {
-				String ancestry = "";
-				Topic p = t.getParentTopic();
-				while (p != null) {
-					getTopicDao().refresh(p);
-					ancestry = String.format(fmt, p.getId(), ancestry);
-					p = p.getParentTopic();
+			StringBuilder ancestry = new StringBuilder();
+			for (Map.Entry<String, List<String>> entry : chains.entrySet()) {
+				String id = entry.getKey();
+				List<String> chain = entry.getValue();
+				int n = chain.size();
+				
+				ancestry.setLength(0);
+				insertClosure.bindString(2, id);
+				for (int i = 0; i < n; ++i) {
+					String ancestor = chain.get(i);
+					ancestry.append('|').append(ancestor);
+					insertClosure.bindString(1, ancestor);
+					insertClosure.bindLong(3, n - i);
+					insertClosure.executeInsert();
 				}
-				if (ancestry.endsWith("|")) { // true for all but the root topic
-					ancestry = ancestry.substring(0, ancestry.length()-1);
+				insertClosure.bindString(1, id);
+				insertClosure.bindLong(3, 0);
+				insertClosure.executeInsert();
+				
+				if (n == 0) {
+					updateTopic.bindNull(1);
+				} else {
+					updateTopic.bindString(1, ancestry.toString());
 				}
-				t.setAncestry(ancestry);
-				getTopicDao().update(t);
+				updateTopic.bindString(2, id);
+				updateTopic.execute();
 			}
-		} catch (SQLException e) {
-			e.printStackTrace();
+		} finally {
+			updateTopic.close();
+			insertClosure.close();
+		}
+		
+		// A video's ancestry is its parent's, plus the parent.
+		db.execSQL("update video set ancestry = (select coalesce(t.ancestry, '') || '|' || t._id from topic t where t._id = video.parentTopic_id)");
+		
+		Log.d(LOG_TAG, String.format("rebuildHierarchy: %d topics in %dms", chains.size(), System.currentTimeMillis() - start));
+	}
+	
+	/**
+	 * @return The ancestors of the given topic, root first, memoized in chains.
+	 */
+	private static List<String> ancestorChain(String id, Map<String, String> parents, Map<String, List<String>> chains) {
+		List<String> chain = chains.get(id);
+		if (chain != null) {
+			return chain;
+		}
+		String parentId = parents.get(id);
+		if (parentId == null || !parents.containsKey(parentId)) {
+			chain = new ArrayList<String>();
+		} else {
+			chains.put(id, new ArrayList<String>()); // guards against a cycle in bad data
+			chain = new ArrayList<String>(ancestorChain(parentId, parents, chains));
+			chain.add(parentId);
 		}
+		chains.put(id, chain);
+		return chain;
 	}
 	
 	private List<String> getAllDownloadedYoutubeIds() {
@@ -0,0 +1,327 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.concentricsky.android.khanacademy.util.Log;
+
+/**
+ * Full-text search over topic and video titles, keywords and descriptions.
+ *
+ * The library_search table is an FTS4 index with one row per video and per browsable topic. A video's docid
+ * is its _id; a topic's is its rowid, negated, since topic ids are strings. The index holds its own copy of
+ * the text, so it is kept in step with the library: merges and topic refreshes remove the rows they are about
+ * to delete or replace and add the rows they inserted, each inside its own transaction, and the swap
+ * preparation builds it whole.
+ *
+ * Each word of a query matches as a prefix, and every word must match. Hits are ranked by where each word
+ * was found, title above keywords above description; equal ranks go to the shorter title.
+ *
+ * @author austinlally
+ *
+ */
+public class LibrarySearch {
+
+	public static final String LOG_TAG = LibrarySearch.class.getSimpleName();
+
+	public static final String TABLE = "library_search";
+
+	/** Older FTS4 versions (SQLite before 3.7.6) lack prefix indexes; there prefix queries read more of the index. */
+	private static final String SQL_CREATE = "CREATE VIRTUAL TABLE %s.`%s` USING fts4(%s%s)";
+	private static final String PREFIX_OPTION = ", prefix=\"2,3\"";
+
+	/** Ranking weight of a word found in each column, in table order. */
+	private static final double[] WEIGHTS = {10, 4, 1};
+
+	/** Index every video in the schema; {@link #add} narrows it with a condition on readable_id. */
+	private static final String SQL_ADD_VIDEOS = "insert into %1$s.library_search (docid, title, keywords, description) " +
+			"select _id, title, keywords, description from %1$s.video";
+	// The root, and topics with nothing to watch, aren't shown when browsing, so don't find them either.
+	private static final String SQL_ADD_TOPICS = "insert into %1$s.library_search (docid, title, description) " +
+			"select -rowid, title, description from %1$s.topic where parentTopic_id is not null and video_count > 0";
+	private static final String SQL_REMOVE_VIDEOS = "delete from %1$s.library_search where docid in (select _id from %1$s.video where readable_id in %2$s)";
+	private static final String SQL_REMOVE_TOPICS = "delete from %1$s.library_search where docid in (select -rowid from %1$s.topic where _id in %2$s)";
+
+	private static final String SQL_MATCH = "select docid, matchinfo(library_search), length(title) from library_search where library_search match ?";
+	private static final String SQL_VIDEO = "select readable_id, title from video where _id = ?";
+	private static final String SQL_TOPIC = "select _id, title from topic where rowid = ?";
+
+	/**
+	 * One search result.
+	 */
+	public static class Hit {
+		/** {@link Topic#CHILD_KIND_TOPIC} or {@link Topic#CHILD_KIND_VIDEO}. */
+		public final String kind;
+		/** The topic's _id, or the video's readable_id. */
+		public final String id;
+		public final String title;
+		/** Higher is better. Only comparable between hits of the same search. */
+		public final double rank;
+
+		Hit(String kind, String id, String title, double rank) {
+			this.kind = kind;
+			this.id = id;
+			this.title = title;
+			this.rank = rank;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s: %s (%.3f)", kind, id, title, rank);
+		}
+	}
+
+	private static class Scored {
+		final long docid;
+		final double rank;
+		final int titleLength;
+
+		Scored(long docid, double rank, int titleLength) {
+			this.docid = docid;
+			this.rank = rank;
+			this.titleLength = titleLength;
+		}
+	}
+
+	private static final Comparator<Scored> BEST_FIRST = new Comparator<Scored>() {
+		@Override
+		public int compare(Scored a, Scored b) {
+			if (a.rank != b.rank) {
+				return a.rank > b.rank ? -1 : 1;
+			}
+			// A short title the words match is closer to what was asked for: "Fractions" over "Decimals and Fractions".
+			if (a.titleLength != b.titleLength) {
+				return a.titleLength - b.titleLength;
+			}
+			// Topics, with negative docids, ahead of videos; then in library order.
+			return a.docid < b.docid ? -1 : a.docid > b.docid ? 1 : 0;
+		}
+	};
+
+	/**
+	 * Create the index if the schema lacks it. It starts empty; see {@link #rebuild}.
+	 *
+	 * @param schema main, or the name of an attached database.
+	 */
+	public static void create(SQLiteDatabase db, String schema) {
+		createIndex(db, schema, TABLE, "`title`, `keywords`, `description`");
+	}
+
+	/**
+	 * Create an FTS4 table with prefix indexes where supported, if the schema lacks it.
+	 *
+	 * @param schema main, or the name of an attached database.
+	 * @param columns The column list, as it goes between the parentheses.
+	 */
+	static void createIndex(SQLiteDatabase db, String schema, String table, String columns) {
+		// No IF NOT EXISTS for virtual tables before SQLite 3.7.11.
+		if (DatabaseUtils.longForQuery(db, String.format("select count() from %s.sqlite_master where name = ?", schema), new String[] {table}) > 0) {
+			return;
+		}
+		try {
+			db.execSQL(String.format(SQL_CREATE, schema, table, columns, PREFIX_OPTION));
+		} catch (SQLException e) {
+			Log.w(LOG_TAG, "no prefix index support; creating a plain index: " + e.getMessage());
+			db.execSQL(String.format(SQL_CREATE, schema, table, columns, ""));
+		}
+	}
+
+	/**
+	 * @return True if the index has no rows, as after {@link #create}.
+	 */
+	public static boolean isEmpty(SQLiteDatabase db) {
+		return isEmpty(db, TABLE);
+	}
+
+	static boolean isEmpty(SQLiteDatabase db, String table) {
+		return DatabaseUtils.longForQuery(db, String.format("select count() from (select docid from %s limit 1)", table), null) == 0;
+	}
+
+	/**
+	 * Replace the index's contents with the library's current topics and videos.
+	 *
+	 * @param db The db holding the index. Callers wanting atomicity should hold a transaction around this.
+	 * @param schema The schema (main, or the name of an attached database) holding the index, topic and video.
+	 */
+	public static void rebuild(SQLiteDatabase db, String schema) {
+		long start = System.currentTimeMillis();
+		db.execSQL(String.format("delete from %s.library_search", schema));
+		db.execSQL(String.format(SQL_ADD_VIDEOS, schema));
+		db.execSQL(String.format(SQL_ADD_TOPICS, schema));
+		// Merge the index into one segment, so queries read one doclist per word.
+		db.execSQL(String.format("insert into %1$s.library_search (library_search) values ('optimize')", schema));
+		Log.d(LOG_TAG, String.format("rebuilt search index in %dms", System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Remove topics and videos from the index. Call before deleting or replacing their rows, while their docids
+	 * can still be looked up.
+	 *
+	 * @param db The db holding the index, topic and video. Call this in the transaction that changes them.
+	 * @param schema The schema (main, or the name of an attached database) holding the index, topic and video.
+	 * @param topicIds A subquery of topic _ids, parenthesized, or null for none.
+	 * @param readableIds A subquery of video readable_ids, parenthesized, or null for none.
+	 */
+	public static void remove(SQLiteDatabase db, String schema, String topicIds, String readableIds) {
+		if (topicIds != null) {
+			db.execSQL(String.format(SQL_REMOVE_TOPICS, schema, topicIds));
+		}
+		if (readableIds != null) {
+			db.execSQL(String.format(SQL_REMOVE_VIDEOS, schema, readableIds));
+		}
+	}
+
+	/**
+	 * Add topics and videos to the index, once their rows are written. Topics that aren't browsable are skipped,
+	 * as by {@link #rebuild}.
+	 *
+	 * @param db The db holding the index, topic and video. Call this in the transaction that changes them.
+	 * @param schema The schema (main, or the name of an attached database) holding the index, topic and video.
+	 * @param topicIds A subquery of topic _ids, parenthesized, or null for none.
+	 * @param readableIds A subquery of video readable_ids, parenthesized, or null for none.
+	 */
+	public static void add(SQLiteDatabase db, String schema, String topicIds, String readableIds) {
+		if (topicIds != null) {
+			db.execSQL(String.format(SQL_ADD_TOPICS, schema) + " and _id in " + topicIds);
+		}
+		if (readableIds != null) {
+			db.execSQL(String.format(SQL_ADD_VIDEOS, schema) + " where readable_id in " + readableIds);
+		}
+	}
+
+	/**
+	 * Find topics and videos matching a query.
+	 *
+	 * Every match is scored from the index alone, then only the best are looked up, so the cost is one pass
+	 * over the matches plus a primary key lookup per returned hit.
+	 *
+	 * @param db A database with the index, such as a read connection.
+	 * @param query What the user typed.
+	 * @param limit The maximum number of hits to return.
+	 * @return The hits, best first; empty if the query has no words.
+	 */
+	public static List<Hit> search(SQLiteDatabase db, String query, int limit) {
+		List<Hit> hits = new ArrayList<Hit>();
+		String match = toMatchQuery(query);
+		if (match == null || limit <= 0) {
+			return hits;
+		}
+
+		List<Scored> scored = new ArrayList<Scored>();
+		Cursor c = db.rawQuery(SQL_MATCH, new String[] {match});
+		try {
+			while (c.moveToNext()) {
+				scored.add(new Scored(c.getLong(0), rank(c.getBlob(1)), c.getInt(2)));
+			}
+		} finally {
+			c.close();
+		}
+		Collections.sort(scored, BEST_FIRST);
+
+		for (Scored s : scored) {
+			if (hits.size() >= limit) {
+				break;
+			}
+			boolean isTopic = s.docid < 0;
+			c = db.rawQuery(isTopic ? SQL_TOPIC : SQL_VIDEO, new String[] {String.valueOf(Math.abs(s.docid))});
+			try {
+				// A row may be missing if the library changed since the index was built.
+				if (c.moveToFirst()) {
+					hits.add(new Hit(isTopic ? Topic.CHILD_KIND_TOPIC : Topic.CHILD_KIND_VIDEO, c.getString(0), c.getString(1), s.rank));
+				}
+			} finally {
+				c.close();
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Score one row from its matchinfo: for each word, the weight of the best column it was found in. How
+	 * often it was found doesn't count, so a long description can't outweigh a title.
+	 */
+	private static double rank(byte[] matchinfo) {
+		IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int phrases = info.get(0);
+		int columns = info.get(1);
+		double rank = 0;
+		for (int p = 0; p < phrases; ++p) {
+			double best = 0;
+			for (int col = 0; col < columns && col < WEIGHTS.length; ++col) {
+				// Hits in this row, hits in all rows, rows with hits: three ints per word and column.
+				if (info.get(2 + 3 * (col + p * columns)) > 0) {
+					best = Math.max(best, WEIGHTS[col]);
+				}
+			}
+			rank += best;
+		}
+		return rank;
+	}
+
+	/**
+	 * Turn user input into an FTS query: each word becomes a prefix term, and all must match.
+	 *
+	 * Words are split the way the index's simple tokenizer splits text, on ASCII characters other than
+	 * letters and digits, and ASCII letters are lowercased as it does. That also drops everything FTS would
+	 * read as syntax: quotes, parentheses, -, * and :, and uppercase AND, OR and NOT.
+	 *
+	 * @return The query, or null if the input has no words.
+	 */
+	static String toMatchQuery(String query) {
+		if (query == null) {
+			return null;
+		}
+		StringBuilder match = new StringBuilder();
+		int n = query.length();
+		int i = 0;
+		while (i < n) {
+			while (i < n && !isWordChar(query.charAt(i))) {
+				++i;
+			}
+			if (i == n) {
+				break;
+			}
+			if (match.length() > 0) {
+				match.append(' ');
+			}
+			while (i < n && isWordChar(query.charAt(i))) {
+				char ch = query.charAt(i++);
+				match.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+			}
+			match.append('*');
+		}
+		return match.length() == 0 ? null : match.toString();
+	}
+
+	private static boolean isWordChar(char ch) {
+		return ch >= 0x80 || ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9';
+	}
+
+}
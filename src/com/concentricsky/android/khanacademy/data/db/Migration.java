@@ -0,0 +1,59 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step in bringing the database up to {@link DatabaseHelper#DATABASE_VERSION}.
+ *
+ * A step comes in two parts. {@link #schema} runs while the database is being opened, so it must be quick
+ * and leave every table the app queries in a usable shape. {@link #data} runs afterwards on a background
+ * thread and does the slow part: backfilling columns, rebuilding derived tables, recounting.
+ *
+ * Both parts must be safe to run again. A step whose data part was cut short by the process dying is run
+ * again on the next launch.
+ *
+ * @author austinlally
+ *
+ */
+public abstract class Migration {
+
+	/** The database version that introduced this step. It runs for any database older than this. */
+	public final int version;
+	public final String name;
+
+	public Migration(int version, String name) {
+		this.version = version;
+		this.name = name;
+	}
+
+	/**
+	 * Make the schema changes. Called inside the open helper's transaction, while whoever opened the
+	 * database waits, so keep this to ALTER TABLE, CREATE INDEX and the like.
+	 */
+	public abstract void schema(SQLiteDatabase db);
+
+	/**
+	 * Fill in the data. Called on a background thread outside any transaction; open one as needed. Until
+	 * this finishes, queries see the new schema with whatever data was already there.
+	 */
+	public void data(SQLiteDatabase db) {
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.concentricsky.android.khanacademy.util.Log;
+
+/**
+ * Runs the screens' queries off the main thread and hands the results back on it.
+ *
+ * A screen holds a {@link Token} while it is started and cancels it when it stops. Queries for a cancelled
+ * token that haven't begun are skipped, and results that arrive after it are discarded rather than delivered.
+ * Within a token, each query goes to a named slot, and only the newest query submitted to a slot is
+ * delivered: a list requeried twice in quick succession shows the second result, whichever finishes first.
+ *
+ * Cursors are filled on the worker thread before they are handed over, so a list's first draw reads memory
+ * rather than SQLite. Queries wait at the {@link Gate}, if one is set, before they run; the app's gate holds
+ * them until schema migrations have filled in the data the lists read, and while a library update swaps in a
+ * new database file.
+ *
+ * @author austinlally
+ *
+ */
+public class QueryExecutor {
+
+	public static final String LOG_TAG = QueryExecutor.class.getSimpleName();
+
+	/** Read connections are pooled (see {@link DatabaseHelper#getReadConnection()}), so queries may overlap. */
+	private static final int THREADS = 2;
+
+	/**
+	 * A query and what to do with its result.
+	 */
+	public static abstract class Query<T> {
+		/**
+		 * Run the query. Called on a worker thread.
+		 */
+		protected abstract T load() throws SQLException;
+
+		/**
+		 * Use the result. Called on the main thread, only while the query is the newest in its slot and its
+		 * token isn't cancelled.
+		 */
+		protected abstract void onLoaded(T result);
+
+		/**
+		 * Release a result that won't be delivered. Called on the main thread. Closes cursors.
+		 */
+		protected void discard(T result) {
+			if (result instanceof Cursor) {
+				((Cursor) result).close();
+			}
+		}
+	}
+
+	/**
+	 * Something every query waits for before it runs, and holds while it runs.
+	 */
+	public interface Gate {
+		/**
+		 * Block until queries may run. Called on a worker thread.
+		 */
+		public void await();
+
+		/**
+		 * Called on the same worker thread once the query that passed {@link #await()} has finished loading,
+		 * whether or not it succeeded.
+		 */
+		public void release();
+	}
+
+	/**
+	 * One screen's queries, for cancelling them together and superseding them slot by slot.
+	 */
+	public static class Token {
+		private volatile boolean cancelled;
+		private final Map<String, Integer> generations = new HashMap<String, Integer>();
+
+		/**
+		 * Skip this token's queued queries, and discard its results from now on.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		private synchronized int next(String slot) {
+			if (slot == null) {
+				return 0;
+			}
+			Integer current = generations.get(slot);
+			int generation = current == null ? 0 : current + 1;
+			generations.put(slot, generation);
+			return generation;
+		}
+
+		private synchronized boolean isCurrent(String slot, int generation) {
+			return !cancelled && (slot == null || generations.get(slot) == generation);
+		}
+	}
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+	private volatile boolean shutdown;
+	private volatile Gate gate;
+
+	/**
+	 * Set what queries wait for before they run, or null to run them straight away.
+	 */
+	public void setGate(Gate gate) {
+		this.gate = gate;
+	}
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Run a query in the background, superseding any earlier query in the same slot of the same token.
+	 * Call on the main thread. Does nothing once the executor is shut down.
+	 *
+	 * @param token The screen's token.
+	 * @param slot What the query is for, such as "list"; queries in other slots are unaffected. Null for a
+	 * 		query that is never superseded, such as a check whose every result matters.
+	 * @param query The query.
+	 */
+	public <T> void submit(final Token token, final String slot, final Query<T> query) {
+		if (shutdown) {
+			return;
+		}
+		final int generation = token.next(slot);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!token.isCurrent(slot, generation)) {
+					return;
+				}
+				Gate g = gate;
+				if (g != null) {
+					g.await();
+				}
+				final T result;
+				try {
+					if (!token.isCurrent(slot, generation)) {
+						return;
+					}
+					result = query.load();
+					if (result instanceof Cursor) {
+						// Fills the cursor's window, which is the real cost of the query.
+						((Cursor) result).getCount();
+					}
+				} catch (SQLException e) {
+					Log.e(LOG_TAG, "query for " + slot + " failed: " + e.getMessage());
+					e.printStackTrace();
+					return;
+				} catch (RuntimeException e) {
+					// android.database.SQLException, or IllegalStateException from a connection closed under us.
+					// A screen missing one result beats the process dying on a worker thread.
+					Log.e(LOG_TAG, "query for " + slot + " failed: " + e.getMessage());
+					e.printStackTrace();
+					return;
+				} finally {
+					if (g != null) {
+						g.release();
+					}
+				}
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (token.isCurrent(slot, generation)) {
+							query.onLoaded(result);
+						} else if (result != null) {
+							query.discard(result);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stop the worker threads. Queries already submitted are dropped.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		executor.shutdownNow();
+	}
+
+}
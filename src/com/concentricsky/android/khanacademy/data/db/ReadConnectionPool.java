@@ -0,0 +1,89 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A few read-only connections to one database file, handed out in turn.
+ *
+ * Each connection serializes its own queries, so with n connections up to n cursors fill at once, none of
+ * them waiting on the helper's writer connection. Connections open on first use and reopen after
+ * {@link #close}, the way SQLiteOpenHelper reopens its own.
+ *
+ * @author austinlally
+ *
+ */
+class ReadConnectionPool {
+
+	private final String path;
+	private final SQLiteDatabase[] connections;
+	private final StatementRegistry[] statements;
+	private int next;
+
+	/**
+	 * @param path The database file. It must already exist, and should already be in WAL mode.
+	 * @param size The number of connections.
+	 */
+	ReadConnectionPool(String path, int size) {
+		this.path = path;
+		this.connections = new SQLiteDatabase[size];
+		this.statements = new StatementRegistry[size];
+	}
+
+	/**
+	 * @return The next connection in turn, opened if need be.
+	 */
+	synchronized SQLiteDatabase get() {
+		return connections[open()];
+	}
+
+	/**
+	 * @return The statements of the next connection in turn, opened if need be.
+	 */
+	synchronized StatementRegistry getStatements() {
+		return statements[open()];
+	}
+
+	private int open() {
+		int i = next;
+		next = (next + 1) % connections.length;
+
+		if (connections[i] == null || !connections[i].isOpen()) {
+			// Our queries use no localized collation, so skip setting it up.
+			connections[i] = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			statements[i] = new StatementRegistry(connections[i]);
+		}
+		return i;
+	}
+
+	/**
+	 * Close every connection. Cursors still open on one keep it alive until they are closed.
+	 */
+	synchronized void close() {
+		for (int i = 0; i < connections.length; ++i) {
+			if (connections[i] != null) {
+				statements[i].close();
+				connections[i].close();
+				connections[i] = null;
+				statements[i] = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.concentricsky.android.khanacademy.util.Log;
+
+/**
+ * Runs {@link Migration} steps in version order, in two phases.
+ *
+ * {@link #upgrade} runs each step's schema part from the open helper, and queues its data part in the
+ * schema_migration table. {@link #runPending} later runs the queued data parts in the background, marking
+ * each done as it finishes, so an interrupted run picks up at the first unfinished step. Both phases record
+ * their time per step.
+ *
+ * Code that needs the data complete, not just the schema, waits on {@link #awaitReady}.
+ *
+ * @author austinlally
+ *
+ */
+public class SchemaMigrator {
+
+	public static final String LOG_TAG = SchemaMigrator.class.getSimpleName();
+
+	public static final String TABLE = "schema_migration";
+	static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `schema_migration` (`version` INTEGER PRIMARY KEY, `name` VARCHAR, " +
+			"`schema_ms` INTEGER NOT NULL DEFAULT 0, `data_ms` INTEGER NOT NULL DEFAULT 0, `done` SMALLINT NOT NULL DEFAULT 0 )";
+	private static final String SQL_QUEUE = "insert or replace into schema_migration (version, name, schema_ms, done) values (?,?,?,0)";
+
+	private final List<Migration> migrations;
+	private final CountDownLatch ready = new CountDownLatch(1);
+
+	/**
+	 * @param migrations The steps, oldest first.
+	 */
+	public SchemaMigrator(List<Migration> migrations) {
+		this.migrations = migrations;
+	}
+
+	/**
+	 * Run the schema part of every step newer than the given version, and queue its data part.
+	 *
+	 * @param db The database being opened, inside the open helper's transaction.
+	 * @param fromVersion The version the database is at.
+	 */
+	public void upgrade(SQLiteDatabase db, int fromVersion) {
+		db.execSQL(SQL_CREATE_TABLE);
+		SQLiteStatement queue = db.compileStatement(SQL_QUEUE);
+		try {
+			for (Migration migration : migrations) {
+				if (migration.version <= fromVersion) {
+					continue;
+				}
+				long start = System.currentTimeMillis();
+				migration.schema(db);
+				long elapsed = System.currentTimeMillis() - start;
+				Log.d(LOG_TAG, String.format("%d %s: schema in %dms", migration.version, migration.name, elapsed));
+
+				queue.bindLong(1, migration.version);
+				queue.bindString(2, migration.name);
+				queue.bindLong(3, elapsed);
+				queue.executeInsert();
+			}
+		} finally {
+			queue.close();
+		}
+	}
+
+	/**
+	 * Run the data part of every queued step, oldest first, then open the gate.
+	 *
+	 * If a step fails, it stays queued for the next launch and the gate opens anyway; the steps after it
+	 * wait too, since they may depend on it.
+	 *
+	 * @param db The open database, not in a transaction.
+	 * @return The number of steps run.
+	 */
+	public int runPending(SQLiteDatabase db) {
+		int count = 0;
+		try {
+			db.execSQL(SQL_CREATE_TABLE);
+			Set<Integer> pending = new HashSet<Integer>();
+			Cursor c = db.rawQuery("select version from schema_migration where done = 0", null);
+			while (c.moveToNext()) {
+				pending.add(c.getInt(0));
+			}
+			c.close();
+
+			for (Migration migration : migrations) {
+				if (!pending.contains(migration.version)) {
+					continue;
+				}
+				long start = System.currentTimeMillis();
+				try {
+					migration.data(db);
+				} catch (RuntimeException e) {
+					// SQLException, or anything else a step's code throws; either way this launch can't finish.
+					Log.e(LOG_TAG, String.format("%d %s failed; will retry on next launch: %s", migration.version, migration.name, e.getMessage()));
+					e.printStackTrace();
+					break;
+				}
+				long elapsed = System.currentTimeMillis() - start;
+				Log.d(LOG_TAG, String.format("%d %s: data in %dms", migration.version, migration.name, elapsed));
+
+				db.execSQL("update schema_migration set data_ms = ?, done = 1 where version = ?", new Object[] {elapsed, migration.version});
+				count++;
+			}
+		} catch (SQLException e) {
+			Log.e(LOG_TAG, "could not read pending migrations: " + e.getMessage());
+		} finally {
+			ready.countDown();
+		}
+		return count;
+	}
+
+	/**
+	 * @return True once {@link #runPending} has finished.
+	 */
+	public boolean isReady() {
+		return ready.getCount() == 0;
+	}
+
+	/**
+	 * Block until {@link #runPending} has finished. Never call this from the main thread.
+	 */
+	public void awaitReady() {
+		try {
+			ready.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
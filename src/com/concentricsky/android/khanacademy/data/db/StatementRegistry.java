@@ -0,0 +1,135 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Statements compiled once against one connection and reused with new bindings, for SQL that runs over
+ * and over, such as the download poller's once a second query.
+ *
+ * Each call binds, runs and clears its statement while holding it, so threads can share a registry. Pass
+ * constant SQL with ? for every value; each distinct string keeps a statement open until the connection
+ * closes.
+ *
+ * @author austinlally
+ *
+ */
+public class StatementRegistry {
+
+	private final SQLiteDatabase db;
+	private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+	StatementRegistry(SQLiteDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * @return True if this registry compiles against the given connection.
+	 */
+	boolean isFor(SQLiteDatabase db) {
+		return this.db == db;
+	}
+
+	private synchronized SQLiteStatement get(String sql) {
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = db.compileStatement(sql);
+			statements.put(sql, statement);
+		}
+		return statement;
+	}
+
+	private static void bind(SQLiteStatement statement, Object[] args) {
+		for (int i = 0; i < args.length; ++i) {
+			DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+		}
+	}
+
+	/**
+	 * Run a query for the single number in its first row.
+	 *
+	 * @return The number, or the default if there are no rows.
+	 */
+	public long queryForLong(long defaultValue, String sql, Object... args) {
+		SQLiteStatement statement = get(sql);
+		synchronized (statement) {
+			bind(statement, args);
+			try {
+				return statement.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return defaultValue;
+			} finally {
+				statement.clearBindings();
+			}
+		}
+	}
+
+	/**
+	 * Run a query for the single string in its first row.
+	 *
+	 * @return The string, or null if there are no rows or the value is null.
+	 */
+	public String queryForString(String sql, Object... args) {
+		SQLiteStatement statement = get(sql);
+		synchronized (statement) {
+			bind(statement, args);
+			try {
+				return statement.simpleQueryForString();
+			} catch (SQLiteDoneException e) {
+				return null;
+			} finally {
+				statement.clearBindings();
+			}
+		}
+	}
+
+	/**
+	 * Run an update or delete.
+	 *
+	 * @return The number of rows changed.
+	 */
+	public int update(String sql, Object... args) {
+		SQLiteStatement statement = get(sql);
+		synchronized (statement) {
+			bind(statement, args);
+			try {
+				return statement.executeUpdateDelete();
+			} finally {
+				statement.clearBindings();
+			}
+		}
+	}
+
+	/**
+	 * Close every statement. Only call this as the connection itself closes.
+	 */
+	synchronized void close() {
+		for (SQLiteStatement statement : statements.values()) {
+			statement.close();
+		}
+		statements.clear();
+	}
+
+}
@@ -103,6 +103,14 @@ public class Topic extends EntityBase implements Comparable<Topic>, Serializable
 	@DatabaseField
     String standalone_title;
 	
+	/** Digest of this topic and everything below it, as of the last library update. Used to skip unchanged subtrees. */
+	@DatabaseField
+	String subtree_hash;
+	
+	/** Number of child topics or videos shown under this topic, so lists needn't count them per row. */
+	@DatabaseField
+	int child_count;
+	
     Collection<EntityBase> children;
     
     @ForeignCollectionField(eager=false)
@@ -169,6 +177,19 @@ public class Topic extends EntityBase implements Comparable<Topic>, Serializable
 		this.standalone_title = standalone_title;
 	}
 	
+	public String getSubtree_hash() {
+		return subtree_hash;
+	}
+	public void setSubtree_hash(String subtree_hash) {
+		this.subtree_hash = subtree_hash;
+	}
+	public int getChild_count() {
+		return child_count;
+	}
+	public void setChild_count(int child_count) {
+		this.child_count = child_count;
+	}
+	
 	public Collection<? extends EntityBase> getChildren() {
 		Log.d(LOG_TAG, String.format("getChildren: %s", getId()));
 		
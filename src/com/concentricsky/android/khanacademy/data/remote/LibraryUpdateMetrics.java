@@ -0,0 +1,166 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Where the time went in one library update run.
+ *
+ * Filled in by {@link LibraryUpdaterTask} as it goes, then saved to the update_metrics table, which keeps
+ * the last {@link #MAX_SAVED_RUNS} runs. Times are in milliseconds, sizes in bytes.
+ *
+ * @author austinlally
+ *
+ */
+public class LibraryUpdateMetrics {
+
+	public static final String TABLE = "update_metrics";
+	public static final String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `update_metrics` (`_id` INTEGER PRIMARY KEY AUTOINCREMENT, " +
+			"`started_at` INTEGER, `outcome` VARCHAR, `etag` VARCHAR, `total_ms` INTEGER, `download_ms` INTEGER, `bytes_received` INTEGER, " +
+			"`ingest_ms` INTEGER, `bytes_parsed` INTEGER, `nodes_parsed` INTEGER, `nodes_skipped` INTEGER, `commits` INTEGER, " +
+			"`topic_rows` INTEGER, `video_rows` INTEGER, `topicvideo_rows` INTEGER, `closure_rows` INTEGER, " +
+			"`merge_ms` INTEGER, `lock_ms` INTEGER, `changed_topics` INTEGER, `peak_heap` INTEGER )";
+
+	static final int MAX_SAVED_RUNS = 50;
+
+	public static final String OUTCOME_OFFLINE = "offline";
+	public static final String OUTCOME_NOT_MODIFIED = "not_modified";
+	public static final String OUTCOME_FAILED = "failed";
+	public static final String OUTCOME_MERGED = "merged";
+	public static final String OUTCOME_SWAPPED = "swapped";
+
+	public long startedAt;
+	public String outcome = OUTCOME_FAILED;
+	public String etag;
+	public long totalMs;
+
+	public long downloadMs;
+	public long bytesReceived;
+
+	public long ingestMs;
+	public long bytesParsed;
+	public long nodesParsed;
+	public long nodesSkipped;
+	public long commits;
+	public long topicRows;
+	public long videoRows;
+	public long topicVideoRows;
+	public long closureRows;
+
+	/** Merging into, or preparing a replacement for, the main db. */
+	public long mergeMs;
+	/** How long the main db's write transaction was held. */
+	public long lockMs;
+	public long changedTopics;
+
+	/** Largest heap use seen at the points {@link #sampleHeap()} was called. */
+	public long peakHeap;
+
+	public LibraryUpdateMetrics() {
+		startedAt = System.currentTimeMillis();
+		sampleHeap();
+	}
+
+	public void sampleHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	public long getNodesPerSecond() {
+		return ingestMs > 0 ? nodesParsed * 1000 / ingestMs : 0;
+	}
+
+	/**
+	 * Save this run, dropping the oldest beyond {@link #MAX_SAVED_RUNS}.
+	 */
+	public void save(SQLiteDatabase db) {
+		ContentValues v = new ContentValues();
+		v.put("started_at", startedAt);
+		v.put("outcome", outcome);
+		v.put("etag", etag);
+		v.put("total_ms", totalMs);
+		v.put("download_ms", downloadMs);
+		v.put("bytes_received", bytesReceived);
+		v.put("ingest_ms", ingestMs);
+		v.put("bytes_parsed", bytesParsed);
+		v.put("nodes_parsed", nodesParsed);
+		v.put("nodes_skipped", nodesSkipped);
+		v.put("commits", commits);
+		v.put("topic_rows", topicRows);
+		v.put("video_rows", videoRows);
+		v.put("topicvideo_rows", topicVideoRows);
+		v.put("closure_rows", closureRows);
+		v.put("merge_ms", mergeMs);
+		v.put("lock_ms", lockMs);
+		v.put("changed_topics", changedTopics);
+		v.put("peak_heap", peakHeap);
+		db.insert(TABLE, null, v);
+		db.execSQL(String.format("delete from %1$s where _id <= (select max(_id) from %1$s) - %2$d", TABLE, MAX_SAVED_RUNS));
+	}
+
+	/**
+	 * @return Up to limit saved runs, most recent first.
+	 */
+	public static List<LibraryUpdateMetrics> loadRecent(SQLiteDatabase db, int limit) {
+		List<LibraryUpdateMetrics> result = new ArrayList<LibraryUpdateMetrics>();
+		Cursor c = db.rawQuery(String.format("select * from %s order by _id desc limit %d", TABLE, limit), null);
+		try {
+			while (c.moveToNext()) {
+				LibraryUpdateMetrics m = new LibraryUpdateMetrics();
+				m.startedAt = c.getLong(c.getColumnIndex("started_at"));
+				m.outcome = c.getString(c.getColumnIndex("outcome"));
+				m.etag = c.getString(c.getColumnIndex("etag"));
+				m.totalMs = c.getLong(c.getColumnIndex("total_ms"));
+				m.downloadMs = c.getLong(c.getColumnIndex("download_ms"));
+				m.bytesReceived = c.getLong(c.getColumnIndex("bytes_received"));
+				m.ingestMs = c.getLong(c.getColumnIndex("ingest_ms"));
+				m.bytesParsed = c.getLong(c.getColumnIndex("bytes_parsed"));
+				m.nodesParsed = c.getLong(c.getColumnIndex("nodes_parsed"));
+				m.nodesSkipped = c.getLong(c.getColumnIndex("nodes_skipped"));
+				m.commits = c.getLong(c.getColumnIndex("commits"));
+				m.topicRows = c.getLong(c.getColumnIndex("topic_rows"));
+				m.videoRows = c.getLong(c.getColumnIndex("video_rows"));
+				m.topicVideoRows = c.getLong(c.getColumnIndex("topicvideo_rows"));
+				m.closureRows = c.getLong(c.getColumnIndex("closure_rows"));
+				m.mergeMs = c.getLong(c.getColumnIndex("merge_ms"));
+				m.lockMs = c.getLong(c.getColumnIndex("lock_ms"));
+				m.changedTopics = c.getLong(c.getColumnIndex("changed_topics"));
+				m.peakHeap = c.getLong(c.getColumnIndex("peak_heap"));
+				result.add(m);
+			}
+		} finally {
+			c.close();
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s in %dms: download %dms (%d bytes), ingest %dms (%d bytes, %d nodes, %d skipped, %d/s, %d commits), " +
+				"rows topic %d video %d topicvideo %d closure %d, merge %dms (lock %dms, %d changed topics), peak heap %dKB",
+				outcome, totalMs, downloadMs, bytesReceived, ingestMs, bytesParsed, nodesParsed, nodesSkipped, getNodesPerSecond(), commits,
+				topicRows, videoRows, topicVideoRows, closureRows, mergeMs, lockMs, changedTopics, peakHeap / 1024);
+	}
+
+}
@@ -22,23 +22,21 @@ import static com.concentricsky.android.khanacademy.Constants.RESULT_CODE_SUCCES
 import static com.concentricsky.android.khanacademy.Constants.SETTINGS_NAME;
 import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_ETAG;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import org.apache.http.HttpStatus;
-
 import android.content.ComponentName;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -47,13 +45,12 @@ import android.os.AsyncTask;
 import com.concentricsky.android.khan.R;
 import com.concentricsky.android.khanacademy.WifiReceiver;
 import com.concentricsky.android.khanacademy.data.KADataService;
+import com.concentricsky.android.khanacademy.data.db.CaptionSearch;
 import com.concentricsky.android.khanacademy.data.db.DatabaseHelper;
+import com.concentricsky.android.khanacademy.data.db.LibrarySearch;
 import com.concentricsky.android.khanacademy.data.db.Video;
 import com.concentricsky.android.khanacademy.util.Log;
 import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.j256.ormlite.android.apptools.OrmLiteSqliteOpenHelper;
 import com.j256.ormlite.support.ConnectionSource;
 
@@ -61,38 +58,63 @@ public class LibraryUpdaterTask extends AsyncTask<Void, Void, Integer> {
 	
 	public static final String LOG_TAG = LibraryUpdaterTask.class.getSimpleName();
 	
-	private final OrmLiteSqliteOpenHelper tempDbHelper;
-	private final String topicTableName = "topic";
-	private final String videoTableName = "video";
-	private final String topicvideoTableName = "topicvideo";
+	/** Created only once a new tree has actually been downloaded; a 304 never touches the temp db. */
+	private OrmLiteSqliteOpenHelper tempDbHelper;
 	private final KADataService dataService;
 	private final ConnectivityManager connectivityManager;
 	
 	private final String url = "http://www.khanacademy.org/api/v1/topictree";
 	public boolean force = false;
 	
-	private static final List<String> downloadUrlFields = Arrays.asList(new String[] {"png", "mp4", "m3u8"});
-	private static final List<String> stringFields = Arrays.asList(new String[] {"kind", "title", "description", "ka_url", "id", "readable_id", "youtube_id", "keywords", "progress_key", "date_added"}); // 10
-	private static final List<String> booleanFields = Arrays.asList(new String[] {"hide"});
-	private static final List<String> intFields =  Arrays.asList(new String[] {"views", "duration"});
-	// "children", "download_urls" are special
-
-	/** The return values we need when parsing an array of children. */
-	private class ChildArrayResults {
-		List<String> childIds = new ArrayList<String>();
-		String childKind;
-		int videoCount;
-		String thumbId;
-	}
+	/**
+	 * When more than this fraction of topics changed, build a complete replacement database and swap it in
+	 * rather than merging row by row into the live one.
+	 */
+	private static final float SWAP_THRESHOLD = 0.5f;
+	
+	/**
+	 * Selects, from one schema's sqlite_master, everything outside the library tables and search indexes: what
+	 * a swap carries over from the old database. Tables first, then indices and anything else that depends on them.
+	 */
+	private static final String SQL_SELECT_USER_SCHEMA = "select type, name, sql from %s.sqlite_master " +
+			"where sql is not null and name not like 'sqlite_%%' and tbl_name not in ('topic', 'video', 'topicvideo', 'topic_closure', 'android_metadata') " +
+			"and tbl_name not like 'library_search%%' and tbl_name not like 'caption_search%%' " +
+			"order by case type when 'table' then 0 when 'index' then 1 else 2 end";
+	
+	/** The downloaded topic tree is spooled to this file in the cache dir before it is parsed. */
+	private static final String SPOOL_NAME = "topictree.spool";
+	
+	/** Set while the temp db is a complete database ready to be swapped in for the main one. */
+	private File preparedDatabase;
+	
+	/** Set when the server said the library is current. */
+	private boolean notModified;
+	/** Set when there was no network to check with. */
+	private boolean offline;
+	
+	/** Where the time went in this run. */
+	private final LibraryUpdateMetrics metrics = new LibraryUpdateMetrics();
 	
 	public LibraryUpdaterTask(KADataService dataService) {
 		this.dataService = dataService;
-		this.tempDbHelper = new TempHelper(dataService, dataService.getHelper().getReadableDatabase());
 		connectivityManager = (ConnectivityManager) dataService.getSystemService(Context.CONNECTIVITY_SERVICE);
 	}
 	
 	@Override
 	protected Integer doInBackground(Void... params) {
+		try {
+			return update();
+		} finally {
+			metrics.totalMs = System.currentTimeMillis() - metrics.startedAt;
+			metrics.sampleHeap();
+			Log.d(LOG_TAG, "library update " + metrics);
+		}
+	}
+	
+	private Integer update() {
+		
+		// Merging relies on the library's data being current, not just its schema.
+		dataService.getHelper().awaitMigrations();
 		
 		SharedPreferences prefs = dataService.getSharedPreferences(SETTINGS_NAME, Context.MODE_PRIVATE);
 		
@@ -106,6 +128,8 @@ public class LibraryUpdaterTask extends AsyncTask<Void, Void, Integer> {
 			pm.setComponentEnabledSetting(receiver,
 			        PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
 			        PackageManager.DONT_KILL_APP);
+			offline = true;
+			metrics.outcome = LibraryUpdateMetrics.OUTCOME_OFFLINE;
 			return RESULT_CODE_FAILURE;
 		} else {
 			// We are connected. Disable the receiver.
@@ -117,299 +141,430 @@ public class LibraryUpdaterTask extends AsyncTask<Void, Void, Integer> {
 		
 		InputStream in = null;
 		String etag = prefs.getString(SETTING_LIBRARY_ETAG, null);
+		TopicTreeDownloader downloader = new TopicTreeDownloader(url, new File(dataService.getCacheDir(), SPOOL_NAME), prefs);
 		
 		try {
-			HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-			if (etag != null && !force) {
-				conn.setRequestProperty("If-None-Match", etag);
+			// Spool the response to disk first, so a dropped connection resumes rather than starting over.
+			long downloadStart = System.currentTimeMillis();
+			boolean modified;
+			try {
+				modified = downloader.download(force ? null : etag);
+			} finally {
+				metrics.downloadMs = System.currentTimeMillis() - downloadStart;
+				metrics.bytesReceived = downloader.getBytesReceived();
 			}
-			
-			int code = conn.getResponseCode();
-			switch (code) {
-			case HttpStatus.SC_NOT_MODIFIED:
+			if (!modified) {
 				// If we got a 304, we're done.
 				// Use failure code to indicate there is no temp db to copy over.
 				Log.d(LOG_TAG, "304 in library response.");
+				notModified = true;
+				metrics.outcome = LibraryUpdateMetrics.OUTCOME_NOT_MODIFIED;
 				return RESULT_CODE_FAILURE;
-			default:
-				// Odd, but on 1/3/13 I received correct json responses with a -1 for responseCode. Fall through.
-				Log.w(LOG_TAG, "Error code in library response: " + code);
-			case HttpStatus.SC_OK:
-				// Parse response.
-				in = conn.getInputStream();
-				JsonFactory factory = new JsonFactory();
-				final JsonParser parser = factory.createJsonParser(in);
-				
-				SQLiteDatabase tempDb = tempDbHelper.getWritableDatabase();
-				tempDb.beginTransaction();
-				try {
-					tempDb.execSQL("delete from topic");
-					tempDb.execSQL("delete from topicvideo");
-					tempDb.execSQL("delete from video");
-					
-					parseObject(parser, tempDb, null, 0);
-					tempDb.setTransactionSuccessful();
-				} catch (Exception e) {
-					e.printStackTrace();
-					return RESULT_CODE_FAILURE;
-				} finally {
-					tempDb.endTransaction();
-					tempDb.close();
+			}
+			metrics.etag = downloader.getEtag();
+			
+			tempDbHelper = new TempHelper(dataService, dataService.getHelper().getReadableDatabase());
+			
+			// Parse response.
+			try {
+				in = downloader.open();
+			} catch (IOException e) {
+				// The spool went missing after it was checked; don't keep asking for it by its ETag.
+				downloader.reset();
+				throw e;
+			}
+			
+			// Read, parse and write on separate threads, so inflating the body and the disk writes overlap.
+			SQLiteDatabase tempDb = tempDbHelper.getWritableDatabase();
+			TopicTreePipeline pipeline = new TopicTreePipeline(new JsonFactory(), tempDb, downloader.getEtag());
+			pipeline.setMetrics(metrics);
+			try {
+				// Pick up after an earlier run over this same tree that was killed partway through.
+				if (!pipeline.resume()) {
+					clearTempDb(tempDb);
 				}
 				
-				// Save etag once we've successfully parsed the response.
-				etag = conn.getHeaderField("ETag");
-				prefs.edit().putString(SETTING_LIBRARY_ETAG, etag).apply();
-				
-				// Move this new content from the temp db into the main one.
+				pipeline.run(in);
+			} catch (Exception e) {
+				e.printStackTrace();
+				// Don't keep feeding a body we can't parse; fetch it fresh next time.
+				downloader.reset();
+				TopicTreePipeline.clearCheckpoint(tempDb);
+				return RESULT_CODE_FAILURE;
+			} finally {
+				tempDb.close();
+			}
+			
+			// Save etag once we've successfully parsed the response.
+			etag = downloader.getEtag();
+			prefs.edit().putString(SETTING_LIBRARY_ETAG, etag).apply();
+			downloader.reset();
+			
+			// Move this new content from the temp db into the main one, either by merging the changes,
+			// or, when most of the tree changed, by preparing the temp db to replace it outright.
+			long mergeStart = System.currentTimeMillis();
+			if (shouldSwap() && prepareSwap() && dataService.swapDatabase(preparedDatabase)) {
+				metrics.outcome = LibraryUpdateMetrics.OUTCOME_SWAPPED;
+			} else {
 				mergeDbs();
-				
-				return RESULT_CODE_SUCCESS;
+				metrics.outcome = LibraryUpdateMetrics.OUTCOME_MERGED;
+				if (preparedDatabase != null) {
+					// The swap fell through, and the temp db now holds a copy of everything else too; start the next
+					// update from a fresh one.
+					preparedDatabase = null;
+					dataService.deleteDatabase(TempHelper.DB_NAME);
+				}
 			}
+			metrics.mergeMs = System.currentTimeMillis() - mergeStart;
+			
+			return RESULT_CODE_SUCCESS;
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
-		} catch (JsonParseException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			tempDbHelper.close();
+			if (tempDbHelper != null) {
+				tempDbHelper.close();
+			}
 		}
 		
 		return RESULT_CODE_FAILURE;
 	}
 
-	private ContentValues parseObject(JsonParser parser, SQLiteDatabase tempDb, String parentId, int seq) throws JsonParseException, IOException {
-		// TODO : Grab id of root topic here, and store it in shared prefs, in case it ever
-		//        changes. Currently we assume "root" and a change would be catastrophic.
-		ContentValues result = new ContentValues();
-		ChildArrayResults childResults = null;
-		boolean badKind = false;
+	private static void clearTempDb(SQLiteDatabase tempDb) {
+		tempDb.execSQL("delete from topic");
+		tempDb.execSQL("delete from topicvideo");
+		tempDb.execSQL("delete from video");
+		tempDb.execSQL("delete from topic_closure");
+		TopicTreePipeline.clearCheckpoint(tempDb);
+	}
+	
+	private void mergeDbs() {
+		Log.d(LOG_TAG, "update received - juggling dbs");
+		long start = System.currentTimeMillis();
 		
-		result.put("parentTopic_id", parentId);
-		result.put("seq", seq);
+		// Get main database, attach temp db to it.
+		SQLiteDatabase mainDb = dataService.getHelper().getWritableDatabase();
+		mainDb.execSQL("attach database ? as ka_temp", new Object[] {dataService.getDatabasePath(TempHelper.DB_NAME).getAbsolutePath()});
 		
-		while (parser.nextValue() != JsonToken.END_OBJECT) {
-			
-			// Allows us to burn through the rest of the object once we discover it's an exercise or something else we don't care about.
-			if (badKind) continue;
+		long lockStart = System.currentTimeMillis();
+		long statusTime, countTime;
+		mainDb.beginTransaction();
+		try {
 			
-			String fieldName = parser.getCurrentName();
+			// The recount below covers every video carried, so the per-video trigger would only repeat its work.
+			boolean trigger = DatabaseHelper.dropDownloadedCountTrigger(mainDb, "ka_temp");
+			carryDownloadStatus(mainDb, "ka_temp", "main");
+			statusTime = System.currentTimeMillis();
 			
-			// Keys present will determine object type.
-			if (stringFields.contains(fieldName)) {
-				// Use getValueAsString over getText; getText returns "null" while getValueAsString returns null.
-				String value = parser.getValueAsString();
-				result.put(fieldName, value);
-				
-				if ("id".equals(fieldName)) {
-					if (childResults != null) {
-						addParentIdToChildren(tempDb, childResults, value);
-					}
-				}
-			} else if (intFields.contains(fieldName)) {
-				result.put(fieldName, parser.getIntValue());
-			} else if (booleanFields.contains(fieldName)) {
-				result.put(fieldName, parser.getBooleanValue());
-			} else if ("children".equals(fieldName)) {
-				childResults = parseChildArray(parser, tempDb, result.containsKey("id") ? result.getAsString("id") : null);
-				result.put("video_count", childResults.videoCount);
-				result.put("child_kind", childResults.childKind);
-				result.put("thumb_id", childResults.thumbId);
-			} else if ("download_urls".equals(fieldName)) {
-				parseDownloadUrls(parser, result);
-			} else if (null == fieldName) {
-				// Noop. Just in case.
-			} else {
-				JsonToken next = parser.getCurrentToken();
-				if (next == JsonToken.START_OBJECT || next == JsonToken.START_ARRAY) {
-					// Skip this object or array, leaving us pointing at the matching end_object / end_array token.
-					parser.skipChildren();
-				}
+			// Topic counters, from a single aggregate over the new tree.
+			DatabaseHelper.recomputeDownloadedVideoCounts(mainDb, "ka_temp");
+			if (trigger) {
+				DatabaseHelper.createDownloadedCountTrigger(mainDb, "ka_temp");
 			}
-		}
-		
-		// Ignore types we don't need.
-		if (badKind) {
-			return null;
-		}
-		
-		// Having parsed this whole object, we can insert it.
-		if (result.containsKey("kind")) {
-			String kind = result.getAsString("kind");
-			if ("Topic".equals(kind)) {
-				if (result.containsKey("id")) {
-					result.put("_id", result.getAsString("id"));
-					result.remove("id");
-				}
-				if (result.containsKey("child_kind")) {
-					String child_kind = result.getAsString("child_kind");
-					if ("Topic".equals(child_kind) || "Video".equals(child_kind)) {
-						insertTopic(tempDb, result);
-					}
-				}
-			} else if ("Video".equals(kind)) {
-				if (result.containsKey("id")) {
-					result.put("video_id", result.getAsString("id"));
-					result.remove("id");
-				}
-				insertTopicVideo(tempDb, result);
-				insertVideo(tempDb, result);
+			countTime = System.currentTimeMillis();
+			
+			metrics.changedTopics = mergeChangedSubtrees(mainDb);
+			
+			// The temp db's tree is merged; committing with the merge keeps a later run over the same ETag from
+			// resuming past every node of it. A temp db prepared for a swap has no checkpoint left to clear.
+			if (preparedDatabase == null) {
+				TopicTreePipeline.clearCheckpoint(mainDb, "ka_temp");
 			}
+			
+			mainDb.setTransactionSuccessful();
+		} finally {
+			mainDb.endTransaction();
+			mainDb.execSQL("drop table if exists temp.merge_changed_topic");
+			mainDb.execSQL("drop table if exists temp.merge_changed_video");
+			mainDb.execSQL("detach database ka_temp");
 		}
 		
-		return result;
+		long end = System.currentTimeMillis();
+		metrics.lockMs = end - lockStart;
+		Log.d(LOG_TAG, String.format("finished juggling in %dms: download status %dms, topic counts %dms, copy %dms (lock held %dms)",
+				end - start, statusTime - lockStart, countTime - statusTime, end - countTime, end - lockStart));
 	}
 	
-	// return list of ids of the children in this array, so the parent can attach a parentTopic_id after the fact.
-	private ChildArrayResults parseChildArray(JsonParser parser, SQLiteDatabase tempDb, String parentTopic_id) throws JsonParseException, IOException {
-		ChildArrayResults result = new ChildArrayResults();
-		int seq = 0;
-		
-		JsonToken currentToken = parser.getCurrentToken();
-		if (currentToken == JsonToken.START_ARRAY) {
-			while (parser.nextValue() == JsonToken.START_OBJECT) { // Otherwise, we will be at END_ARRAY here.
-				ContentValues values = parseObject(parser, tempDb, parentTopic_id, seq++);
-				
-				if (values != null && values.containsKey("kind")) {
-					String kind = values.getAsString("kind");
-					
-					if ("Topic".equals(kind) && values.containsKey("_id")) {
-						result.childKind = kind;
-						result.childIds.add(values.getAsString("_id"));
-						result.videoCount += values.getAsInteger("video_count");
-						if (result.thumbId == null && values.containsKey("thumb_id")) {
-							// Return the first available thumb id as this topic's thumb id.
-							result.thumbId = values.getAsString("thumb_id");
-						}
-					} else if ("Video".equals(kind) && values.containsKey("readable_id")) {
-						result.childKind = kind;
-						result.childIds.add(values.getAsString("readable_id"));
-						result.videoCount += 1;
-						if (result.thumbId == null && values.containsKey("pngurl")) {
-							// Return youtube_id of first video with a thumbnail as this topic's thumbnail id.
-							result.thumbId = values.getAsString("youtube_id");
-						}
-					}
+	/**
+	 * Maintain download status. For each youtube_id, carry over the most advanced status and its dlm_id
+	 * in one pass, rather than one update per downloaded video.
+	 * 
+	 * @param db A database with both schemas available.
+	 * @param target The schema receiving the new library.
+	 * @param source The schema holding the current download state.
+	 */
+	static void carryDownloadStatus(SQLiteDatabase db, String target, String source) {
+		String downloaded = "s.download_status > " + Video.DL_STATUS_NOT_STARTED;
+		db.execSQL(String.format("update %1$s.video set " +
+				"download_status = (select max(s.download_status) from %2$s.video s where s.youtube_id = %1$s.video.youtube_id and %3$s), " +
+				"dlm_id = (select s.dlm_id from %2$s.video s where s.youtube_id = %1$s.video.youtube_id and %3$s order by s.download_status desc limit 1) " +
+				"where youtube_id in (select s.youtube_id from %2$s.video s where %3$s)",
+				target, source, downloaded));
+	}
+	
+	/**
+	 * Copy every table outside the library (users, uservideos, captions, thumbnails, ...) from one schema into
+	 * another that already has them, replacing what the target held, along with the caption index and the
+	 * download status of the videos both share.
+	 * 
+	 * @param db A database with both schemas available. Callers wanting atomicity should hold a transaction around this.
+	 * @param target The schema receiving the copy.
+	 * @param source The schema copied from.
+	 */
+	public static void copyUserData(SQLiteDatabase db, String target, String source) {
+		List<String> tables = new ArrayList<String>();
+		Cursor c = db.rawQuery(String.format(SQL_SELECT_USER_SCHEMA, source), null);
+		try {
+			while (c.moveToNext()) {
+				if ("table".equals(c.getString(0))) {
+					tables.add(c.getString(1));
 				}
 			}
+		} finally {
+			c.close();
+		}
+		for (String table : tables) {
+			copyTable(db, target, source, table);
 		}
-		return result;
+		CaptionSearch.copy(db, target, source);
+		copyDownloadStatus(db, target, source);
 	}
 	
-	private void parseDownloadUrls(JsonParser parser, ContentValues result) throws JsonParseException, IOException {
-		// parser points at begin object token right now
-		if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
-			while (parser.nextValue() != JsonToken.END_OBJECT) {
-				String fieldName = parser.getCurrentName();
-				
-				if (downloadUrlFields.contains(fieldName)) {
-					result.put(fieldName + "url", parser.getValueAsString());
-				}
-			}
+	/**
+	 * Make the download status of the target's videos match the source's, and recount the target's topics.
+	 * 
+	 * @param db A database with both schemas available. Call inside a transaction: the target's downloaded count
+	 * 		trigger is dropped meanwhile.
+	 * @param target The schema receiving the status.
+	 * @param source The schema holding the current download state.
+	 */
+	public static void copyDownloadStatus(SQLiteDatabase db, String target, String source) {
+		// The recount covers every video reset or carried, so the per-video trigger would only repeat its work.
+		// It goes back afterwards, so a swapped-in file still has it.
+		boolean trigger = DatabaseHelper.dropDownloadedCountTrigger(db, target);
+		// Downloads deleted since an earlier copy must not stay marked.
+		db.execSQL(String.format("update %s.video set download_status = %d, dlm_id = 0 where download_status != %2$d",
+				target, Video.DL_STATUS_NOT_STARTED));
+		carryDownloadStatus(db, target, source);
+		DatabaseHelper.recomputeDownloadedVideoCounts(db, target);
+		if (trigger) {
+			DatabaseHelper.createDownloadedCountTrigger(db, target);
 		}
-//		else we must not have any download urls (null, '', something like that.)
 	}
 	
-	// When we encounter our id, if we have already parsed children, then we must select all of 
-	// the correct type, with the ids we received from the children, who don't have parentTopic_ids, and set them.
-	// It appears, looking at the tree as returned 12/30/12, that this is unnecessary. It's here just in case.
-	private void addParentIdToChildren(SQLiteDatabase tempDb, ChildArrayResults childResults, String parentId) {
-		
-		if (childResults == null || childResults.childIds == null || childResults.childIds.size() == 0) {
-			return;
+	/**
+	 * Bring the target's download status up to the source's after an earlier {@link #copyDownloadStatus},
+	 * touching only the videos whose status has changed since. Only videos marked in either schema are
+	 * compared, and the target's trigger recounts the ancestors of those rewritten, so this costs the number
+	 * of downloads rather than the size of the library.
+	 * 
+	 * @param db A database with both schemas available.
+	 * @param target The schema receiving the status.
+	 * @param source The schema holding the current download state.
+	 */
+	public static void updateChangedDownloadStatus(SQLiteDatabase db, String target, String source) {
+		String status = String.format("coalesce((select max(s.download_status) from %2$s.video s where s.youtube_id = %1$s.video.youtube_id and s.download_status > %3$d), %3$d)",
+				target, source, Video.DL_STATUS_NOT_STARTED);
+		String dlmId = String.format("coalesce((select s.dlm_id from %2$s.video s where s.youtube_id = %1$s.video.youtube_id and s.download_status > %3$d order by s.download_status desc limit 1), 0)",
+				target, source, Video.DL_STATUS_NOT_STARTED);
+		db.execSQL(String.format("update %1$s.video set download_status = %3$s, dlm_id = %4$s " +
+				"where youtube_id in (select youtube_id from %2$s.video where download_status > %5$d union select youtube_id from %1$s.video where download_status > %5$d) " +
+				"and (download_status != %3$s or dlm_id != %4$s)",
+				target, source, status, dlmId, Video.DL_STATUS_NOT_STARTED));
+	}
+	
+	/**
+	 * Replace the rows of one table in the target schema with those of the same table in the source schema.
+	 * Both tables must have the same columns in the same order.
+	 */
+	public static void copyTable(SQLiteDatabase db, String target, String source, String table) {
+		db.execSQL(String.format("delete from %1$s.`%2$s`", target, table));
+		db.execSQL(String.format("insert into %1$s.`%3$s` select * from %2$s.`%3$s`", target, source, table));
+	}
+	
+	/**
+	 * Decide whether enough of the tree changed that replacing the main database file beats merging into it.
+	 */
+	private boolean shouldSwap() {
+		SQLiteDatabase mainDb = dataService.getHelper().getWritableDatabase();
+		mainDb.execSQL("attach database ? as ka_temp", new Object[] {dataService.getDatabasePath(TempHelper.DB_NAME).getAbsolutePath()});
+		try {
+			long total = DatabaseUtils.queryNumEntries(mainDb, "ka_temp.topic");
+			long changed = DatabaseUtils.longForQuery(mainDb,
+					"select count() from ka_temp.topic t left join main.topic m on m._id = t._id " +
+					"where m.subtree_hash is null or m.subtree_hash != t.subtree_hash", null);
+			Log.d(LOG_TAG, String.format("%d of %d topics changed", changed, total));
+			metrics.changedTopics = changed;
+			return total > 0 && changed > total * SWAP_THRESHOLD;
+		} finally {
+			mainDb.execSQL("detach database ka_temp");
 		}
+	}
+	
+	/**
+	 * Turn the temp db into a complete replacement for the main one.
+	 * 
+	 * Everything outside the library tables (users, uservideos, captions, thumbnails, ...) is copied across
+	 * along with its indices, download status is carried over, and the result is synced to disk. The main
+	 * db is only read here, so readers keep working against the old file; {@link KADataService#swapDatabase}
+	 * copies whatever was written since, then replaces the file.
+	 * 
+	 * @return True if the temp db is ready to be swapped in.
+	 */
+	private boolean prepareSwap() {
+		Log.d(LOG_TAG, "update received - preparing db swap");
+		long start = System.currentTimeMillis();
 		
-		ContentValues values = new ContentValues();
-		values.put("parentTopic_id", parentId);
-		
-		boolean isTopic = "Topic".equals(childResults.childKind);
-		String table = isTopic ? topicTableName : videoTableName;
+		File mainFile = dataService.getDatabasePath(DatabaseHelper.DATABASE_NAME);
+		File tempFile = dataService.getDatabasePath(TempHelper.DB_NAME);
 		
-		StringBuilder where = new StringBuilder();
-		where.append(isTopic ? "_id IN (?" : "readable_id IN (?");
-		// First '?' already added, so start at 1.
-		for (int i = 1; i < childResults.childIds.size(); ++i) {
-			where.append(",?");
+		SQLiteDatabase tempDb = tempDbHelper.getWritableDatabase();
+		tempDb.execSQL("attach database ? as ka_main", new Object[] {mainFile.getAbsolutePath()});
+		tempDb.beginTransaction();
+		try {
+			// The search indexes and their shadow tables are set up below.
+			Cursor c = tempDb.rawQuery(String.format(SQL_SELECT_USER_SCHEMA, "ka_main"), null);
+			while (c.moveToNext()) {
+				tempDb.execSQL(c.getString(2));
+			}
+			c.close();
+			
+			LibrarySearch.create(tempDb, "main");
+			LibrarySearch.rebuild(tempDb, "main");
+			// Captions come across with their _ids, so their index can too.
+			CaptionSearch.create(tempDb, "main");
+			copyUserData(tempDb, "main", "ka_main");
+			
+			// The checkpoint belongs to the temp db only.
+			tempDb.execSQL("drop table if exists update_checkpoint");
+			
+			tempDb.setVersion(DatabaseHelper.DATABASE_VERSION);
+			tempDb.setTransactionSuccessful();
+		} finally {
+			tempDb.endTransaction();
+			tempDb.execSQL("detach database ka_main");
+			tempDbHelper.close();
 		}
-		where.append(")");
-		String whereClause = where.toString();
 		
-		String[] whereArg = childResults.childIds.toArray(new String[childResults.childIds.size()]);
+		// Commit has already synced the db through SQLite; make sure the file itself is on disk before it gets renamed.
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(tempFile, "rw");
+			file.getFD().sync();
+			preparedDatabase = tempFile;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) { }
+			}
+		}
 		
-		tempDb.update(table, values, whereClause, whereArg);
+		Log.d(LOG_TAG, String.format("prepared db swap in %dms", System.currentTimeMillis() - start));
+		return preparedDatabase != null;
 	}
 	
-	private void insertTopic(SQLiteDatabase tempDb, ContentValues values) {
-		tempDb.insert(topicTableName, null, values);
+	/**
+	 * @return True if the server reported the library is already current.
+	 */
+	public boolean isNotModified() {
+		return notModified;
 	}
 	
-	private void insertTopicVideo(SQLiteDatabase tempDb, ContentValues values) {
-		// This values is for a video.
-		ContentValues v = new ContentValues();
-		v.put("topic_id", values.getAsString("parentTopic_id"));
-		v.put("video_id", values.getAsString("readable_id"));
-		tempDb.insertWithOnConflict(topicvideoTableName, null, v, SQLiteDatabase.CONFLICT_IGNORE);
+	/**
+	 * @return True if the update never reached the server for lack of a connection.
+	 */
+	public boolean isOffline() {
+		return offline;
 	}
 	
-	private void insertVideo(SQLiteDatabase tempDb, ContentValues values) {
-		tempDb.insertWithOnConflict(videoTableName, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+	/**
+	 * @return What this run did and how long each phase took. Only complete after the task has finished.
+	 */
+	public LibraryUpdateMetrics getMetrics() {
+		return metrics;
 	}
 	
-	private void mergeDbs() {
-		Log.d(LOG_TAG, "update received - juggling dbs");
-		// Get main database, attach temp db to it.
-		SQLiteDatabase mainDb = dataService.getHelper().getWritableDatabase();
-		mainDb.execSQL("attach database ? as ka_temp", new Object[] {dataService.getDatabasePath("ka_temp").getAbsolutePath()});
+	/**
+	 * Copy only what changed from ka_temp into main.
+	 * 
+	 * A topic is changed if its subtree_hash differs from (or is missing in) the main db. Since a topic's hash
+	 * covers its own row, its videos and its child topics' hashes, any change anywhere in the tree shows up on
+	 * the topic directly above it, and on every ancestor. Only those topic rows, their topicvideo rows, and the
+	 * videos beneath them are rewritten. Topics and videos no longer present in the new tree are deleted. The
+	 * search index follows: rows deleted or rewritten are removed from it, and rewritten rows are added back.
+	 * 
+	 * @return The number of changed topics.
+	 */
+	private long mergeChangedSubtrees(SQLiteDatabase mainDb) {
+		mainDb.execSQL("drop table if exists temp.merge_changed_topic");
+		mainDb.execSQL("drop table if exists temp.merge_changed_video");
+		mainDb.execSQL("create temp table merge_changed_topic as " +
+				"select t._id as _id from ka_temp.topic t left join main.topic m on m._id = t._id " +
+				"where m.subtree_hash is null or m.subtree_hash != t.subtree_hash");
+		mainDb.execSQL("create temp table merge_changed_video as " +
+				"select distinct video_id as readable_id from ka_temp.topicvideo where topic_id in (select _id from temp.merge_changed_topic)");
 		
-		mainDb.beginTransaction();
+		String changedTopics = "(select _id from temp.merge_changed_topic)";
+		String changedVideos = "(select readable_id from temp.merge_changed_video)";
+		String newTopics = "(select _id from ka_temp.topic)";
+		String newVideos = "(select readable_id from ka_temp.video)";
+		
+		long topicCount = DatabaseUtils.queryNumEntries(mainDb, "temp.merge_changed_topic");
+		long videoCount = DatabaseUtils.queryNumEntries(mainDb, "temp.merge_changed_video");
+		long removedTopicCount = DatabaseUtils.longForQuery(mainDb, "select count() from main.topic where _id not in " + newTopics, null);
+		long removedVideoCount = DatabaseUtils.longForQuery(mainDb, "select count() from main.video where readable_id not in " + newVideos, null);
+		Log.d(LOG_TAG, String.format("merging %d changed topics, %d changed videos, %d removed topics, %d removed videos",
+				topicCount, videoCount, removedTopicCount, removedVideoCount));
+		if (topicCount == 0 && removedTopicCount == 0 && removedVideoCount == 0) {
+			return 0;
+		}
+		
+		// Search docids are rowids, which rewritten rows don't keep.
+		LibrarySearch.remove(mainDb, "main",
+				"(select _id from main.topic where _id not in " + newTopics + " or _id in " + changedTopics + ")",
+				"(select readable_id from main.video where readable_id not in " + newVideos + " or readable_id in " + changedVideos + ")");
+		
+		mainDb.execSQL("delete from main.topic where _id not in " + newTopics + " or _id in " + changedTopics);
+		mainDb.execSQL("insert into main.topic select * from ka_temp.topic where _id in " + changedTopics);
+		
+		mainDb.execSQL("delete from main.topicvideo where topic_id not in " + newTopics + " or topic_id in " + changedTopics);
+		mainDb.execSQL("insert into main.topicvideo (topic_id, video_id) select topic_id, video_id from ka_temp.topicvideo where topic_id in " + changedTopics);
+		
+		// A topic's ancestry is part of its hash, so any topic whose ancestors changed is in changedTopics too.
+		mainDb.execSQL("delete from main.topic_closure where descendant not in " + newTopics + " or descendant in " + changedTopics);
+		mainDb.execSQL("insert into main.topic_closure select * from ka_temp.topic_closure where descendant in " + changedTopics);
+		
+		// Video _ids are autoincrement and differ between the two dbs, so let main assign its own.
+		String videoColumns = getColumnsExceptId(mainDb, "video");
+		mainDb.execSQL("delete from main.video where readable_id not in " + newVideos + " or readable_id in " + changedVideos);
+		mainDb.execSQL(String.format("insert into main.video (%1$s) select %1$s from ka_temp.video where readable_id in %2$s", videoColumns, changedVideos));
+		
+		LibrarySearch.add(mainDb, "main", changedTopics, changedVideos);
+		return topicCount;
+	}
+	
+	static String getColumnsExceptId(SQLiteDatabase db, String table) {
+		StringBuilder columns = new StringBuilder();
+		Cursor c = db.rawQuery(String.format("pragma main.table_info(%s)", table), null);
 		try {
-			
-			// Maintain download status.
-			String sql = "select max(download_status), dlm_id, youtube_id from video where download_status != ? group by youtube_id";
-			Cursor c = mainDb.rawQuery(sql, new String[] {"" + Video.DL_STATUS_NOT_STARTED});
-			Cursor c1;
-			String[] videoIds = new String[c.getCount()];
-			int i = 0;
+			int nameIndex = c.getColumnIndex("name");
 			while (c.moveToNext()) {
-				String youtube_id = c.getString(c.getColumnIndex("youtube_id"));
-				String download_status = c.getString(c.getColumnIndex("max(download_status)"));
-				long dlm_id = c.getLong(c.getColumnIndex("dlm_id"));
-				videoIds[i++] = youtube_id;
-				ContentValues v = new ContentValues();
-				v.put("download_status", download_status);
-				v.put("dlm_id", dlm_id);
-				String[] idArg = new String[] {youtube_id};
-				mainDb.update("ka_temp.video", v, "youtube_id = ?", idArg);
-				
-				// cursor over parent topics of this video
-				sql = "select ka_temp.topic._id from ka_temp.topic, ka_temp.topicvideo, ka_temp.video where ka_temp.video.youtube_id=? and ka_temp.topicvideo.video_id=ka_temp.video.readable_id and ka_temp.topicvideo.topic_id=ka_temp.topic._id";
-				c1 = mainDb.rawQuery(sql, idArg);
-				Log.d(LOG_TAG, String.format("updating counts for %d topics", c1.getCount()));
-				while (c1.moveToNext()) {
-					String topicId = c1.getString(c1.getColumnIndex("_id"));
-					DatabaseHelper.incrementDownloadedVideoCounts(mainDb, topicId, "ka_temp.topic");
+				String name = c.getString(nameIndex);
+				if (!"_id".equals(name)) {
+					if (columns.length() > 0) {
+						columns.append(", ");
+					}
+					columns.append('`').append(name).append('`');
 				}
-				c1.close();
 			}
-			c.close();
-			
-			mainDb.execSQL("delete from topic");
-			mainDb.execSQL("insert into topic select * from ka_temp.topic");
-			
-			mainDb.execSQL("delete from topicvideo");
-			mainDb.execSQL("insert into topicvideo select * from ka_temp.topicvideo");
-		
-			mainDb.execSQL("delete from video");
-			mainDb.execSQL("insert into video select * from ka_temp.video");
-			
-			mainDb.setTransactionSuccessful();
 		} finally {
-			mainDb.endTransaction();
-			mainDb.execSQL("detach database ka_temp");
+			c.close();
 		}
-		
-		Log.d(LOG_TAG, "finished juggling");
+		return columns.toString();
 	}
 	
 	private class TempHelper extends OrmLiteSqliteOpenHelper {
@@ -418,31 +573,13 @@ public class LibraryUpdaterTask extends AsyncTask<Void, Void, Integer> {
 		final List<String> schema = new ArrayList<String>();
 		
 		TempHelper(Context context, SQLiteDatabase mainDb) {
-			super(context, DB_NAME, null, 1, R.raw.ormlite_config);
-			
-			context.deleteDatabase(DB_NAME);
-			
-			Cursor cursor = mainDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"topic"});
-			while (cursor.moveToNext()) {
-				String sql = cursor.getString(0);
-				Log.d(LOG_TAG, "TempHelper: " + sql);
-				if (sql != null) {
-					schema.add(sql);
-				}
-			}
-			cursor.close();
+			// Versioned with the main db, so a temp db left over from before a schema change gets rebuilt.
+			// Otherwise it's kept: it may hold a checkpointed update to resume.
+			super(context, DB_NAME, null, DatabaseHelper.DATABASE_VERSION, R.raw.ormlite_config);
 			
-			cursor = mainDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"video"});
-			while (cursor.moveToNext()) {
-				String sql = cursor.getString(0);
-				Log.d(LOG_TAG, "TempHelper: " + sql);
-				if (sql != null) {
-					schema.add(sql);
-				}
-			}
-			cursor.close();
-			
-			cursor = mainDb.rawQuery("select sql from sqlite_master where tbl_name=?", new String[] {"topicvideo"});
+			// Tables before their indices.
+			Cursor cursor = mainDb.rawQuery("select sql from sqlite_master where tbl_name in ('topic', 'video', 'topicvideo', 'topic_closure') " +
+					"order by type = 'table' desc", null);
 			while (cursor.moveToNext()) {
 				String sql = cursor.getString(0);
 				Log.d(LOG_TAG, "TempHelper: " + sql);
@@ -462,6 +599,7 @@ public class LibraryUpdaterTask extends AsyncTask<Void, Void, Integer> {
 				Log.d(LOG_TAG, sql);
 				database.execSQL(sql);
 			}
+			database.execSQL(TopicTreePipeline.SQL_CREATE_CHECKPOINT);
 			
 		}
 
@@ -469,6 +607,12 @@ public class LibraryUpdaterTask extends AsyncTask<Void, Void, Integer> {
 		public void onUpgrade(SQLiteDatabase database,
 				ConnectionSource connectionSource, int oldVersion,
 				int newVersion) {
+			
+			Log.d(LOG_TAG, "TempHelper.onUpgrade: rebuilding");
+			for (String table : new String[] {"topic", "video", "topicvideo", "topic_closure", "update_checkpoint"}) {
+				database.execSQL(String.format("drop table if exists `%s`", table));
+			}
+			onCreate(database, connectionSource);
 		}
 	}
 	
@@ -0,0 +1,267 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import static com.concentricsky.android.khanacademy.Constants.RESULT_CODE_FAILURE;
+import static com.concentricsky.android.khanacademy.Constants.RESULT_CODE_SUCCESS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.http.HttpStatus;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+
+import com.concentricsky.android.khanacademy.data.KADataService;
+import com.concentricsky.android.khanacademy.data.db.DatabaseHelper;
+import com.concentricsky.android.khanacademy.data.db.LibrarySearch;
+import com.concentricsky.android.khanacademy.util.Log;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Refreshes a single topic's subtree from the api, without a full library update.
+ *
+ * The subtree is parsed into an in-memory database attached to the main one, through the same
+ * {@link TopicTreeParser} and {@link TopicTreeIngester} as a full update. The parser is seeded with the
+ * topic's ancestors, so the rows (parent links, ancestry, closure rows and subtree hashes) come out exactly as
+ * a full update would write them. If the topic's subtree hash matches the one in the library, nothing below it
+ * changed and nothing is written. Otherwise the old subtree is replaced in one transaction, carrying download
+ * status across, and the ancestors' counts are adjusted by the difference.
+ *
+ * Ancestor subtree hashes are left alone. If the topic really changed, the next full update sees its
+ * ancestors as changed and rewrites them. The topic itself already matches, so it is skipped.
+ *
+ * The topics and videos the refresh touched, old and new, are kept for {@link #getChangedTopicIds} and
+ * {@link #getChangedYoutubeIds}.
+ *
+ * @author austinlally
+ *
+ */
+public class TopicRefreshTask extends AsyncTask<Void, Void, Integer> {
+
+	public static final String LOG_TAG = TopicRefreshTask.class.getSimpleName();
+
+	/** Returns the subtree under one topic, in the same shape as the full topictree. */
+	private static final String URL_FORMAT = "http://www.khanacademy.org/api/v1/topictree/%s";
+	private static final String SCHEMA = "ka_refresh";
+	private static final String[] TABLES = {"topic", "video", "topicvideo", "topic_closure"};
+	private static final int TIMEOUT_MS = 30 * 1000;
+
+	private final KADataService dataService;
+	private final String topicId;
+	private final Set<String> changedTopicIds = new HashSet<String>();
+	private final Set<String> changedYoutubeIds = new HashSet<String>();
+
+	public TopicRefreshTask(KADataService dataService, String topicId) {
+		this.dataService = dataService;
+		this.topicId = topicId;
+	}
+
+	public String getTopicId() {
+		return topicId;
+	}
+
+	/**
+	 * @return After a successful refresh, the ids of the topics it replaced, added or recounted. Empty if the
+	 * 		topic was already current.
+	 */
+	public Set<String> getChangedTopicIds() {
+		return changedTopicIds;
+	}
+
+	/**
+	 * @return After a successful refresh, the youtube ids of the videos it replaced or added.
+	 */
+	public Set<String> getChangedYoutubeIds() {
+		return changedYoutubeIds;
+	}
+
+	@Override
+	protected Integer doInBackground(Void... params) {
+		long start = System.currentTimeMillis();
+		SQLiteDatabase mainDb = dataService.getHelper().getWritableDatabase();
+
+		// Where the topic sits now. We only refresh topics we already know about.
+		List<String> ancestorIds = new ArrayList<String>();
+		Cursor c = mainDb.rawQuery("select ancestor from topic_closure where descendant = ? and depth > 0 order by depth desc", new String[] {topicId});
+		while (c.moveToNext()) {
+			ancestorIds.add(c.getString(0));
+		}
+		c.close();
+		c = mainDb.rawQuery("select seq from topic where _id = ?", new String[] {topicId});
+		int seq = c.moveToFirst() ? c.getInt(0) : -1;
+		c.close();
+		if (seq < 0 || ancestorIds.isEmpty()) {
+			// Unknown, or the root, which is what a full update is for.
+			Log.w(LOG_TAG, "not refreshing topic " + topicId);
+			return RESULT_CODE_FAILURE;
+		}
+
+		HttpURLConnection conn = null;
+		mainDb.execSQL("attach database ':memory:' as " + SCHEMA);
+		try {
+			createSchema(mainDb);
+
+			conn = (HttpURLConnection) new URL(String.format(URL_FORMAT, topicId)).openConnection();
+			// This runs on the library update executor; a stalled request would hold up every update behind it.
+			conn.setConnectTimeout(TIMEOUT_MS);
+			conn.setReadTimeout(TIMEOUT_MS);
+			int code = conn.getResponseCode();
+			if (code != HttpStatus.SC_OK) {
+				Log.w(LOG_TAG, "Error code in topic response: " + code);
+				return RESULT_CODE_FAILURE;
+			}
+
+			InputStream in = conn.getInputStream();
+			TopicTreeIngester ingester = new TopicTreeIngester(mainDb, SCHEMA);
+			try {
+				JsonParser parser = new JsonFactory().createJsonParser(in);
+				new TopicTreeParser(ingester).parse(parser, ancestorIds, seq);
+				ingester.logCounts();
+			} finally {
+				ingester.close();
+				in.close();
+			}
+
+			if (DatabaseUtils.longForQuery(mainDb, String.format("select count() from %s.topic where _id = ?", SCHEMA), new String[] {topicId}) == 0) {
+				Log.w(LOG_TAG, "topic response did not contain " + topicId);
+				return RESULT_CODE_FAILURE;
+			}
+
+			String[] idArg = new String[] {topicId};
+			String oldHash = DatabaseUtils.stringForQuery(mainDb, "select subtree_hash from main.topic where _id = ?", idArg);
+			String newHash = DatabaseUtils.stringForQuery(mainDb, String.format("select subtree_hash from %s.topic where _id = ?", SCHEMA), idArg);
+			if (newHash != null && newHash.equals(oldHash)) {
+				Log.d(LOG_TAG, String.format("topic %s unchanged (checked in %dms)", topicId, System.currentTimeMillis() - start));
+				return RESULT_CODE_SUCCESS;
+			}
+
+			mainDb.beginTransaction();
+			try {
+				replaceSubtree(mainDb);
+				mainDb.setTransactionSuccessful();
+			} finally {
+				mainDb.endTransaction();
+			}
+
+			Log.d(LOG_TAG, String.format("refreshed topic %s in %dms", topicId, System.currentTimeMillis() - start));
+			return RESULT_CODE_SUCCESS;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (conn != null) {
+				conn.disconnect();
+			}
+			mainDb.execSQL("drop table if exists temp.refresh_old_topic");
+			mainDb.execSQL("detach database " + SCHEMA);
+		}
+
+		return RESULT_CODE_FAILURE;
+	}
+
+	/**
+	 * Create the library tables in the attached schema, from main's own definitions.
+	 */
+	private void createSchema(SQLiteDatabase mainDb) {
+		for (String table : TABLES) {
+			String sql = DatabaseUtils.stringForQuery(mainDb, "select sql from main.sqlite_master where type = 'table' and name = ?", new String[] {table});
+			mainDb.execSQL(sql.replaceFirst("(?i)^create table (if not exists )?", "CREATE TABLE $1" + SCHEMA + "."));
+		}
+	}
+
+	private void replaceSubtree(SQLiteDatabase mainDb) {
+		String[] idArg = new String[] {topicId};
+		long oldVideoCount = DatabaseUtils.longForQuery(mainDb, "select video_count from main.topic where _id = ?", idArg);
+		long newVideoCount = DatabaseUtils.longForQuery(mainDb, String.format("select video_count from %s.topic where _id = ?", SCHEMA), idArg);
+		long oldDownloadedCount = DatabaseUtils.longForQuery(mainDb, "select downloaded_video_count from main.topic where _id = ?", idArg);
+
+		mainDb.execSQL("drop table if exists temp.refresh_old_topic");
+		mainDb.execSQL("create temp table refresh_old_topic as select descendant as _id from main.topic_closure where ancestor = ?", idArg);
+		String oldTopics = "(select _id from temp.refresh_old_topic)";
+
+		// Ancestors' counts change too, so every listed topic on the path down to this one is touched.
+		collect(mainDb, "select _id from temp.refresh_old_topic union select _id from " + SCHEMA + ".topic " +
+				"union select ancestor from main.topic_closure where descendant = ? and depth > 0", idArg, changedTopicIds);
+		collect(mainDb, "select youtube_id from main.video where readable_id in (select video_id from main.topicvideo where topic_id in " + oldTopics + ") " +
+				"union select youtube_id from " + SCHEMA + ".video", null, changedYoutubeIds);
+
+		LibraryUpdaterTask.carryDownloadStatus(mainDb, SCHEMA, "main");
+
+		// Search docids are rowids, which the rows below lose when deleted and replaced.
+		String newTopics = String.format("(select _id from %s.topic)", SCHEMA);
+		String newVideos = String.format("(select readable_id from %s.video)", SCHEMA);
+		LibrarySearch.remove(mainDb, "main", "(select _id from temp.refresh_old_topic union select _id from " + SCHEMA + ".topic)", newVideos);
+
+		mainDb.execSQL("delete from main.topic where _id in " + oldTopics);
+		mainDb.execSQL(String.format("insert or replace into main.topic select * from %s.topic", SCHEMA));
+
+		mainDb.execSQL("delete from main.topicvideo where topic_id in " + oldTopics);
+		mainDb.execSQL(String.format("insert into main.topicvideo (topic_id, video_id) select topic_id, video_id from %s.topicvideo", SCHEMA));
+
+		mainDb.execSQL("delete from main.topic_closure where descendant in " + oldTopics);
+		mainDb.execSQL(String.format("insert or ignore into main.topic_closure select * from %s.topic_closure", SCHEMA));
+
+		// Replace the subtree's videos, and drop any that no topic lists anymore.
+		String videoColumns = LibraryUpdaterTask.getColumnsExceptId(mainDb, "video");
+		mainDb.execSQL(String.format("delete from main.video where readable_id in (select readable_id from %s.video)", SCHEMA));
+		mainDb.execSQL(String.format("insert into main.video (%1$s) select %1$s from %2$s.video", videoColumns, SCHEMA));
+		String orphanedVideos = "(select readable_id from main.video where readable_id not in (select video_id from main.topicvideo))";
+		LibrarySearch.remove(mainDb, "main", null, orphanedVideos);
+		mainDb.execSQL("delete from main.video where readable_id in " + orphanedVideos);
+		LibrarySearch.add(mainDb, "main", newTopics, newVideos);
+
+		if (newVideoCount != oldVideoCount) {
+			// An ancestor left with no videos drops out of search, and one that gains its first comes in.
+			String ancestors = "(select ancestor from main.topic_closure where descendant = " + DatabaseUtils.sqlEscapeString(topicId) + " and depth > 0)";
+			LibrarySearch.remove(mainDb, "main", ancestors, null);
+			mainDb.execSQL("update main.topic set video_count = video_count + ? where _id in " + ancestors, new Object[] {newVideoCount - oldVideoCount});
+			LibrarySearch.add(mainDb, "main", ancestors, null);
+		}
+		// Only the new subtree needs counting; everything above it moves by the same difference.
+		DatabaseHelper.recomputeDownloadedVideoCounts(mainDb, "main", topicId);
+		long newDownloadedCount = DatabaseUtils.longForQuery(mainDb, "select downloaded_video_count from main.topic where _id = ?", idArg);
+		if (newDownloadedCount != oldDownloadedCount) {
+			mainDb.execSQL("update main.topic set downloaded_video_count = downloaded_video_count + ? where _id in (select ancestor from main.topic_closure where descendant = ? and depth > 0)",
+					new Object[] {newDownloadedCount - oldDownloadedCount, topicId});
+		}
+	}
+
+	private static void collect(SQLiteDatabase db, String sql, String[] args, Set<String> into) {
+		Cursor c = db.rawQuery(sql, args);
+		try {
+			while (c.moveToNext()) {
+				if (!c.isNull(0)) {
+					into.add(c.getString(0));
+				}
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+}
@@ -0,0 +1,290 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_SPOOL_COMPLETE;
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_SPOOL_ENCODING;
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_SPOOL_ETAG;
+import static com.concentricsky.android.khanacademy.Constants.SETTING_LIBRARY_SPOOL_LENGTH;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpStatus;
+
+import android.content.SharedPreferences;
+
+import com.concentricsky.android.khanacademy.util.Log;
+
+/**
+ * Downloads the topic tree to a spool file before it is parsed, so a dropped connection costs only the
+ * bytes not yet received.
+ *
+ * The body is requested gzipped and stored exactly as sent. If a previous attempt left a partial spool,
+ * the rest is requested with a Range header, guarded by If-Range on the spool's ETag; a server that has
+ * moved on to a new tree answers with the whole new body instead, and the spool starts over. The spool's
+ * ETag, encoding, completeness and length are kept in preferences, so a resume survives the process being
+ * killed. The spool lives in the cache dir, where the system may delete it; a spool shorter than recorded is
+ * discarded rather than resumed or reused.
+ *
+ * @author austinlally
+ *
+ */
+public class TopicTreeDownloader {
+
+	public static final String LOG_TAG = TopicTreeDownloader.class.getSimpleName();
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+	private static final int TIMEOUT_MS = 30 * 1000;
+	private static final String ENCODING_GZIP = "gzip";
+
+	private final String url;
+	private final File spool;
+	private final SharedPreferences prefs;
+
+	private long bytesReceived;
+
+	public TopicTreeDownloader(String url, File spool, SharedPreferences prefs) {
+		this.url = url;
+		this.spool = spool;
+		this.prefs = prefs;
+	}
+
+	/**
+	 * Bring the spool up to date with the server, resuming a partial download if possible.
+	 *
+	 * @param knownEtag The ETag of the tree already in the library, or null to fetch unconditionally.
+	 * @return False if the server reports the library's tree is current, true if the spool now holds a newer one.
+	 * @throws IOException If the download was cut short. Whatever arrived is kept for the next attempt.
+	 */
+	public boolean download(String knownEtag) throws IOException {
+		return download(knownEtag, true);
+	}
+
+	private boolean download(String knownEtag, boolean mayRetry) throws IOException {
+		String spoolEtag = prefs.getString(SETTING_LIBRARY_SPOOL_ETAG, null);
+		boolean complete = prefs.getBoolean(SETTING_LIBRARY_SPOOL_COMPLETE, false);
+		long have = spool.exists() ? spool.length() : 0;
+		long recorded = prefs.getLong(SETTING_LIBRARY_SPOOL_LENGTH, 0);
+		// A killed download may have written past the recorded length, but a finished one can't have.
+		boolean truncated = have == 0 || have < recorded || (complete && have != recorded);
+
+		// A weak ETag can't be used with If-Range, and a spool without an ETag can't be validated at all.
+		if (spoolEtag == null || spoolEtag.startsWith("W/") || truncated) {
+			reset();
+			spoolEtag = null;
+			complete = false;
+			have = 0;
+		}
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(TIMEOUT_MS);
+		conn.setReadTimeout(TIMEOUT_MS);
+		conn.setRequestProperty("Accept-Encoding", ENCODING_GZIP);
+		if (complete) {
+			// Finished last time but never ingested. Keep it if it's still current.
+			conn.setRequestProperty("If-None-Match", spoolEtag);
+		} else {
+			if (knownEtag != null) {
+				conn.setRequestProperty("If-None-Match", knownEtag);
+			}
+			if (have > 0) {
+				conn.setRequestProperty("Range", "bytes=" + have + "-");
+				conn.setRequestProperty("If-Range", spoolEtag);
+			}
+		}
+
+		try {
+			int code = conn.getResponseCode();
+			switch (code) {
+			case HttpStatus.SC_NOT_MODIFIED:
+				if (complete) {
+					Log.d(LOG_TAG, "spooled topic tree is still current");
+					return true;
+				}
+				reset();
+				return false;
+			case HttpStatus.SC_PARTIAL_CONTENT:
+				if (rangeStart(conn.getHeaderField("Content-Range")) != have) {
+					throw new IOException("unexpected Content-Range: " + conn.getHeaderField("Content-Range"));
+				}
+				Log.d(LOG_TAG, String.format("resuming topic tree download at %d bytes", have));
+				spoolBody(conn, true);
+				return true;
+			case HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE:
+				// Our spool doesn't fit the server's copy; start over, once.
+				Log.w(LOG_TAG, "topic tree range not satisfiable; discarding spool");
+				reset();
+				if (mayRetry) {
+					return download(knownEtag, false);
+				}
+				throw new IOException("topic tree range not satisfiable");
+			default:
+				// Odd, but on 1/3/13 I received correct json responses with a -1 for responseCode. Fall through.
+				Log.w(LOG_TAG, "Error code in library response: " + code);
+			case HttpStatus.SC_OK:
+				// A new tree, or the server ignored our Range. Either way this is the whole body.
+				reset();
+				prefs.edit()
+					.putString(SETTING_LIBRARY_SPOOL_ETAG, conn.getHeaderField("ETag"))
+					.putString(SETTING_LIBRARY_SPOOL_ENCODING, conn.getContentEncoding())
+					.commit();
+				spoolBody(conn, false);
+				return true;
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private void spoolBody(HttpURLConnection conn, boolean append) throws IOException {
+		long start = System.currentTimeMillis();
+		long count = 0;
+		InputStream in = conn.getInputStream();
+		OutputStream out = new FileOutputStream(spool, append);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+				count += n;
+				bytesReceived += n;
+			}
+		} finally {
+			try {
+				out.close();
+			} finally {
+				in.close();
+				prefs.edit().putLong(SETTING_LIBRARY_SPOOL_LENGTH, spool.length()).commit();
+			}
+		}
+		prefs.edit().putBoolean(SETTING_LIBRARY_SPOOL_COMPLETE, true).commit();
+		Log.d(LOG_TAG, String.format("spooled %d bytes in %dms (%d total)", count, System.currentTimeMillis() - start, spool.length()));
+	}
+
+	/**
+	 * @return The first byte position in a "bytes first-last/total" header, or -1 if it can't be read.
+	 */
+	private static long rangeStart(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int from = contentRange.indexOf(' ') + 1;
+		int to = contentRange.indexOf('-', from);
+		if (to < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(from, to).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return Bytes received from the network by this downloader, whether or not the download completed.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return The ETag of the spooled tree, to be recorded once it has been ingested.
+	 */
+	public String getEtag() {
+		return prefs.getString(SETTING_LIBRARY_SPOOL_ETAG, null);
+	}
+
+	/**
+	 * Open the completed spool as plain JSON.
+	 *
+	 * Gzipped spools are inflated as they are read. Uncompressed ones are memory-mapped, so the parser reads
+	 * straight from the page cache.
+	 */
+	public InputStream open() throws IOException {
+		if (ENCODING_GZIP.equalsIgnoreCase(prefs.getString(SETTING_LIBRARY_SPOOL_ENCODING, null))) {
+			return new GZIPInputStream(new FileInputStream(spool), BUFFER_SIZE);
+		}
+		FileInputStream file = new FileInputStream(spool);
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new ByteBufferInputStream(buffer);
+		} catch (IOException e) {
+			// Mapping can fail where plain reads don't; fall back to those.
+			Log.w(LOG_TAG, "could not map topic tree spool: " + e.getMessage());
+			return new FileInputStream(spool);
+		} finally {
+			// The mapping outlives the channel.
+			file.close();
+		}
+	}
+
+	/**
+	 * Forget the spool. Called once it has been ingested, or when it turned out to be unusable.
+	 */
+	public void reset() {
+		spool.delete();
+		prefs.edit()
+			.remove(SETTING_LIBRARY_SPOOL_ETAG)
+			.remove(SETTING_LIBRARY_SPOOL_ENCODING)
+			.remove(SETTING_LIBRARY_SPOOL_COMPLETE)
+			.remove(SETTING_LIBRARY_SPOOL_LENGTH)
+			.commit();
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import java.io.IOException;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.concentricsky.android.khanacademy.data.remote.TopicTreeParser.Node;
+import com.concentricsky.android.khanacademy.util.Log;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Writes the nodes of a topic tree into the topic, video, topicvideo and topic_closure tables.
+ *
+ * Each table gets one compiled {@link SQLiteStatement}, bound positionally and re-executed for every
+ * row, so no SQL is compiled and no {@link android.content.ContentValues} are allocated per node.
+ *
+ * topic_closure gets one row per (ancestor, topic) pair, including each topic paired with itself at depth 0,
+ * taken from the ancestor ids the parser tracks on the way down.
+ *
+ * Rows whose key is already present are skipped: a topic or video the feed repeats keeps its first occurrence.
+ *
+ * The caller owns the database and any transaction around the writes, and must call {@link #close()}
+ * when done to release the compiled statements.
+ *
+ * @author austinlally
+ *
+ */
+public class TopicTreeIngester implements TopicTreeParser.Sink {
+
+	public static final String LOG_TAG = TopicTreeIngester.class.getSimpleName();
+
+	// Column order here must match the bind indices in topic / video. Shared with the JDBC sink in etc/benchmark.
+	static final String SQL_INSERT_TOPIC = "insert or ignore into %1$s.topic (_id, child_kind, video_count, title, description, ka_url, hide, parentTopic_id, seq, kind, thumb_id, subtree_hash, ancestry, child_count) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+	static final String SQL_INSERT_VIDEO = "insert or ignore into %1$s.video (readable_id, keywords, progress_key, duration, youtube_id, mp4url, pngurl, m3u8url, date_added, views, title, description, ka_url, hide, parentTopic_id, seq, kind, ancestry) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+	static final String SQL_INSERT_TOPICVIDEO = "insert or ignore into %1$s.topicvideo (topic_id, video_id) values (?,?)";
+	static final String SQL_INSERT_CLOSURE = "insert or ignore into %1$s.topic_closure (ancestor, descendant, depth) values (?,?,?)";
+	static final String SQL_REPARENT_TOPIC = "update %1$s.topic set parentTopic_id=? where _id=?";
+	static final String SQL_REPARENT_VIDEO = "update %1$s.video set parentTopic_id=? where readable_id=?";
+
+	private final SQLiteStatement insertTopic;
+	private final SQLiteStatement insertVideo;
+	private final SQLiteStatement insertTopicVideo;
+	private final SQLiteStatement insertClosure;
+	private final SQLiteStatement reparentTopic;
+	private final SQLiteStatement reparentVideo;
+
+	private int topicCount;
+	private int videoCount;
+	private int topicVideoCount;
+	private int closureCount;
+
+	/**
+	 * Compile the insert statements against the given database.
+	 *
+	 * @param db The database holding the topic, video and topicvideo tables to fill.
+	 */
+	public TopicTreeIngester(SQLiteDatabase db) {
+		this(db, "main");
+	}
+
+	/**
+	 * Compile the insert statements against tables in the given schema.
+	 *
+	 * @param db The database to write through.
+	 * @param schema main, or the name of an attached database holding the tables to fill.
+	 */
+	public TopicTreeIngester(SQLiteDatabase db, String schema) {
+		insertTopic = db.compileStatement(String.format(SQL_INSERT_TOPIC, schema));
+		insertVideo = db.compileStatement(String.format(SQL_INSERT_VIDEO, schema));
+		insertTopicVideo = db.compileStatement(String.format(SQL_INSERT_TOPICVIDEO, schema));
+		insertClosure = db.compileStatement(String.format(SQL_INSERT_CLOSURE, schema));
+		reparentTopic = db.compileStatement(String.format(SQL_REPARENT_TOPIC, schema));
+		reparentVideo = db.compileStatement(String.format(SQL_REPARENT_VIDEO, schema));
+	}
+
+	/**
+	 * Parse a whole tree on the calling thread, inserting as we go.
+	 *
+	 * @param parser A parser positioned before (or at) the START_OBJECT of the root topic.
+	 */
+	public void ingest(JsonParser parser) throws JsonParseException, IOException {
+		new TopicTreeParser(this).parse(parser);
+		logCounts();
+	}
+
+	/**
+	 * Release the compiled statements.
+	 */
+	public void close() {
+		insertTopic.close();
+		insertVideo.close();
+		insertTopicVideo.close();
+		insertClosure.close();
+		reparentTopic.close();
+		reparentVideo.close();
+	}
+
+	public int getTopicCount() {
+		return topicCount;
+	}
+
+	public int getVideoCount() {
+		return videoCount;
+	}
+
+	public int getTopicVideoCount() {
+		return topicVideoCount;
+	}
+
+	public int getClosureCount() {
+		return closureCount;
+	}
+
+	void logCounts() {
+		Log.d(LOG_TAG, String.format("ingested %d topics, %d videos, %d topicvideos, %d closure rows", topicCount, videoCount, topicVideoCount, closureCount));
+	}
+
+	@Override
+	public void reparent(Node node) {
+		SQLiteStatement stmt = TopicTreeParser.KIND_TOPIC.equals(node.childKind) ? reparentTopic : reparentVideo;
+		for (String childId : node.childIds) {
+			bindString(stmt, 1, node.id);
+			bindString(stmt, 2, childId);
+			stmt.execute();
+		}
+	}
+
+	@Override
+	public void topic(Node node) {
+		SQLiteStatement s = insertTopic;
+		bindString(s, 1, node.id);
+		bindString(s, 2, node.childKind);
+		s.bindLong(3, node.videoCount);
+		bindString(s, 4, node.title);
+		bindString(s, 5, node.description);
+		bindString(s, 6, node.ka_url);
+		bindHide(s, 7, node);
+		bindString(s, 8, node.parentId);
+		s.bindLong(9, node.seq);
+		bindString(s, 10, node.kind);
+		bindString(s, 11, node.thumbId);
+		bindString(s, 12, Long.toHexString(node.hash));
+		bindString(s, 13, node.ancestry);
+		s.bindLong(14, node.childCount);
+		if (s.executeInsert() == -1) {
+			// A topic id repeated in the feed. Keep the first, as db.insert did, rather than failing the whole tree.
+			Log.w(LOG_TAG, "skipping duplicate topic " + node.id);
+			return;
+		}
+		topicCount++;
+
+		s = insertClosure;
+		bindString(s, 2, node.id);
+		int n = node.ancestorIds.size();
+		for (int i = 0; i < n; ++i) {
+			bindString(s, 1, node.ancestorIds.get(i));
+			s.bindLong(3, n - i);
+			s.executeInsert();
+		}
+		bindString(s, 1, node.id);
+		s.bindLong(3, 0);
+		s.executeInsert();
+		closureCount += n + 1;
+	}
+
+	@Override
+	public void video(Node node) {
+		SQLiteStatement s = insertTopicVideo;
+		bindString(s, 1, node.parentId);
+		bindString(s, 2, node.readable_id);
+		if (s.executeInsert() != -1) {
+			topicVideoCount++;
+		}
+
+		s = insertVideo;
+		bindString(s, 1, node.readable_id);
+		bindString(s, 2, node.keywords);
+		bindString(s, 3, node.progress_key);
+		s.bindLong(4, node.duration);
+		bindString(s, 5, node.youtube_id);
+		bindString(s, 6, node.mp4url);
+		bindString(s, 7, node.pngurl);
+		bindString(s, 8, node.m3u8url);
+		bindString(s, 9, node.date_added);
+		s.bindLong(10, node.views);
+		bindString(s, 11, node.title);
+		bindString(s, 12, node.description);
+		bindString(s, 13, node.ka_url);
+		bindHide(s, 14, node);
+		bindString(s, 15, node.parentId);
+		s.bindLong(16, node.seq);
+		bindString(s, 17, node.kind);
+		bindString(s, 18, node.ancestry);
+		if (s.executeInsert() != -1) {
+			videoCount++;
+		}
+	}
+
+	/** SQLiteStatement.bindString throws on null, so route nulls to bindNull. */
+	private static void bindString(SQLiteStatement s, int index, String value) {
+		if (value == null) {
+			s.bindNull(index);
+		} else {
+			s.bindString(index, value);
+		}
+	}
+
+	/** hide is stored the way ContentValues stores a Boolean: 1 / 0, or null when absent. */
+	private static void bindHide(SQLiteStatement s, int index, Node node) {
+		if (node.hasHide) {
+			s.bindLong(index, node.hide ? 1 : 0);
+		} else {
+			s.bindNull(index);
+		}
+	}
+
+}
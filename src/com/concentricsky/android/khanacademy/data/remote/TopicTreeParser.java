@@ -0,0 +1,457 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Walks the /api/v1/topictree response with the Jackson streaming parser, handing each topic and video
+ * to a {@link Sink} as soon as its object closes.
+ *
+ * Node state lives in a {@link Node} record per tree depth which is reset and reused, rather than built
+ * fresh for each object in the response. Sinks must copy anything they want to keep past the callback.
+ *
+ * Ancestry is tracked on the way down: each node carries the ids of its ancestors, root first, and the
+ * pipe-delimited ancestry string stored on topics and videos. Sinks get both with the node, so hierarchy
+ * tables can be filled in the same pass as the rows themselves.
+ *
+ * Every topic also gets a subtree hash: a 64-bit FNV-1a digest of the topic's own columns and, in order,
+ * the hashes of all its children. Two trees with equal subtree hashes at a topic are identical below that
+ * topic, which lets {@link LibraryUpdaterTask} skip rewriting unchanged parts of the library.
+ *
+ * @author austinlally
+ *
+ */
+public class TopicTreeParser {
+
+	public static final String LOG_TAG = TopicTreeParser.class.getSimpleName();
+
+	static final String KIND_TOPIC = "Topic";
+	static final String KIND_VIDEO = "Video";
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// Field codes, so the per-field dispatch is one hash lookup and a switch instead of several List.contains scans.
+	private static final int F_KIND = 1;
+	private static final int F_TITLE = 2;
+	private static final int F_DESCRIPTION = 3;
+	private static final int F_KA_URL = 4;
+	private static final int F_ID = 5;
+	private static final int F_READABLE_ID = 6;
+	private static final int F_YOUTUBE_ID = 7;
+	private static final int F_KEYWORDS = 8;
+	private static final int F_PROGRESS_KEY = 9;
+	private static final int F_DATE_ADDED = 10;
+	private static final int F_HIDE = 11;
+	private static final int F_VIEWS = 12;
+	private static final int F_DURATION = 13;
+	private static final int F_CHILDREN = 14;
+	private static final int F_DOWNLOAD_URLS = 15;
+
+	private static final int U_PNG = 1;
+	private static final int U_MP4 = 2;
+	private static final int U_M3U8 = 3;
+
+	private static final Map<String, Integer> fieldCodes = new HashMap<String, Integer>();
+	private static final Map<String, Integer> downloadUrlCodes = new HashMap<String, Integer>();
+	static {
+		fieldCodes.put("kind", F_KIND);
+		fieldCodes.put("title", F_TITLE);
+		fieldCodes.put("description", F_DESCRIPTION);
+		fieldCodes.put("ka_url", F_KA_URL);
+		fieldCodes.put("id", F_ID);
+		fieldCodes.put("readable_id", F_READABLE_ID);
+		fieldCodes.put("youtube_id", F_YOUTUBE_ID);
+		fieldCodes.put("keywords", F_KEYWORDS);
+		fieldCodes.put("progress_key", F_PROGRESS_KEY);
+		fieldCodes.put("date_added", F_DATE_ADDED);
+		fieldCodes.put("hide", F_HIDE);
+		fieldCodes.put("views", F_VIEWS);
+		fieldCodes.put("duration", F_DURATION);
+		fieldCodes.put("children", F_CHILDREN);
+		fieldCodes.put("download_urls", F_DOWNLOAD_URLS);
+
+		downloadUrlCodes.put("png", U_PNG);
+		downloadUrlCodes.put("mp4", U_MP4);
+		downloadUrlCodes.put("m3u8", U_M3U8);
+	}
+
+	/**
+	 * Receives the parsed tree, one node at a time, children before their parents.
+	 */
+	public interface Sink {
+		/** A topic with topic or video children has been fully parsed. */
+		public void topic(Node node);
+		/** A video has been fully parsed. Its parentId is the topic it appeared under. */
+		public void video(Node node);
+		/**
+		 * A topic's id arrived after its children were already handed off with a null parentId.
+		 * The node's childIds and childKind say which rows need the id filled in.
+		 */
+		public void reparent(Node node);
+	}
+
+	/**
+	 * Parse state for one object in the tree.
+	 */
+	public static final class Node {
+		String parentId;
+		int seq;
+		/** Ancestor topic ids, root first. The last one is parentId. */
+		final List<String> ancestorIds = new ArrayList<String>();
+		/** "|root|...|parentId", as stored in the ancestry columns. Null for the root. */
+		String ancestry;
+
+		String kind;
+		String id;
+		String title;
+		String description;
+		String ka_url;
+		String readable_id;
+		String youtube_id;
+		String keywords;
+		String progress_key;
+		String date_added;
+		String mp4url;
+		String pngurl;
+		String m3u8url;
+		boolean hasHide;
+		boolean hide;
+		int views;
+		int duration;
+
+		// Results of parsing this node's children array.
+		boolean hasChildren;
+		String childKind;
+		/** Children that become rows: topics with children of their own, and videos. */
+		int childCount;
+		int videoCount;
+		String thumbId;
+		final List<String> childIds = new ArrayList<String>();
+
+		/** Running digest of the children's hashes, in order. */
+		long childHash;
+		/** Digest of this node's own fields and childHash, valid once the object has been fully parsed. */
+		long hash;
+
+		void reset(Node parent, int seq) {
+			this.seq = seq;
+			ancestorIds.clear();
+			if (parent == null) {
+				parentId = ancestry = null;
+			} else {
+				parentId = parent.id;
+				ancestorIds.addAll(parent.ancestorIds);
+				ancestry = parent.ancestry;
+				// The parent's id normally precedes its children. If it doesn't, this subtree's ancestry comes up short.
+				if (parentId != null) {
+					ancestorIds.add(parentId);
+					ancestry = (ancestry == null ? "|" : ancestry + "|") + parentId;
+				}
+			}
+			kind = id = title = description = ka_url = readable_id = youtube_id = null;
+			keywords = progress_key = date_added = mp4url = pngurl = m3u8url = null;
+			hasHide = hide = false;
+			views = duration = 0;
+			hasChildren = false;
+			childKind = thumbId = null;
+			childCount = videoCount = 0;
+			childIds.clear();
+			childHash = hash = FNV_OFFSET_BASIS;
+		}
+
+		void copyFrom(Node other) {
+			parentId = other.parentId;
+			seq = other.seq;
+			ancestorIds.clear();
+			ancestorIds.addAll(other.ancestorIds);
+			ancestry = other.ancestry;
+			kind = other.kind;
+			id = other.id;
+			title = other.title;
+			description = other.description;
+			ka_url = other.ka_url;
+			readable_id = other.readable_id;
+			youtube_id = other.youtube_id;
+			keywords = other.keywords;
+			progress_key = other.progress_key;
+			date_added = other.date_added;
+			mp4url = other.mp4url;
+			pngurl = other.pngurl;
+			m3u8url = other.m3u8url;
+			hasHide = other.hasHide;
+			hide = other.hide;
+			views = other.views;
+			duration = other.duration;
+			hasChildren = other.hasChildren;
+			childKind = other.childKind;
+			childCount = other.childCount;
+			videoCount = other.videoCount;
+			thumbId = other.thumbId;
+			childIds.clear();
+			childIds.addAll(other.childIds);
+			childHash = other.childHash;
+			hash = other.hash;
+		}
+
+		long computeHash() {
+			long h = FNV_OFFSET_BASIS;
+			h = mix(h, kind);
+			h = mix(h, id);
+			h = mix(h, readable_id);
+			h = mix(h, parentId);
+			// Ancestry too, so moving a subtree changes the hash of every topic in it, not just its root.
+			h = mix(h, ancestry);
+			h = mix(h, seq);
+			h = mix(h, title);
+			h = mix(h, description);
+			h = mix(h, ka_url);
+			h = mix(h, hasHide ? (hide ? 1 : 0) : -1);
+			h = mix(h, youtube_id);
+			h = mix(h, keywords);
+			h = mix(h, progress_key);
+			h = mix(h, date_added);
+			h = mix(h, mp4url);
+			h = mix(h, pngurl);
+			h = mix(h, m3u8url);
+			h = mix(h, views);
+			h = mix(h, duration);
+			h = mix(h, childKind);
+			h = mix(h, thumbId);
+			h = mix(h, videoCount);
+			return mix(h, childHash);
+		}
+
+		boolean isTopic() {
+			return KIND_TOPIC.equals(kind);
+		}
+
+		boolean isVideo() {
+			return KIND_VIDEO.equals(kind);
+		}
+	}
+
+	private final Sink sink;
+	private final List<Node> nodes = new ArrayList<Node>();
+
+	public TopicTreeParser(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Consume the root object of a topic tree, handing every topic and video below it to the sink.
+	 *
+	 * @param parser A parser positioned before (or at) the START_OBJECT of the root topic.
+	 */
+	public void parse(JsonParser parser) throws JsonParseException, IOException {
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			parser.nextToken();
+		}
+		parseObject(parser, 0, null, 0);
+	}
+
+	/**
+	 * Consume a subtree from somewhere below the root, giving its nodes the parent links, ancestry and hashes
+	 * they would have had in a parse of the whole tree.
+	 *
+	 * @param parser A parser positioned before (or at) the START_OBJECT of the subtree's root topic.
+	 * @param ancestorIds The ids of the subtree root's ancestors, root first. Must not be empty.
+	 * @param seq The subtree root's position among its siblings.
+	 */
+	public void parse(JsonParser parser, List<String> ancestorIds, int seq) throws JsonParseException, IOException {
+		int n = ancestorIds.size();
+		Node parent = new Node();
+		parent.reset(null, 0);
+		for (int i = 0; i < n - 1; ++i) {
+			String id = ancestorIds.get(i);
+			parent.ancestorIds.add(id);
+			parent.ancestry = (parent.ancestry == null ? "|" : parent.ancestry + "|") + id;
+		}
+		parent.id = ancestorIds.get(n - 1);
+
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			parser.nextToken();
+		}
+		parseObject(parser, 0, parent, seq);
+	}
+
+	private Node nodeAt(int depth) {
+		while (nodes.size() <= depth) {
+			nodes.add(new Node());
+		}
+		return nodes.get(depth);
+	}
+
+	private Node parseObject(JsonParser parser, int depth, Node parent, int seq) throws JsonParseException, IOException {
+		// TODO : Grab id of root topic here, and store it in shared prefs, in case it ever
+		//        changes. Currently we assume "root" and a change would be catastrophic.
+		Node node = nodeAt(depth);
+		node.reset(parent, seq);
+
+		while (parser.nextValue() != JsonToken.END_OBJECT) {
+			String fieldName = parser.getCurrentName();
+			Integer code = fieldName == null ? null : fieldCodes.get(fieldName);
+
+			if (code == null) {
+				JsonToken next = parser.getCurrentToken();
+				if (next == JsonToken.START_OBJECT || next == JsonToken.START_ARRAY) {
+					// Skip this object or array, leaving us pointing at the matching end_object / end_array token.
+					parser.skipChildren();
+				}
+				continue;
+			}
+
+			// Use getValueAsString over getText; getText returns "null" while getValueAsString returns null.
+			switch (code) {
+			case F_KIND: node.kind = parser.getValueAsString(); break;
+			case F_TITLE: node.title = parser.getValueAsString(); break;
+			case F_DESCRIPTION: node.description = parser.getValueAsString(); break;
+			case F_KA_URL: node.ka_url = parser.getValueAsString(); break;
+			case F_READABLE_ID: node.readable_id = parser.getValueAsString(); break;
+			case F_YOUTUBE_ID: node.youtube_id = parser.getValueAsString(); break;
+			case F_KEYWORDS: node.keywords = parser.getValueAsString(); break;
+			case F_PROGRESS_KEY: node.progress_key = parser.getValueAsString(); break;
+			case F_DATE_ADDED: node.date_added = parser.getValueAsString(); break;
+			case F_VIEWS: node.views = parser.getValueAsInt(); break;
+			case F_DURATION: node.duration = parser.getValueAsInt(); break;
+			case F_HIDE:
+				node.hasHide = true;
+				node.hide = parser.getValueAsBoolean();
+				break;
+			case F_ID:
+				node.id = parser.getValueAsString();
+				// It appears, looking at the tree as returned 12/30/12, that this is unnecessary. It's here just in case.
+				if (node.hasChildren && !node.childIds.isEmpty()) {
+					sink.reparent(node);
+				}
+				break;
+			case F_CHILDREN:
+				parseChildArray(parser, depth, node);
+				break;
+			case F_DOWNLOAD_URLS:
+				parseDownloadUrls(parser, node);
+				break;
+			}
+		}
+
+		node.hash = node.computeHash();
+
+		// Having parsed this whole object, we can emit it.
+		if (node.isTopic()) {
+			if (KIND_TOPIC.equals(node.childKind) || KIND_VIDEO.equals(node.childKind)) {
+				sink.topic(node);
+			}
+		} else if (node.isVideo()) {
+			sink.video(node);
+		}
+
+		return node;
+	}
+
+	private void parseChildArray(JsonParser parser, int depth, Node parent) throws JsonParseException, IOException {
+		parent.hasChildren = true;
+		if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+			return;
+		}
+
+		int seq = 0;
+		while (parser.nextValue() == JsonToken.START_OBJECT) { // Otherwise, we will be at END_ARRAY here.
+			Node child = parseObject(parser, depth + 1, parent, seq++);
+			parent.childHash = mix(parent.childHash, child.hash);
+
+			if (child.isTopic() && child.id != null) {
+				parent.childKind = KIND_TOPIC;
+				parent.childIds.add(child.id);
+				if (KIND_TOPIC.equals(child.childKind) || KIND_VIDEO.equals(child.childKind)) {
+					// Only these were handed to the sink.
+					parent.childCount += 1;
+				}
+				parent.videoCount += child.videoCount;
+				if (parent.thumbId == null) {
+					// Use the first available thumb id as this topic's thumb id.
+					parent.thumbId = child.thumbId;
+				}
+			} else if (child.isVideo() && child.readable_id != null) {
+				parent.childKind = KIND_VIDEO;
+				parent.childIds.add(child.readable_id);
+				parent.childCount += 1;
+				parent.videoCount += 1;
+				if (parent.thumbId == null && child.pngurl != null) {
+					// Use youtube_id of first video with a thumbnail as this topic's thumbnail id.
+					parent.thumbId = child.youtube_id;
+				}
+			}
+		}
+	}
+
+	private void parseDownloadUrls(JsonParser parser, Node node) throws JsonParseException, IOException {
+		// parser points at begin object token right now
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			// We must not have any download urls (null, '', something like that.)
+			return;
+		}
+		while (parser.nextValue() != JsonToken.END_OBJECT) {
+			String fieldName = parser.getCurrentName();
+			Integer code = fieldName == null ? null : downloadUrlCodes.get(fieldName);
+			if (code == null) {
+				parser.skipChildren();
+				continue;
+			}
+			switch (code) {
+			case U_PNG: node.pngurl = parser.getValueAsString(); break;
+			case U_MP4: node.mp4url = parser.getValueAsString(); break;
+			case U_M3U8: node.m3u8url = parser.getValueAsString(); break;
+			}
+		}
+	}
+
+	private static long mix(long h, long value) {
+		for (int i = 0; i < 8; ++i) {
+			h ^= (value >>> (i * 8)) & 0xff;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static long mix(long h, String value) {
+		if (value == null) {
+			// Distinguish null from "".
+			return mix(h, -1L);
+		}
+		int n = value.length();
+		for (int i = 0; i < n; ++i) {
+			char c = value.charAt(i);
+			h ^= c & 0xff;
+			h *= FNV_PRIME;
+			h ^= c >>> 8;
+			h *= FNV_PRIME;
+		}
+		// Length terminates the field, so adjacent fields can't run together.
+		return mix(h, n);
+	}
+
+}
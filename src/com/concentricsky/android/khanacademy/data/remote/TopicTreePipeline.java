@@ -0,0 +1,494 @@
+/*
+ 	Viewer for Khan Academy
+    Copyright (C) 2012 Concentric Sky, Inc.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.concentricsky.android.khanacademy.data.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.concentricsky.android.khanacademy.data.remote.TopicTreeParser.Node;
+import com.concentricsky.android.khanacademy.util.Log;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Ingests a topic tree in three overlapping stages, so network stalls don't idle the disk and vice versa.
+ *
+ *  1. A reader thread pulls the response body off the socket into fixed-size chunks.
+ *  2. The calling thread runs {@link TopicTreeParser} over those chunks, copying each parsed node into a record.
+ *  3. A writer thread feeds the records to a {@link TopicTreeIngester}, committing every {@link #COMMIT_INTERVAL} nodes.
+ *
+ * The stages are joined by bounded queues, so a slow stage applies back-pressure to the one before it instead
+ * of letting memory grow. Chunks and node records are recycled through free lists once consumed.
+ *
+ * The database passed in must not be in a transaction on the calling thread; the writer thread owns all
+ * transactions. On failure in any stage, the others are stopped, the uncommitted batch is rolled back and
+ * {@link #run(InputStream)} throws. Earlier batches stay committed, so callers should treat the tables as
+ * scratch until run returns normally.
+ *
+ * Each batch also records a checkpoint row in the same transaction: the tree's ETag, how many nodes are
+ * committed, the last topic committed and roughly how far into the body that was. If the process dies,
+ * {@link #resume()} finds that row and the next run re-parses the body from the start (it's spooled
+ * locally, so that's cheap) but skips writing the nodes already committed. The parser's state, with its
+ * ancestor stack and running child hashes, can't be rebuilt from a byte offset, so the offset is kept for
+ * reporting only.
+ *
+ * @author austinlally
+ *
+ */
+public class TopicTreePipeline {
+
+	public static final String LOG_TAG = TopicTreePipeline.class.getSimpleName();
+
+	static final int CHUNK_SIZE = 32 * 1024;
+	/** Up to 1 MiB of response body buffered ahead of the parser. */
+	static final int CHUNK_QUEUE_CAPACITY = 32;
+	static final int NODE_QUEUE_CAPACITY = 512;
+	static final int COMMIT_INTERVAL = 2000;
+
+	private static final long POLL_MS = 250;
+
+	private static final int OP_TOPIC = 1;
+	private static final int OP_VIDEO = 2;
+	private static final int OP_REPARENT = 3;
+
+	public static final String SQL_CREATE_CHECKPOINT = "CREATE TABLE IF NOT EXISTS `update_checkpoint` (`_id` INTEGER PRIMARY KEY, `etag` VARCHAR, `nodes` INTEGER NOT NULL DEFAULT 0, `last_topic` VARCHAR, `byte_offset` INTEGER NOT NULL DEFAULT 0 )";
+	private static final String SQL_SAVE_CHECKPOINT = "insert or replace into update_checkpoint (_id, etag, nodes, last_topic, byte_offset) values (1,?,?,?,?)";
+
+	private static final class Chunk {
+		final byte[] data = new byte[CHUNK_SIZE];
+		int length;
+	}
+
+	private static final class Record {
+		int op;
+		/** Bytes of the body the parser had consumed when this record was queued. */
+		long offset;
+		final Node node = new Node();
+	}
+
+	// Markers for the end of each stream.
+	private static final Chunk END_OF_BODY = new Chunk();
+	private static final Record END_OF_TREE = new Record();
+
+	private final JsonFactory factory;
+	private final SQLiteDatabase db;
+	private final String etag;
+
+	/** Nodes committed by an earlier run, to be parsed but not written again. */
+	private int skip;
+	/** The last topic committed by the earlier run, to check it parsed the same tree we're parsing now. */
+	private String skipLastTopic;
+
+	private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(CHUNK_QUEUE_CAPACITY);
+	private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<Chunk>(CHUNK_QUEUE_CAPACITY + 2);
+	private final BlockingQueue<Record> records = new ArrayBlockingQueue<Record>(NODE_QUEUE_CAPACITY);
+	private final BlockingQueue<Record> freeRecords = new ArrayBlockingQueue<Record>(NODE_QUEUE_CAPACITY + 2);
+
+	private volatile boolean aborted;
+	/** Set once the parser is done with the body, whether or not it succeeded. */
+	private volatile boolean parseDone;
+	private volatile Throwable readerError;
+	private volatile Throwable writerError;
+
+	private long bytesRead;
+	private int nodesWritten;
+	private int commits;
+
+	private ChunkInputStream body;
+	private LibraryUpdateMetrics metrics;
+	private int nodesParsed;
+
+	/**
+	 * @param factory Creates the parser over the body.
+	 * @param db The database to fill. Must hold the update_checkpoint table as well as the library tables.
+	 * @param etag The ETag of the tree being ingested, recorded with each checkpoint.
+	 */
+	public TopicTreePipeline(JsonFactory factory, SQLiteDatabase db, String etag) {
+		this.factory = factory;
+		this.db = db;
+		this.etag = etag;
+	}
+
+	/**
+	 * Look for a checkpoint left by an interrupted run over the same tree, and if there is one, arrange for
+	 * {@link #run(InputStream)} to pick up after it.
+	 *
+	 * @return True if resuming. If false, the caller should clear the tables before running.
+	 */
+	public boolean resume() {
+		if (etag == null) {
+			return false;
+		}
+		Cursor c = db.rawQuery("select nodes, last_topic, byte_offset from update_checkpoint where _id = 1 and etag = ?", new String[] {etag});
+		try {
+			if (!c.moveToFirst()) {
+				return false;
+			}
+			skip = c.getInt(0);
+			skipLastTopic = c.getString(1);
+			Log.d(LOG_TAG, String.format("resuming after %d nodes (%s, byte %d)", skip, skipLastTopic, c.getLong(2)));
+			return true;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Record this run's sizes, counts and timing into the given metrics when it finishes.
+	 */
+	public void setMetrics(LibraryUpdateMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Forget any checkpoint, so the next run starts over.
+	 */
+	public static void clearCheckpoint(SQLiteDatabase db) {
+		clearCheckpoint(db, "main");
+	}
+
+	/**
+	 * Forget any checkpoint in the given schema.
+	 *
+	 * @param schema main, or the name of an attached database holding the checkpoint.
+	 */
+	public static void clearCheckpoint(SQLiteDatabase db, String schema) {
+		db.execSQL(String.format("delete from %s.update_checkpoint", schema));
+	}
+
+	/**
+	 * Run all three stages over the given response body, returning once the last node is committed.
+	 *
+	 * @param in The response body. Read on a background thread, and closed when fully read.
+	 * @throws IOException If reading, parsing or writing failed.
+	 */
+	public void run(final InputStream in) throws IOException {
+		long start = System.currentTimeMillis();
+
+		Thread reader = new Thread(new Runnable() {
+			@Override public void run() {
+				read(in);
+			}
+		}, "topictree-reader");
+		Thread writer = new Thread(new Runnable() {
+			@Override public void run() {
+				write();
+			}
+		}, "topictree-writer");
+		reader.start();
+		writer.start();
+
+		Throwable parseError = null;
+		try {
+			body = new ChunkInputStream();
+			JsonParser parser = factory.createJsonParser(body);
+			new TopicTreeParser(new QueueSink()).parse(parser);
+		} catch (Throwable t) {
+			parseError = t;
+			aborted = true;
+		} finally {
+			parseDone = true;
+			try {
+				// The writer drains everything, even after a failure, so this can't block for long.
+				records.put(END_OF_TREE);
+				writer.join();
+				reader.join();
+			} catch (InterruptedException e) {
+				aborted = true;
+				reader.interrupt();
+				writer.interrupt();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for topic tree stages");
+			}
+		}
+
+		if (metrics != null) {
+			metrics.ingestMs = System.currentTimeMillis() - start;
+			metrics.bytesParsed = bytesRead;
+			metrics.nodesParsed = nodesParsed;
+			metrics.nodesSkipped = Math.min(skip, nodesParsed);
+			metrics.commits = commits;
+			metrics.sampleHeap();
+		}
+
+		// A reader failure reaches the parser through ChunkInputStream, so parseError covers it.
+		rethrow(writerError);
+		rethrow(parseError);
+
+		Log.d(LOG_TAG, String.format("pipeline finished in %dms: %d bytes, %d nodes skipped, %d nodes written, %d commits",
+				System.currentTimeMillis() - start, bytesRead, skip, nodesWritten, commits));
+	}
+
+	private static void rethrow(Throwable t) throws IOException {
+		if (t == null) {
+			return;
+		}
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		}
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		throw new IOException(t.toString());
+	}
+
+	/**
+	 * Stage 1. Copy the response body into chunks for the parser.
+	 */
+	private void read(InputStream in) {
+		try {
+			while (!parseDone) {
+				Chunk chunk = freeChunks.poll();
+				if (chunk == null) {
+					chunk = new Chunk();
+				}
+				int n = in.read(chunk.data, 0, CHUNK_SIZE);
+				if (n == -1) {
+					break;
+				}
+				chunk.length = n;
+				bytesRead += n;
+				while (!parseDone && !chunks.offer(chunk, POLL_MS, TimeUnit.MILLISECONDS)) { }
+			}
+		} catch (Throwable t) {
+			readerError = t;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) { }
+			try {
+				while (!chunks.offer(END_OF_BODY, POLL_MS, TimeUnit.MILLISECONDS)) {
+					// If the parser has quit, nobody is draining chunks; make room for the marker.
+					if (parseDone) {
+						chunks.clear();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Stage 3. Write records to the database in batches.
+	 */
+	private void write() {
+		TopicTreeIngester ingester = null;
+		SQLiteStatement checkpoint = null;
+		boolean inTransaction = false;
+		int position = 0;
+		int sinceCommit = 0;
+		String lastTopic = null;
+		long lastOffset = 0;
+		try {
+			while (true) {
+				Record record = records.take();
+				if (record == END_OF_TREE) {
+					break;
+				}
+				if (writerError == null && !aborted) {
+					try {
+						if (record.op == OP_TOPIC) {
+							lastTopic = record.node.id;
+						}
+						lastOffset = record.offset;
+						if (position++ < skip) {
+							if (position == skip && !equal(lastTopic, skipLastTopic)) {
+								throw new IOException(String.format("checkpoint expected topic %s at node %d, found %s", skipLastTopic, skip, lastTopic));
+							}
+						} else {
+							if (ingester == null) {
+								ingester = new TopicTreeIngester(db);
+								checkpoint = db.compileStatement(SQL_SAVE_CHECKPOINT);
+							}
+							if (!inTransaction) {
+								db.beginTransaction();
+								inTransaction = true;
+							}
+							switch (record.op) {
+							case OP_TOPIC: ingester.topic(record.node); break;
+							case OP_VIDEO: ingester.video(record.node); break;
+							case OP_REPARENT: ingester.reparent(record.node); break;
+							}
+							nodesWritten++;
+							if (++sinceCommit >= COMMIT_INTERVAL) {
+								saveCheckpoint(checkpoint, position, lastTopic, lastOffset);
+								db.setTransactionSuccessful();
+								db.endTransaction();
+								inTransaction = false;
+								sinceCommit = 0;
+								commits++;
+								if (metrics != null) {
+									metrics.sampleHeap();
+								}
+							}
+						}
+					} catch (Throwable t) {
+						writerError = t;
+						aborted = true;
+					}
+				}
+				// Keep draining after a failure so the parser never blocks on a full queue.
+				freeRecords.offer(record);
+			}
+
+			if (writerError == null && !aborted && position < skip) {
+				writerError = new IOException(String.format("checkpoint expected %d nodes, tree has %d", skip, position));
+			}
+			if (inTransaction && writerError == null && !aborted) {
+				saveCheckpoint(checkpoint, position, lastTopic, lastOffset);
+				db.setTransactionSuccessful();
+				commits++;
+			}
+		} catch (InterruptedException e) {
+			writerError = e;
+			aborted = true;
+		} finally {
+			if (inTransaction) {
+				db.endTransaction();
+			}
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+			nodesParsed = position;
+			if (ingester != null) {
+				ingester.logCounts();
+				ingester.close();
+				if (metrics != null) {
+					metrics.topicRows = ingester.getTopicCount();
+					metrics.videoRows = ingester.getVideoCount();
+					metrics.topicVideoRows = ingester.getTopicVideoCount();
+					metrics.closureRows = ingester.getClosureCount();
+				}
+			}
+		}
+	}
+
+	private void saveCheckpoint(SQLiteStatement checkpoint, int nodes, String lastTopic, long offset) {
+		if (etag == null) {
+			checkpoint.bindNull(1);
+		} else {
+			checkpoint.bindString(1, etag);
+		}
+		checkpoint.bindLong(2, nodes);
+		if (lastTopic == null) {
+			checkpoint.bindNull(3);
+		} else {
+			checkpoint.bindString(3, lastTopic);
+		}
+		checkpoint.bindLong(4, offset);
+		checkpoint.execute();
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Stage 2's output. Copies each node into a recycled record and queues it for the writer.
+	 */
+	private class QueueSink implements TopicTreeParser.Sink {
+		@Override public void topic(Node node) {
+			enqueue(OP_TOPIC, node);
+		}
+		@Override public void video(Node node) {
+			enqueue(OP_VIDEO, node);
+		}
+		@Override public void reparent(Node node) {
+			enqueue(OP_REPARENT, node);
+		}
+
+		private void enqueue(int op, Node node) {
+			if (aborted) {
+				throw new IllegalStateException("topic tree pipeline aborted");
+			}
+			Record record = freeRecords.poll();
+			if (record == null) {
+				record = new Record();
+			}
+			record.op = op;
+			record.offset = body.consumed;
+			record.node.copyFrom(node);
+			try {
+				while (!records.offer(record, POLL_MS, TimeUnit.MILLISECONDS)) {
+					if (aborted) {
+						throw new IllegalStateException("topic tree pipeline aborted");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted queueing topic tree node");
+			}
+		}
+	}
+
+	/**
+	 * Stage 2's input. Presents the reader's chunks to Jackson as a plain stream.
+	 */
+	private class ChunkInputStream extends InputStream {
+		private Chunk current;
+		private int position;
+		/** Read by the parser thread only. Runs ahead of the parser by up to one parser buffer. */
+		long consumed;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (current == END_OF_BODY) {
+				return -1;
+			}
+			if (current == null || position >= current.length) {
+				if (current != null) {
+					freeChunks.offer(current);
+				}
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("interrupted reading topic tree");
+				}
+				position = 0;
+				if (current == END_OF_BODY) {
+					rethrow(readerError);
+					return -1;
+				}
+			}
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current.data, position, b, off, n);
+			position += n;
+			consumed += n;
+			return n;
+		}
+	}
+
+}
@@ -92,6 +92,7 @@ class VideoProgressPostTask extends AsyncTask<UserVideo, Void, User> {
 		User user = null;
 		Dao<User, String> userDao = null;
 		Dao<Video, String> videoDao = null;
+		dataService.beginDatabaseWork();
 		try {
 			user = userVideo.getUser();
 			userDao = dataService.getHelper().getUserDao();
@@ -107,6 +108,8 @@ class VideoProgressPostTask extends AsyncTask<UserVideo, Void, User> {
 			// Fail silently when trying to post progress updates.
 			e.printStackTrace();
 			return null;
+		} finally {
+			dataService.endDatabaseWork();
 		}
 		
 		final User existingUser = user;
@@ -127,10 +130,13 @@ class VideoProgressPostTask extends AsyncTask<UserVideo, Void, User> {
 			returnedUser.setToken(existingUser.getToken());
 			returnedUser.setSecret(existingUser.getSecret());
 			
+			dataService.beginDatabaseWork();
 			try {
 				dataService.getHelper().getUserDao().update(returnedUser);
 			} catch (SQLException e) {
 				e.printStackTrace();
+			} finally {
+				dataService.endDatabaseWork();
 			}
 			
 			// Badges.
@@ -163,10 +169,13 @@ class VideoProgressPostTask extends AsyncTask<UserVideo, Void, User> {
 			
 			// Again, the returned object is fresher than our existing one.
 			returnedVideo.setId(existingUserVideo.getId());
+			dataService.beginDatabaseWork();
 			try {
 				dataService.getHelper().getUserVideoDao().update(returnedVideo);
 			} catch (SQLException e) {
 				e.printStackTrace();
+			} finally {
+				dataService.endDatabaseWork();
 			}
 			
 			// Do the user update here, after the UserVideo has been saved.
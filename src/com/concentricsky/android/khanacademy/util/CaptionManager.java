@@ -34,6 +34,7 @@ import android.webkit.WebResourceResponse;
 import com.concentricsky.android.khan.R;
 import com.concentricsky.android.khanacademy.data.KADataService;
 import com.concentricsky.android.khanacademy.data.db.Caption;
+import com.concentricsky.android.khanacademy.data.db.CaptionSearch;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -113,6 +114,7 @@ public class CaptionManager {
 		
 		List<Caption> result = null;
 		Dao<Caption, Integer> captionDao = null;
+		dataService.beginDatabaseWork();
 		try {
 			captionDao = dataService.getHelper().getDao(Caption.class);
 			QueryBuilder<Caption, Integer> q = captionDao.queryBuilder();
@@ -123,6 +125,8 @@ public class CaptionManager {
 			result = q.query();
 		} catch (SQLException e) {
 			e.printStackTrace();
+		} finally {
+			dataService.endDatabaseWork();
 		}
 		if (result != null && result.size() > 0) {
 			Log.d(LOG_TAG, " already cached; returning");
@@ -202,6 +206,7 @@ public class CaptionManager {
 	}
 	
 	private List<Caption> persist(final List<Caption> toSave, final String youtubeId) {
+		dataService.beginDatabaseWork();
 		try {
 			final Dao<Caption, Integer> captionDao = dataService.getHelper().getDao(Caption.class);
 			
@@ -218,6 +223,8 @@ public class CaptionManager {
 								e.printStackTrace();
 							}
 						}
+						// Same connection and transaction as the creates, so the index never lags the captions.
+						CaptionSearch.index(dataService.getHelper().getWritableDatabase(), youtubeId);
 						return null;
 					}
 				});
@@ -226,6 +233,8 @@ public class CaptionManager {
 			e.printStackTrace();
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			dataService.endDatabaseWork();
 		}
 		
 		return toSave;
@@ -23,8 +23,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 public class DatabaseExporter {
 	
@@ -53,6 +56,45 @@ public class DatabaseExporter {
 		}
 	}
 	
+	/**
+	 * Write one table out as csv, named after the table, next to any exported dbs.
+	 */
+	public void exportTable(SQLiteDatabase db, String table) {
+		Log.d(LOG_TAG, "exportTable: " + table);
+		File outfile = new File(context.getExternalFilesDir(null), table + ".csv");
+		
+		Cursor c = db.rawQuery(String.format("select * from `%s`", table), null);
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(outfile);
+			int columns = c.getColumnCount();
+			for (int i = 0; i < columns; ++i) {
+				out.print(i > 0 ? "," : "");
+				out.print(c.getColumnName(i));
+			}
+			out.println();
+			while (c.moveToNext()) {
+				for (int i = 0; i < columns; ++i) {
+					out.print(i > 0 ? "," : "");
+					String value = c.getString(i);
+					if (value != null) {
+						out.print(value.indexOf(',') >= 0 || value.indexOf('"') >= 0 ? "\"" + value.replace("\"", "\"\"") + "\"" : value);
+					}
+				}
+				out.println();
+			}
+			Log.i(LOG_TAG, "table exported to: " + outfile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			Log.e(LOG_TAG, "table export failed");
+		} finally {
+			c.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+	
 	private void copyFile(InputStream in, OutputStream out) throws IOException {
 	    byte[] buffer = new byte[1024];
 	    int read;
@@ -22,36 +22,60 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
 
 import android.content.Context;
 
+/**
+ * Provisions a database from a gzipped copy in raw resources.
+ * 
+ * The bundled database compresses to about a quarter of its size, and aapt stores .gz resources as they are,
+ * so the apk carries the small copy and it is inflated straight into the database path.
+ */
 public class DatabaseImporter {
 	
 	public static final String LOG_TAG = DatabaseImporter.class.getSimpleName();
 	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
 	private final Context context;
 	
 	public DatabaseImporter(Context context) {
 		this.context = context;
 	}
 	
-	public void import_(int resourceId, String dbname) {
-		Log.d(LOG_TAG, "import_: " + dbname);
-		// copy the db from raw resources to where it belongs
+	/**
+	 * Inflate the given gzipped resource to the named database.
+	 * 
+	 * The database is written beside its final path and renamed into place once complete, so an import cut
+	 * short never leaves a truncated database to be opened next time.
+	 * 
+	 * @return True if the database is in place.
+	 */
+	public boolean import_(int resourceId, String dbname) {
+		long start = System.currentTimeMillis();
 		File outfile = context.getDatabasePath(dbname);
-		Log.d(LOG_TAG, "   db path: " + outfile);
-		File dbdir = new File(outfile.getParent());
-		Log.d(LOG_TAG, "   db dir: " + dbdir);
-		dbdir.mkdirs();
+		File partial = new File(outfile.getPath() + "-import");
+		Log.d(LOG_TAG, "import_: " + outfile);
+		outfile.getParentFile().mkdirs();
 		
 		InputStream in = null;
-		FileOutputStream out = null;
+		OutputStream out = null;
 		try {
-			in = context.getResources().openRawResource(resourceId);
-			out = new FileOutputStream(outfile);
+			in = new GZIPInputStream(context.getResources().openRawResource(resourceId), BUFFER_SIZE);
+			out = new FileOutputStream(partial);
 			copyFile(in, out);
+			out.close();
+			out = null;
+			if (!partial.renameTo(outfile)) {
+				throw new IOException("could not rename " + partial + " to " + outfile);
+			}
+			Log.d(LOG_TAG, String.format("imported %d bytes in %dms", outfile.length(), System.currentTimeMillis() - start));
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
+			partial.delete();
+			return false;
 		} finally {
 			if (in != null) {
 				try {
@@ -67,11 +91,10 @@ public class DatabaseImporter {
 	}
 	
 	private void copyFile(InputStream in, OutputStream out) throws IOException {
-	    byte[] buffer = new byte[1024];
+	    byte[] buffer = new byte[BUFFER_SIZE];
 	    int read;
 	    while((read = in.read(buffer)) != -1){
 	      out.write(buffer, 0, read);
 	    }
 	}
-
 }
@@ -19,8 +19,10 @@ package com.concentricsky.android.khanacademy.util;
 
 import static com.concentricsky.android.khanacademy.Constants.ACTION_DOWNLOAD_PROGRESS_UPDATE;
 import static com.concentricsky.android.khanacademy.Constants.ACTION_TOAST;
+import static com.concentricsky.android.khanacademy.Constants.COL_DL_STATUS;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_MESSAGE;
 import static com.concentricsky.android.khanacademy.Constants.EXTRA_STATUS;
+import static com.concentricsky.android.khanacademy.Constants.TABLE_VIDEO;
 
 import java.io.File;
 import java.sql.SQLException;
@@ -37,8 +39,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
@@ -85,6 +85,10 @@ public class OfflineVideoManager {
 	
 	private static final long MIN_ERROR_TOAST_INTERVAL = 500;
 	private static final Pattern filenamePattern = Pattern.compile("([-_a-zA-Z0-9]{11})\\.mp4");
+	/** Completed downloads listed under a topic, or under its descendants less than the given depth below it. */
+	private static final String SQL_DOWNLOAD_COUNT = "select count(video._id) from topic_closure, topicvideo, video " +
+			"where topic_closure.ancestor = ? and topic_closure.depth < ? and topicvideo.topic_id = topic_closure.descendant " +
+			"and topicvideo.video_id = video.readable_id and video.download_status = " + Video.DL_STATUS_COMPLETE;
 
 	
 	/* ***********************  PRIVATE  ****************************/
@@ -94,7 +98,6 @@ public class OfflineVideoManager {
 	private ExecutorService queueExecutor = Executors.newSingleThreadExecutor();
 	
 	private final KADataService dataService;
-	private final Dao<Video, String> videoDao;
 	private final LocalBroadcastManager broadcastManager;
 	
 	private volatile boolean shouldPoll = false;
@@ -110,19 +113,18 @@ public class OfflineVideoManager {
 	 */
 	private class Poller extends AsyncTask<Void, Void, HashMap<String, Integer>> {
 		
-		private static final String sql = "select dlm_id from video where dlm_id > 0";
-		
 		private final DownloadManager.Query q = new DownloadManager.Query();
 
 		@Override
 		protected HashMap<String, Integer> doInBackground(Void... arg0) {
 			// get an array of ids, for use in the download manager query
-			Cursor c = dataService.getHelper().getReadableDatabase().rawQuery(sql, null);
-			long[] ids = new long[c.getCount()];
-			while (c.moveToNext()) {
-				ids[c.getPosition()] = c.getLong(c.getColumnIndex("dlm_id"));
+			long[] ids;
+			dataService.beginDatabaseWork();
+			try {
+				ids = dataService.getHelper().getDownloadManagerIds();
+			} finally {
+				dataService.endDatabaseWork();
 			}
-			c.close();
 		
 			if (ids.length > 0) {
 				q.setFilterById(ids);
@@ -297,12 +299,6 @@ public class OfflineVideoManager {
 	public OfflineVideoManager(KADataService dataService) {
 		this.dataService = dataService;
 		broadcastManager = LocalBroadcastManager.getInstance(dataService);
-		
-		try {
-			videoDao = dataService.getHelper().getVideoDao();
-		} catch (SQLException e) {
-			throw new RuntimeException(e);
-		}
 
 		fileObserver = new DownloadsObserver(this.getDownloadDir().getAbsolutePath());
 		fileObserver.startWatching();
@@ -366,14 +362,19 @@ public class OfflineVideoManager {
 				}
 				c.close();
 				
-				UpdateBuilder<Video, String> u = videoDao.updateBuilder();
+				dataService.beginDatabaseWork();
 				try {
+					UpdateBuilder<Video, String> u = getVideoDao().updateBuilder();
 					u.where().in("dlm_id", (Object[]) removed);
 					u.updateColumnValue("download_status", Video.DL_STATUS_NOT_STARTED);
 					u.update();
 				} catch (SQLException e) {
 					e.printStackTrace();
+				} finally {
+					dataService.endDatabaseWork();
 				}
+				// Only the download manager ids are at hand here, so report the column rather than the rows.
+				dataService.getChangeBus().postAll(TABLE_VIDEO, COL_DL_STATUS);
 				
 				return result;
 			}
@@ -457,10 +458,12 @@ public class OfflineVideoManager {
 			
 			// mark download as begun
 			try {
+				Dao<Video, String> videoDao = getVideoDao();
 				videoDao.refresh(video);
 				video.setDownload_status(Video.DL_STATUS_IN_PROGRESS);
 				video.setDlm_id(id);
 				videoDao.update(video);
+				dataService.getChangeBus().post(TABLE_VIDEO, COL_DL_STATUS, video.getYoutube_id());
 			} catch (SQLException e) {
 				e.printStackTrace();
 			}
@@ -487,13 +490,25 @@ public class OfflineVideoManager {
 					if (isCancelled()) break;
 					
 					result++;
-					downloadVideo(v);
+					dataService.beginDatabaseWork();
+					try {
+						downloadVideo(v);
+					} finally {
+						dataService.endDatabaseWork();
+					}
 				}
 				return result;
 			}
 		}.executeOnExecutor(queueExecutor);
 	}
 	
+	/**
+	 * Look up the video dao on each use; the helper is replaced when a library update swaps in a new database.
+	 */
+	private Dao<Video, String> getVideoDao() throws SQLException {
+		return dataService.getHelper().getVideoDao();
+	}
+	
 	/**
 	 * Show a toast explaining that a {@link Video} could not be downloaded. 
 	 */
@@ -571,63 +586,21 @@ public class OfflineVideoManager {
 		return v.getYoutube_id() + ".mp4";
 	}
 	
-	private String buildDownloadCountQuery(int depth) {
-		Log.d(LOG_TAG, "buildQuery");
-		String sql;
-		if (depth == 0) {
-			sql = "select count(video._id) from video,topicvideo where topicvideo.topic_id=? and topicvideo.video_id = video.readable_id";
-		} else if (depth == 1) {
-			sql = "select count(video._id) from video,topicvideo,topic as t1 where t1.parentTopic_id=? and topicvideo.topic_id=t1._id and topicvideo.video_id = video.readable_id";
-		} else {
-		
-			// Depth 2~n
-			sql = "select count(video._id) from video,topicvideo ,topic as t1";
-			for (int i = 2; i < depth; ++i) {
-				sql += String.format(",topic as t%d ", i);
-			}
-			sql += " where topicvideo.topic_id=t1._id and topicvideo.video_id=video.readable_id and t1.parentTopic_id=";
-			
-			for (int i = 2; i < depth; ++i) {
-				sql += String.format("t%d._id and t%d.parentTopic_id=", i, i);
-			}
-			sql += "?";
-			// Output of above with depth=6
-	//		String out = "select count(video._id) from video,topicvideo ,topic as t1,topic as t2 ,topic as t3 ,topic as t4 ,topic as t5 " +
-	//				"where topicvideo.topic_id=t1._id and topicvideo.video_id=video.readable_id  and t1.parentTopic_id=t2._id and t2.parentTopic_id=t3._id and t3.parentTopic_id=t4._id and t4.parentTopic_id=t5._id and t5.parentTopic_id=?";
-			
-			// Samples with "root"
-			// depth = 1
-	//		sql = "select count(video._id) from video,topicvideo,topic as t1 " +
-	//				"where topicvideo.video_id = video.readable_id and topicvideo.topic_id=t1._id and t1.parentTopic_id='root'";
-			
-			// depth = 2
-	//		sql = "select count(video._id) from video,topicvideo,topic as t1,topic as t2 " +
-	//				"where topicvideo.video_id = video.readable_id and topicvideo.topic_id=t1._id and t1.parentTopic_id=t2._id and t2.parentTopic_id='root'  ";
-		
-		}
-		
-		sql += " and video.download_status=" + String.valueOf(Video.DL_STATUS_COMPLETE);
-		
-		Log.d(LOG_TAG, "  --> " + sql);
-		return sql;
-	}
-	
-	public int getDownloadCountForTopic(SQLiteOpenHelper dbh, String topicId, int depth) {
+	/**
+	 * Count the downloaded videos in a topic and the topics below it.
+	 * 
+	 * One query through topic_closure covers every level, so the cost doesn't grow with depth. A video listed
+	 * under more than one of the topics counts once for each.
+	 * 
+	 * @param dbh The helper for the database to query.
+	 * @param topicId The id of the topic to count under.
+	 * @param depth How many levels to count: 1 for the topic's own videos, 2 to include its child topics', and so on.
+	 * @return The number of completed downloads found.
+	 */
+	public int getDownloadCountForTopic(DatabaseHelper dbh, String topicId, int depth) {
 		Log.d(LOG_TAG, "getDownloadCountForTopic");
 		
-		int result = 0;
-		SQLiteDatabase db = dbh.getReadableDatabase();
-		
-		for (int i = 0; i < depth; ++i) {
-			String sql = buildDownloadCountQuery(i);
-			Cursor c = db.rawQuery(sql, new String[] {topicId});
-			c.moveToFirst();
-			result += c.getInt(0);
-			Log.d(LOG_TAG, " result is " + result);
-			c.close();
-		}
-		
-		return result;
+		return (int) dbh.getReadStatements().queryForLong(0, SQL_DOWNLOAD_COUNT, topicId, depth);
 	}
 	
 	
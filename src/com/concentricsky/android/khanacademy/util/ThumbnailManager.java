@@ -54,6 +54,8 @@ public class ThumbnailManager {
 	
 	public static final String LOG_TAG = ThumbnailManager.class.getSimpleName();
 	private static final int CONNECT_TIMEOUT = 3000;
+	/** Number of locks guarding disk cache entries; keys share them by hash. */
+	private static final int LOCK_STRIPES = 16;
 
 	private static ThumbnailManager sharedInstance;
 	
@@ -63,6 +65,7 @@ public class ThumbnailManager {
 	private final ConnectivityManager connectivityManager;
 	private final LruCache<Thumbnail, Bitmap> cache;
 	private final DiskLruCache diskCache;
+	private final Object[] entryLocks = new Object[LOCK_STRIPES];
 	
 	private boolean isDestroyed;
 	
@@ -79,6 +82,9 @@ public class ThumbnailManager {
 
 		cache = prepareCache();
 		diskCache = prepareDiskCache();
+		for (int i = 0; i < LOCK_STRIPES; ++i) {
+			entryLocks[i] = new Object();
+		}
 	}
 	
 	private DiskLruCache prepareDiskCache() {
@@ -204,33 +210,63 @@ public class ThumbnailManager {
 		}
 	}
 	
+	/**
+	 * The lock to hold while editing a disk cache entry. DiskLruCache allows one editor per entry and returns
+	 * null to anyone else asking, so every edit here holds its entry's lock: threads wanting the same entry
+	 * wait their turn, parked, instead of asking again and again.
+	 */
+	private Object lockFor(String key) {
+		return entryLocks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+	
+	/**
+	 * Open an editor on a disk cache entry. Call holding {@link #lockFor} the key.
+	 */
+	private DiskLruCache.Editor edit(String key) throws IOException {
+		DiskLruCache.Editor editor = diskCache.edit(key);
+		if (editor == null) {
+			// Every edit holds the lock and ends in abortUnlessCommitted, so this is an editor that leaked.
+			throw new IOException("thumbnail cache entry already being edited: " + key);
+		}
+		return editor;
+	}
+	
 	public Bitmap getThumbnailFromDiskCache(String youtubeId, byte quality) {
 		String key = youtubeId.toLowerCase(Locale.US);
 		Bitmap result = null;
 		DiskLruCache.Snapshot snap = null;
 		DiskLruCache.Editor editor = null;
 		
-		// Ensure we have a cache entry for this youtube id.
+		// Ensure we have a cache entry for this youtube id. Entries are only readable once created, so most
+		// calls find one without taking the lock.
 		try {
-			// null while another editor is open
-			while ((editor = diskCache.edit(key)) == null) { }
-			
-			if (editor.getString(indexForAvailability(Thumbnail.QUALITY_HIGH)) == null) {
-				// values only null if they've never been set, so this must be a new entry
-				editor.set(indexForQuality(Thumbnail.QUALITY_HIGH), "");
-				editor.set(indexForAvailability(Thumbnail.QUALITY_HIGH), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
-				editor.set(indexForQuality(Thumbnail.QUALITY_MEDIUM), "");
-				editor.set(indexForAvailability(Thumbnail.QUALITY_MEDIUM), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
-				editor.set(indexForQuality(Thumbnail.QUALITY_LOW), "");
-				editor.set(indexForAvailability(Thumbnail.QUALITY_LOW), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
-				editor.set(indexForQuality(Thumbnail.QUALITY_SD), "");
-				editor.set(indexForAvailability(Thumbnail.QUALITY_SD), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
-				editor.commit();
+			snap = diskCache.get(key);
+			if (snap == null) {
+				synchronized (lockFor(key)) {
+					try {
+						editor = edit(key);
+						if (editor.getString(indexForAvailability(Thumbnail.QUALITY_HIGH)) == null) {
+							// values only null if they've never been set, so this must be a new entry
+							editor.set(indexForQuality(Thumbnail.QUALITY_HIGH), "");
+							editor.set(indexForAvailability(Thumbnail.QUALITY_HIGH), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
+							editor.set(indexForQuality(Thumbnail.QUALITY_MEDIUM), "");
+							editor.set(indexForAvailability(Thumbnail.QUALITY_MEDIUM), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
+							editor.set(indexForQuality(Thumbnail.QUALITY_LOW), "");
+							editor.set(indexForAvailability(Thumbnail.QUALITY_LOW), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
+							editor.set(indexForQuality(Thumbnail.QUALITY_SD), "");
+							editor.set(indexForAvailability(Thumbnail.QUALITY_SD), String.valueOf(Thumbnail.AVAILABILITY_UNKNOWN));
+							editor.commit();
+						}
+					} finally {
+						if (editor != null) editor.abortUnlessCommitted();
+					}
+				}
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			if (editor != null) editor.abortUnlessCommitted();
+			if (snap != null) snap.close();
+			snap = null;
 		}
 		
 		while (quality >= Thumbnail.QUALITY_LOW && result == null) {
@@ -262,14 +298,17 @@ public class ThumbnailManager {
 						} catch (IOException e) {
 							// FileNotFoundException on 404. Mark as unavailable.
 							if (e instanceof FileNotFoundException) {
-								try {
-									while ((editor = diskCache.edit(key)) == null) { }
-									editor.set(indexForAvailability(quality), String.valueOf(Thumbnail.AVAILABILITY_UNAVAILABLE));
-									editor.commit();
-								} catch (IOException ex) {
-									ex.printStackTrace();
-								} finally {
-									if (editor != null) editor.abortUnlessCommitted();
+								synchronized (lockFor(key)) {
+									editor = null;
+									try {
+										editor = edit(key);
+										editor.set(indexForAvailability(quality), String.valueOf(Thumbnail.AVAILABILITY_UNAVAILABLE));
+										editor.commit();
+									} catch (IOException ex) {
+										ex.printStackTrace();
+									} finally {
+										if (editor != null) editor.abortUnlessCommitted();
+									}
 								}
 							} else {
 								e.printStackTrace();
@@ -279,20 +318,23 @@ public class ThumbnailManager {
 					
 					// If we receive a thumbnail response, store it in the cache and return it.
 					if (result != null) {
-						try {
-							while ((editor = diskCache.edit(key)) == null) { }
-							OutputStream os = editor.newOutputStream(indexForQuality(quality));
+						synchronized (lockFor(key)) {
+							editor = null;
 							try {
-								result.compress(Bitmap.CompressFormat.PNG, 100, os);
+								editor = edit(key);
+								OutputStream os = editor.newOutputStream(indexForQuality(quality));
+								try {
+									result.compress(Bitmap.CompressFormat.PNG, 100, os);
+								} finally {
+									if (os != null) os.close();
+								}
+								editor.set(indexForAvailability(quality), String.valueOf(Thumbnail.AVAILABILITY_AVAILABLE));
+								editor.commit();
+							} catch (IOException e) {
+								e.printStackTrace();
 							} finally {
-								if (os != null) os.close();
+								if (editor != null) editor.abortUnlessCommitted();
 							}
-							editor.set(indexForAvailability(quality), String.valueOf(Thumbnail.AVAILABILITY_AVAILABLE));
-							editor.commit();
-						} catch (IOException e) {
-							e.printStackTrace();
-						} finally {
-							if (editor != null) editor.abortUnlessCommitted();
 						}
 						return result;
 					}